@@ -15,34 +15,72 @@
 
 package com.github.ignition.support.cache;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
-import java.util.Arrays;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
 
 import android.content.Context;
 import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
 import android.util.Log;
 
 import com.github.ignition.support.IgnitedStrings;
-import com.google.common.collect.MapMaker;
+import com.github.ignition.support.cache.EntryHeader.CorruptEntryException;
+import com.github.ignition.support.cache.EntryHeader.KeyCollisionException;
+import com.google.common.base.Function;
+import com.google.common.base.Predicate;
 
 /**
  * <p>
  * A simple 2-level cache consisting of a small and fast in-memory cache (1st level cache) and an
- * (optional) slower but bigger disk cache (2nd level cache). For disk caching, either the
- * application's cache directory or the SD card can be used. Please note that in the case of the app
- * cache dir, Android may at any point decide to wipe that entire directory if it runs low on
- * internal storage. The SD card cache <i>must</i> be managed by the application, e.g. by calling
- * {@link #wipe} whenever the app quits.
+ * (optional) slower but bigger disk cache (2nd level cache). The in-memory cache holds its values
+ * through strong references and is bounded by a byte budget (see
+ * {@link #setMaxMemoryCacheSize(long)}); when it runs full, the least recently used entries are
+ * evicted. Entry sizes are measured by a {@link Sizer}, which subclasses should install via
+ * {@link #setSizer(Sizer)}. Optionally, new entries are only admitted to a full in-memory cache
+ * if they're accessed often enough (see {@link #setAdmissionFilterEnabled(boolean)}).
+ * </p>
+ * <p>
+ * For disk caching, either the application's cache directory or the SD card can be used. Please
+ * note that in the case of the app cache dir, Android may at any point decide to wipe that entire
+ * directory if it runs low on internal storage. The SD card cache <i>must</i> be managed by the
+ * application, e.g. by calling {@link #wipe} whenever the app quits.
  * </p>
  * <p>
  * When pulling from the cache, it will first attempt to load the data from memory. If that fails,
@@ -50,8 +88,55 @@ import com.google.common.collect.MapMaker;
  * will be put in the in-memory cache and returned (read-through). Otherwise it's a cache miss.
  * </p>
  * <p>
- * Pushes to the cache are always write-through (i.e. the data will be stored both on disk, if disk
- * caching is enabled, and in memory).
+ * Reads may block on disk I/O, so there are asynchronous variants which never do (see
+ * {@link #getAsync(Object, CacheCallback, Executor)} and {@link #putAsync(Object, Object)}); they
+ * run disk access on a small pool of threads owned by the cache.
+ * </p>
+ * <p>
+ * Pushes to the cache are write-through by default (i.e. the data will be stored both on disk, if
+ * disk caching is enabled, and in memory). Alternatively, disk writes can be deferred to a
+ * background thread (see {@link #enableWriteBehind(int)}).
+ * </p>
+ * <p>
+ * Entries expire a fixed time after they were written, which can be set for the whole cache or
+ * for individual entries (see {@link #put(Object, Object, long)}). Expired entries are reclaimed
+ * in order of expiry, without scanning either tier. Optionally, entries can be refreshed
+ * before that (see {@link #setRefreshAfterWrite(long, Loader)}): once an entry is older than the
+ * refresh interval, reads keep returning it while a {@link Loader} fetches a fresh value in the
+ * background, so that readers don't have to wait for a reload when entries expire in bulk.
+ * </p>
+ * <p>
+ * The disk cache can be bounded in size and number of files (see {@link #setMaxDiskCacheSize(long)}
+ * and {@link #setMaxDiskCacheEntries(int)}). When it exceeds either limit, the least recently used
+ * files are evicted on a background thread. Access order is persisted, so this holds across
+ * restarts.
+ * </p>
+ * <p>
+ * The cache is safe for concurrent use without any global lock. Memory hits never block. Disk
+ * access is serialized per key through a set of striped read/write locks, so that a file is never
+ * read while it's being written or deleted, while threads working on unrelated keys (usually)
+ * proceed in parallel.
+ * </p>
+ * <p>
+ * Cache files are spread across a fixed set of subdirectories of a generation directory below
+ * {@link #getDiskCacheDirectory()}. Clearing the disk cache, or changing the version of its data
+ * (see {@link #setDiskCacheVersion(int)}), merely starts a new generation; older ones are deleted
+ * in the background. Files written by earlier versions of the cache, which kept everything in a
+ * single directory, are migrated the first time they're read (see
+ * {@link #getLegacyFileNameForKey(Object)}). Optionally, small values are appended to a few large
+ * segment files instead of getting a file each (see {@link #setMaxPackedEntrySize(int)}).
+ * </p>
+ * <p>
+ * The cache keeps a record of its most frequently read keys on disk, so that after a restart, the
+ * memory cache can be populated with them before they're asked for (see {@link #warmUp()}).
+ * </p>
+ * <p>
+ * Several processes of the same app can share a disk cache, e.g. the UI process and a service
+ * running in a process of its own (see {@link #setDiskCacheMultiProcess(boolean)}).
+ * </p>
+ * <p>
+ * Optionally, values can also be kept in serialized form outside the VM heap, in a tier which
+ * sits between memory and disk (see {@link #enableOffHeapCache(long)}).
  * </p>
  * 
  * @author Matthias Kaeppler
@@ -61,270 +146,2793 @@ public abstract class AbstractCache<KeyT, ValT> implements Map<KeyT, ValT> {
     public static final int DISK_CACHE_INTERNAL = 0;
     public static final int DISK_CACHE_SDCARD = 1;
 
+    // trim levels for trimMemory, same values as in android.content.ComponentCallbacks2
+
+    /**
+     * The app is running, but the system is moderately low on memory. Memory caches are left
+     * alone.
+     */
+    public static final int TRIM_MEMORY_RUNNING_MODERATE = 5;
+
+    /**
+     * The app is running, but the system is low on memory. Memory caches are trimmed to half
+     * their size.
+     */
+    public static final int TRIM_MEMORY_RUNNING_LOW = 10;
+
+    /**
+     * The app is running, but the system is extremely low on memory. Memory caches are trimmed to
+     * a quarter of their size.
+     */
+    public static final int TRIM_MEMORY_RUNNING_CRITICAL = 15;
+
+    /**
+     * The app's UI is no longer visible. Memory caches are left alone.
+     */
+    public static final int TRIM_MEMORY_UI_HIDDEN = 20;
+
+    /**
+     * The app is in the background, near the start of the list of processes to kill. Memory
+     * caches are trimmed to half their size.
+     */
+    public static final int TRIM_MEMORY_BACKGROUND = 40;
+
+    /**
+     * The app is in the background, around the middle of the list of processes to kill. Memory
+     * caches are trimmed to a quarter of their size.
+     */
+    public static final int TRIM_MEMORY_MODERATE = 60;
+
+    /**
+     * The app is in the background, and among the next processes to be killed. Memory caches are
+     * emptied.
+     */
+    public static final int TRIM_MEMORY_COMPLETE = 80;
+
+    /**
+     * The fraction of the VM heap the memory cache may occupy unless configured otherwise.
+     */
+    public static final float DEFAULT_MAX_MEMORY_CACHE_HEAP_FRACTION = 0.125f;
+
+    /**
+     * The size in bytes accounted for every entry unless a {@link Sizer} has been set.
+     */
+    public static final long DEFAULT_ENTRY_SIZE = 1024;
+
+    /**
+     * A good value for {@link #setMaxPackedEntrySize(int)} for caches holding many small values.
+     */
+    public static final int DEFAULT_MAX_PACKED_ENTRY_SIZE = 4 * 1024;
+
+    /**
+     * The largest value {@link #setMaxPackedEntrySize(int)} accepts.
+     */
+    public static final int MAX_PACKED_ENTRY_SIZE = 64 * 1024;
+
+    /**
+     * The version of the disk cache's data unless set otherwise (see
+     * {@link #setDiskCacheVersion(int)}).
+     */
+    public static final int DEFAULT_DISK_CACHE_VERSION = 1;
+
     private static final String LOG_TAG = "Droid-Fu[CacheFu]";
 
-    private boolean isDiskCacheEnabled;
+    // how many files the disk trimmer evicts before checking the quota again
+    private static final int DISK_TRIM_BATCH_SIZE = 16;
+
+    // how many files the disk sanitizer checks before giving other maintenance tasks a turn
+    private static final int DISK_SANITIZE_BATCH_SIZE = 64;
+
+    private static final int MAX_CODEC_ID = 127;
+
+    private static final Runnable NO_OP = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    // payloads smaller than this are read by getBuffer rather than mapped, since setting up a
+    // mapping costs more than copying a few pages
+    private static final int MAPPED_READ_THRESHOLD = 16 * 1024;
+
+    // how many keys the hot-key manifest holds
+    private static final int HOT_KEY_COUNT = 64;
+
+    // how often the hot-key manifest is rewritten while the cache is in use
+    private static final long HOT_KEY_SAVE_INTERVAL = 5 * 60 * 1000;
+
+    private volatile boolean isDiskCacheEnabled;
 
     protected String diskCacheDirectory;
 
-    private ConcurrentMap<KeyT, ValT> cache;
+    private MemoryCache<KeyT, ValT> cache;
+
+    private volatile SlabCache<KeyT> offHeapCache;
+
+    private StripedLock diskLocks;
+
+    // only replaced while holding all disk locks, so it can't change while holding any one of
+    // them. Code holding a disk lock must use it as found; everybody else should read it once,
+    // and recheck it under a lock before writing
+    private volatile DiskIndex diskIndex;
+
+    // held while switching generations
+    private final Object generationLock = new Object();
+
+    private volatile int diskCacheVersion = DEFAULT_DISK_CACHE_VERSION;
+
+    private volatile boolean isDiskCacheSessionScoped;
+
+    private volatile boolean isDiskCacheMultiProcess;
+
+    // the generation diskIndex covers; changed while holding generationLock
+    private volatile int diskCacheGeneration;
+
+    private volatile WriteBehindQueue<PendingWrite<ValT>> writeBehindQueue;
+
+    private final DiskQuota diskQuota = new DiskQuota();
+
+    // 0 if packing is disabled
+    private volatile int maxPackedEntrySize;
+
+    private final AtomicBoolean isHotKeySaveScheduled = new AtomicBoolean();
+
+    private volatile long hotKeysSavedAt = System.currentTimeMillis();
+
+    private volatile boolean isRegisteredForTrimming;
+
+    private final StatsCounter stats = new StatsCounter();
+
+    // whether the top level of the cache directory may still hold files which need migrating
+    private volatile boolean hasLegacyFiles;
+
+    // the names of the files at the top level of the cache directory, once the sanitizer has
+    // listed them; legacy files are never added, so this spares misses from probing for them
+    private volatile CountingBloomFilter legacyFileFilter;
+
+    private volatile Codec codec = Codecs.IDENTITY;
+
+    // indexed by codec ID; copied on write
+    private volatile Codec[] codecs;
+
+    private final CacheThreads threads;
+
+    private final LoadCoordinator<KeyT, ValT> loads;
+
+    private String name;
+
+    private long expirationInMinutes;
+
+    /**
+     * A key taking part in a bulk operation. Sorts by the location of its file, so that files are
+     * visited directory by directory. Since shard directories and lock stripes are derived from
+     * the same hash, this also tends to put keys sharing a lock stripe next to each other.
+     */
+    private static final class BatchItem<KeyT, ValT> implements
+            Comparable<BatchItem<KeyT, ValT>> {
+        final KeyT key;
+        final String fileName;
+        final String shardName;
+        ValT value;
+
+        BatchItem(KeyT key, String fileName, ValT value) {
+            this.key = key;
+            this.fileName = fileName;
+            this.shardName = DiskIndex.getShardName(fileName);
+            this.value = value;
+        }
+
+        @Override
+        public int compareTo(BatchItem<KeyT, ValT> another) {
+            int result = shardName.compareTo(another.shardName);
+            return result != 0 ? result : fileName.compareTo(another.fileName);
+        }
+    }
+
+    private static final class PendingWrite<ValT> {
+        final String key;
+        final ValT value;
+        // the value as written by writeValueToDisk, if the off-heap tier needed it anyway
+        final PayloadBuffer data;
+        final long writtenAt;
+        final long expiresAt;
+
+        PendingWrite(String key, ValT value, PayloadBuffer data, long writtenAt, long expiresAt) {
+            this.key = key;
+            this.value = value;
+            this.data = data;
+            this.writtenAt = writtenAt;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * Lets a codec close its stream, which it must do to signal the end of its output, without
+     * closing the cache file.
+     */
+    private static final class UnclosableOutputStream extends FilterOutputStream {
+
+        UnclosableOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int count) throws IOException {
+            out.write(buffer, offset, count);
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.flush();
+        }
+    }
+
+    /**
+     * Gives access to the buffer without copying it.
+     */
+    private static final class PayloadBuffer extends ByteArrayOutputStream {
+
+        // false until readFully succeeds, if the buffer was passed in to receive a value
+        boolean isFilled = true;
+
+        byte[] array() {
+            return buf;
+        }
+
+        /**
+         * Replaces the buffer's contents with exactly the given number of bytes from the stream.
+         */
+        void readFully(InputStream istream, int length) throws IOException {
+            buf = new byte[length];
+            count = 0;
+            new DataInputStream(istream).readFully(buf);
+            count = length;
+            isFilled = true;
+        }
+    }
+
+    /**
+     * Collects a record (header and payload) in memory, up to a fixed size. Writing more than that
+     * fails, so values too large to be packed are detected without encoding all of them.
+     */
+    private static final class RecordBuffer extends OutputStream {
+        final byte[] bytes;
+        int length;
+        boolean isOverflowed;
+
+        RecordBuffer(int capacity, int start) {
+            this.bytes = new byte[capacity];
+            this.length = start;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            ensureCapacity(1);
+            bytes[length++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int count) throws IOException {
+            ensureCapacity(count);
+            System.arraycopy(buffer, offset, bytes, length, count);
+            length += count;
+        }
+
+        private void ensureCapacity(int count) throws IOException {
+            if (count > bytes.length - length) {
+                isOverflowed = true;
+                throw new IOException("record exceeds " + bytes.length + " bytes");
+            }
+        }
+    }
+
+    /**
+     * Runs tasks on the thread of a {@link Looper}; right away if that's the calling thread.
+     */
+    private static final class LooperExecutor implements Executor {
+        final Handler handler;
+
+        LooperExecutor(Looper looper) {
+            this.handler = new Handler(looper);
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            if (Looper.myLooper() == handler.getLooper()) {
+                task.run();
+            } else {
+                handler.post(task);
+            }
+        }
+    }
+
+    /**
+     * Creates a new cache instance.
+     * 
+     * @param name
+     *            a human readable identifier for this cache. Note that this value will be used to
+     *            derive a directory name if the disk cache is enabled, so don't get too creative
+     *            here (camel case names work great)
+     * @param initialCapacity
+     *            the initial element size of the cache
+     * @param expirationInMinutes
+     *            time in minutes after which elements will be purged from the cache, unless
+     *            given an expiration time of their own (see {@link #put(Object, Object, long)})
+     * @param maxConcurrentThreads
+     *            how many threads you think may at once access the cache; this need not be an exact
+     *            number, but it helps in fragmenting the cache properly
+     */
+    public AbstractCache(String name, int initialCapacity, long expirationInMinutes,
+            int maxConcurrentThreads) {
+
+        this.name = name;
+        this.expirationInMinutes = expirationInMinutes;
+        this.threads = new CacheThreads(name);
+
+        this.codecs = new Codec[MAX_CODEC_ID + 1];
+        for (Codec builtIn : new Codec[] { Codecs.IDENTITY, Codecs.DEFLATE, Codecs.LZ }) {
+            codecs[builtIn.getId()] = builtIn;
+        }
+
+        this.cache = new MemoryCache<KeyT, ValT>(initialCapacity, maxConcurrentThreads,
+                heapFractionToBytes(DEFAULT_MAX_MEMORY_CACHE_HEAP_FRACTION),
+                new Sizer<KeyT, ValT>() {
+                    @Override
+                    public long sizeOf(KeyT key, ValT value) {
+                        return DEFAULT_ENTRY_SIZE;
+                    }
+                });
+        this.diskLocks = new StripedLock(maxConcurrentThreads);
+        this.loads = new LoadCoordinator<KeyT, ValT>(this, cache, stats, name);
+        this.cache.setEvictionListener(new MemoryCache.EvictionListener<KeyT, ValT>() {
+            @Override
+            public void onEvicted(KeyT key, ValT value) {
+                stats.memoryEvictions.increment();
+                onEntryEvicted(key, value);
+            }
+        });
+    }
+
+    private static long heapFractionToBytes(float heapFraction) {
+        if (heapFraction <= 0 || heapFraction > 1) {
+            throw new IllegalArgumentException("heap fraction must be in (0, 1], was "
+                    + heapFraction);
+        }
+        return (long) (Runtime.getRuntime().maxMemory() * heapFraction);
+    }
+
+    /**
+     * Sets the {@link Sizer} used to measure entries against the memory budget. Should be called
+     * before the first entry is added; entries already cached keep the size they were admitted
+     * with.
+     * 
+     * @param sizer
+     *            the sizer
+     */
+    public void setSizer(Sizer<KeyT, ValT> sizer) {
+        cache.setSizer(sizer);
+    }
+
+    /**
+     * Sets the codec used to encode values written to disk from now on, e.g. one of the
+     * compressing codecs in {@link Codecs}. Files written using a different codec remain readable.
+     * Values for which {@link #isCompressible(Object)} returns false are always stored as they
+     * are. The default is {@link Codecs#IDENTITY}.
+     * 
+     * @param codec
+     *            the codec, which is registered with the cache if it isn't yet
+     */
+    public void setCodec(Codec codec) {
+        registerCodec(codec);
+        this.codec = codec;
+    }
+
+    public Codec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Makes a codec known to the cache, so that files written using it can be read. Only needed
+     * for custom codecs which aren't (or are no longer) passed to {@link #setCodec(Codec)}; the
+     * built-in ones are always known. Files written using an unknown codec are treated as corrupt.
+     * 
+     * @throws IllegalArgumentException
+     *             if the codec's ID is out of range, or taken by a different codec
+     */
+    public synchronized void registerCodec(Codec codec) {
+        int id = codec.getId();
+        if (id < 0 || id > MAX_CODEC_ID) {
+            throw new IllegalArgumentException("codec ID must be between 0 and " + MAX_CODEC_ID);
+        }
+        if (codecs[id] == codec) {
+            return;
+        }
+        if (codecs[id] != null) {
+            throw new IllegalArgumentException("codec ID " + id + " is taken by " + codecs[id]);
+        }
+        Codec[] registered = new Codec[codecs.length];
+        System.arraycopy(codecs, 0, registered, 0, codecs.length);
+        registered[id] = codec;
+        codecs = registered;
+    }
+
+    private Codec getCodec(EntryHeader header) throws CorruptEntryException {
+        Codec codec = codecs[header.codecId];
+        if (codec == null) {
+            throw new CorruptEntryException("unknown codec " + header.codecId);
+        }
+        return codec;
+    }
+
+    /**
+     * Limits the in-memory cache to the given number of bytes, as measured by the cache's
+     * {@link Sizer}. If the cache currently holds more than that, the least recently used entries
+     * are evicted right away.
+     * 
+     * @param maxBytes
+     *            the memory budget in bytes
+     */
+    public void setMaxMemoryCacheSize(long maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("memory budget must not be negative");
+        }
+        cache.setMaxSize(maxBytes);
+    }
+
+    /**
+     * Limits the in-memory cache to the given fraction of the maximum VM heap size. Defaults to
+     * {@link #DEFAULT_MAX_MEMORY_CACHE_HEAP_FRACTION}.
+     * 
+     * @param heapFraction
+     *            a value greater than 0 and at most 1
+     * @see #setMaxMemoryCacheSize(long)
+     */
+    public void setMaxMemoryCacheHeapFraction(float heapFraction) {
+        cache.setMaxSize(heapFractionToBytes(heapFraction));
+    }
+
+    /**
+     * @return the memory budget in bytes
+     */
+    public long getMaxMemoryCacheSize() {
+        return cache.getMaxSize();
+    }
+
+    /**
+     * Puts a frequency-based admission filter (TinyLFU) in front of the in-memory cache. Once the
+     * memory budget is used up, a new entry only gets in if its key has been accessed at least as
+     * often recently as the keys of all the entries that would have to be evicted to make room
+     * for it. Entries which are turned away remain cached on disk and off-heap, if those tiers are
+     * enabled, and count as evictions. This protects entries which are used over and over from
+     * bursts of entries which are used once, such as images scrolled past in a long list, at the
+     * price of a few more misses for new entries which do turn out to be popular. Off by default.
+     * 
+     * @param isEnabled
+     *            whether to filter new entries
+     */
+    public void setAdmissionFilterEnabled(boolean isEnabled) {
+        cache.setAdmissionFilterEnabled(isEnabled);
+    }
+
+    public boolean isAdmissionFilterEnabled() {
+        return cache.isAdmissionFilterEnabled();
+    }
+
+    /**
+     * @return the number of bytes currently occupied by the in-memory cache, as measured by the
+     *         cache's {@link Sizer}
+     */
+    public long getMemoryCacheSize() {
+        return cache.getSize();
+    }
+
+    /**
+     * Adds a tier which keeps values outside the VM heap, in direct memory, so that they count
+     * against neither the heap limit nor the memory budget. Every value put into or read from the
+     * cache is also stored there, in the form written by
+     * {@link #writeValueToDisk(OutputStream, Object)}, so that values evicted from the in-memory
+     * cache can be restored from it without going to disk. For values which are just bytes, such
+     * as images, {@link #readOffHeap(Object, Function)} avoids copying them onto the heap at all.
+     * <p>
+     * Memory is allocated in slabs of 1 MB as needed; values larger than that are not held
+     * off-heap. When the tier runs full, the least recently used values are evicted. Does nothing
+     * if the tier is already enabled.
+     * </p>
+     * 
+     * @param maxBytes
+     *            the maximum amount of direct memory to allocate, at least one slab
+     */
+    public synchronized void enableOffHeapCache(long maxBytes) {
+        if (offHeapCache == null) {
+            offHeapCache = new SlabCache<KeyT>(maxBytes);
+            registerForTrimming();
+        }
+    }
+
+    public boolean isOffHeapCacheEnabled() {
+        return offHeapCache != null;
+    }
+
+    /**
+     * @return the number of bytes the off-heap tier has allocated to values, or 0 if it's disabled
+     */
+    public long getOffHeapCacheSize() {
+        SlabCache<KeyT> slabs = offHeapCache;
+        return slabs == null ? 0 : slabs.getSize();
+    }
+
+    /**
+     * Hands the serialized form of a value held by the off-heap tier to the given function,
+     * without copying it onto the heap, and without promoting it to the in-memory cache. The
+     * buffer is read-only, and only valid during the call, since its memory is reused once the
+     * value is evicted; the function must neither keep it nor pass it on.
+     * <p>
+     * Meant for values which are consumed as bytes anyway, e.g. images which are decoded right
+     * away. Returns null without looking off-heap if the value is held in memory, where
+     * {@link #get(Object)} finds it more cheaply, and doesn't consult the disk cache, so callers
+     * should fall back to {@link #get(Object)} if this returns null. Since that counts the
+     * lookup, only hits are counted here, as memory misses answered by the off-heap tier.
+     * </p>
+     * 
+     * @param key
+     *            the cache key
+     * @param reader
+     *            consumes the buffer, which is positioned at the start of the value
+     * @return whatever the function returned, or null if the value isn't held off-heap
+     */
+    public <T> T readOffHeap(Object key, Function<ByteBuffer, T> reader) {
+        SlabCache<KeyT> slabs = offHeapCache;
+        if (slabs == null || cache.containsKey(key)) {
+            return null;
+        }
+        SlabCache.Entry<KeyT> entry = slabs.acquire(key);
+        if (entry == null) {
+            return null;
+        }
+        try {
+            stats.memoryMisses.increment();
+            stats.offHeapHits.increment();
+            return reader.apply(entry.getBuffer());
+        } finally {
+            slabs.release(entry);
+        }
+    }
+
+    /**
+     * Shrinks the in-memory cache in response to memory pressure, evicting the least recently
+     * used entries first. The disk cache is never touched, so evicted entries can still be read
+     * back from there. The memory budget stays the same, so the cache fills up again as it's
+     * used. Meant to be called from <code>onTrimMemory</code>; see {@link MemoryTrimmer} for a
+     * way to have this done for all caches automatically.
+     * 
+     * @param level
+     *            one of the <code>TRIM_MEMORY_*</code> levels, which determines how much of the
+     *            cache is kept: all of it, half, a quarter, or nothing
+     */
+    public void trimMemory(int level) {
+        if (level >= TRIM_MEMORY_UI_HIDDEN) {
+            // the process may be killed any time now, and the hot keys are about to be trimmed
+            saveHotKeys();
+        }
+        int keepQuarters;
+        if (level >= TRIM_MEMORY_COMPLETE) {
+            keepQuarters = 0;
+        } else if (level >= TRIM_MEMORY_MODERATE) {
+            keepQuarters = 1;
+        } else if (level >= TRIM_MEMORY_BACKGROUND) {
+            keepQuarters = 2;
+        } else if (level >= TRIM_MEMORY_UI_HIDDEN) {
+            return;
+        } else if (level >= TRIM_MEMORY_RUNNING_CRITICAL) {
+            keepQuarters = 1;
+        } else if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            keepQuarters = 2;
+        } else {
+            return;
+        }
+        cache.trimToSize(cache.getSize() / 4 * keepQuarters);
+        SlabCache<KeyT> slabs = offHeapCache;
+        if (slabs != null) {
+            // direct memory counts against the process just the same
+            slabs.trimToSize(slabs.getSize() / 4 * keepQuarters);
+        }
+    }
+
+    /**
+     * Makes {@link MemoryTrimmer} aware of this cache, once it may hold anything worth trimming:
+     * on the first put, or when the disk or off-heap tier is enabled, since reads from those fill
+     * the memory cache. Not done in the constructor, which would let a concurrent trim reach a
+     * cache whose subclass hasn't been constructed yet.
+     */
+    private void registerForTrimming() {
+        if (!isRegisteredForTrimming) {
+            isRegisteredForTrimming = true;
+            MemoryTrimmer.register(this);
+        }
+    }
+
+    /**
+     * Called whenever an entry is evicted from the in-memory cache in order to stay within the
+     * memory budget. Does nothing by default. Note that the entry may still be cached on disk.
+     * Invoked on the thread which caused the eviction.
+     * 
+     * @param key
+     *            the evicted key
+     * @param value
+     *            the evicted value
+     */
+    protected void onEntryEvicted(KeyT key, ValT value) {
+    }
+
+    /**
+     * Called once the disk cache has been sanitized after being enabled, i.e. once all files which
+     * had expired by then have been deleted. Does nothing by default. Invoked on the cache's
+     * background thread.
+     * 
+     * @param bytesReclaimed
+     *            the number of bytes freed
+     * @param entriesReclaimed
+     *            the number of files deleted
+     */
+    protected void onDiskCacheSanitized(long bytesReclaimed, int entriesReclaimed) {
+    }
+
+    /**
+     * Sanitizes the disk cache in the background: loads the disk index (unless the cache has been
+     * accessed in the meantime, which loads it on demand), then removes expired files. Works in
+     * batches, rescheduling itself after each one, so that it doesn't hold up other maintenance
+     * tasks for long.
+     */
+    private final class DiskCacheSanitizer implements Runnable {
+
+        private final DiskIndex index;
+
+        private Iterator<DiskIndex.Entry> entries;
+
+        private File[] legacyFiles;
+
+        private int legacyFilePosition;
+
+        private boolean hasLegacyFiles;
+
+        private long bytesReclaimed;
+
+        private int entriesReclaimed;
+
+        DiskCacheSanitizer(DiskIndex index) {
+            this.index = index;
+        }
+
+        @Override
+        public void run() {
+            if (!isDiskCacheEnabled || index != diskIndex) {
+                // disk cache disabled or relocated
+                return;
+            }
+            if (entries == null) {
+                // usually done already, see loadDiskIndex()
+                index.load();
+                Log.d(name, "sanitize DISK cache");
+                entries = index.snapshot().iterator();
+            }
+            long now = System.currentTimeMillis();
+            if (entries.hasNext()) {
+                for (int i = 0; i < DISK_SANITIZE_BATCH_SIZE && entries.hasNext(); i++) {
+                    DiskIndex.Entry entry = entries.next();
+                    if (entry.isExpired(now) && evictFromDisk(entry)) {
+                        stats.expirations.increment();
+                        bytesReclaimed += entry.size;
+                        entriesReclaimed++;
+                    }
+                }
+                threads.executeMaintenance(this);
+                return;
+            }
+
+            if (legacyFiles == null) {
+                legacyFiles = new File(diskCacheDirectory).listFiles();
+                if (legacyFiles == null) {
+                    legacyFiles = new File[0];
+                }
+                CountingBloomFilter filter = new CountingBloomFilter(legacyFiles.length);
+                for (File file : legacyFiles) {
+                    filter.add(file.getName());
+                }
+                legacyFileFilter = filter;
+            }
+            if (legacyFilePosition < legacyFiles.length) {
+                int end = Math.min(legacyFilePosition + DISK_SANITIZE_BATCH_SIZE,
+                        legacyFiles.length);
+                for (; legacyFilePosition < end; legacyFilePosition++) {
+                    sanitizeLegacyFile(legacyFiles[legacyFilePosition], now);
+                }
+                threads.executeMaintenance(this);
+                return;
+            }
+
+            AbstractCache.this.hasLegacyFiles = hasLegacyFiles;
+            trimDiskCacheIfNeeded();
+            Log.d(name, "DISK cache sanitized, reclaimed " + entriesReclaimed + " files ("
+                    + bytesReclaimed + " bytes)");
+            onDiskCacheSanitized(bytesReclaimed, entriesReclaimed);
+        }
+
+        private void sanitizeLegacyFile(File file, long now) {
+            // only plain files at the top level can be legacy files
+            if (file.getName().startsWith(".") || !file.isFile()) {
+                return;
+            }
+            long size = file.length();
+            if (expiresAt(file.lastModified()) > now) {
+                hasLegacyFiles = true;
+            } else if (file.delete()) {
+                stats.expirations.increment();
+                bytesReclaimed += size;
+                entriesReclaimed++;
+            }
+        }
+    }
+
+    /**
+     * Limits the disk cache to the given number of bytes. Whenever the disk cache grows beyond
+     * that, the least recently used files are deleted in the background until it fits again. By
+     * default the disk cache is unbounded.
+     * 
+     * @param maxBytes
+     *            the disk quota in bytes
+     */
+    public void setMaxDiskCacheSize(long maxBytes) {
+        diskQuota.setMaxSize(maxBytes);
+        trimDiskCacheIfNeeded();
+    }
+
+    public long getMaxDiskCacheSize() {
+        return diskQuota.getMaxSize();
+    }
+
+    /**
+     * Limits the number of files in the disk cache. Works like {@link #setMaxDiskCacheSize(long)}
+     * , and both limits may be used together. By default the number of files is unbounded.
+     * 
+     * @param maxEntries
+     *            the maximum number of files in the disk cache
+     */
+    public void setMaxDiskCacheEntries(int maxEntries) {
+        diskQuota.setMaxEntries(maxEntries);
+        trimDiskCacheIfNeeded();
+    }
+
+    public int getMaxDiskCacheEntries() {
+        return diskQuota.getMaxEntries();
+    }
+
+    /**
+     * Stores values whose disk representation, header included, takes up no more than the given
+     * number of bytes in a few large segment files, rather than in a file each. This spares small
+     * entries the block and inode overhead of a file, as well as the syscalls needed to create,
+     * open and delete one. Larger values are still written to files of their own. Space taken up
+     * by packed entries which have since been removed or replaced is reclaimed in the background,
+     * by moving the remaining entries out of segments which are mostly dead space.
+     * <p>
+     * Packing is disabled by default. Changing this setting only affects values written from now
+     * on; entries already on disk stay where they are.
+     * </p>
+     * 
+     * @param maxBytes
+     *            the size limit for packed entries, at most {@link #MAX_PACKED_ENTRY_SIZE}; 0
+     *            disables packing
+     * @see #DEFAULT_MAX_PACKED_ENTRY_SIZE
+     */
+    public void setMaxPackedEntrySize(int maxBytes) {
+        if (maxBytes < 0 || maxBytes > MAX_PACKED_ENTRY_SIZE) {
+            throw new IllegalArgumentException("packed entry size must be between 0 and "
+                    + MAX_PACKED_ENTRY_SIZE);
+        }
+        this.maxPackedEntrySize = maxBytes;
+    }
+
+    public int getMaxPackedEntrySize() {
+        return maxPackedEntrySize;
+    }
+
+    private void trimDiskCacheIfNeeded() {
+        if (!isDiskCacheEnabled) {
+            return;
+        }
+        DiskIndex index = diskIndex;
+        if (!diskQuota.isExceededBy(index)
+                && index.getNextExpiry() > System.currentTimeMillis()
+                && !index.hasSegmentsToCompact()) {
+            return;
+        }
+        if (diskQuota.claimTrim() && !threads.executeMaintenance(new Runnable() {
+            @Override
+            public void run() {
+                diskQuota.releaseTrim();
+                trimDiskCache();
+            }
+        })) {
+            diskQuota.releaseTrim();
+        }
+    }
+
+    /**
+     * Deletes all expired files, then evicts the least recently used files, a few at a time, until
+     * the disk cache is within its quota again. Finally compacts the pack segments which have
+     * become mostly dead space in the process, or before.
+     */
+    private void trimDiskCache() {
+        DiskIndex index = diskIndex;
+        // expired files go first, they'd have to be deleted anyway
+        while (isDiskCacheEnabled && index == diskIndex) {
+            List<DiskIndex.Entry> expired = index.expired(System.currentTimeMillis(),
+                    DISK_TRIM_BATCH_SIZE);
+            if (expired.isEmpty()) {
+                break;
+            }
+            for (DiskIndex.Entry entry : expired) {
+                if (evictFromDisk(entry)) {
+                    stats.expirations.increment();
+                }
+            }
+        }
+        evictUntilWithinQuota(index);
+        compactPacks(index);
+    }
+
+    private void evictUntilWithinQuota(DiskIndex index) {
+        while (isDiskCacheEnabled && index == diskIndex && diskQuota.isExceededBy(index)) {
+            List<DiskIndex.Entry> eldest = index.eldest(DISK_TRIM_BATCH_SIZE);
+            if (eldest.isEmpty()) {
+                return;
+            }
+            for (DiskIndex.Entry entry : eldest) {
+                if (!diskQuota.isExceededBy(index)) {
+                    return;
+                }
+                if (evictFromDisk(entry)) {
+                    stats.diskEvictions.increment();
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes the file described by the given index entry, unless it has been used or rewritten
+     * since the entry was obtained.
+     * 
+     * @return true if the file was deleted
+     */
+    private boolean evictFromDisk(DiskIndex.Entry entry) {
+        Lock lock = diskLocks.forKey(entry.fileName).writeLock();
+        lock.lock();
+        try {
+            if (diskIndex.get(entry.fileName) != entry) {
+                return false;
+            }
+            Log.d(name, "DISK cache eviction for file " + entry.fileName);
+            deleteFromDisk(entry.fileName);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Deletes the given file, and removes it from the disk index. Packed entries are only removed
+     * from the index; the space they occupy is reclaimed when their segment is compacted.
+     */
+    // must hold the lock for the file; the read lock suffices if the file is known to be invalid
+    private void deleteFromDisk(String fileName) {
+        DiskIndex.Entry entry = diskIndex.get(fileName);
+        if (entry == null || !entry.isPacked()) {
+            diskIndex.getFile(fileName).delete();
+        }
+        diskIndex.remove(fileName);
+    }
+
+    /**
+     * Moves the remaining entries out of the pack segments which are mostly dead space, into the
+     * active segment, then deletes the emptied segments.
+     */
+    private void compactPacks(DiskIndex index) {
+        for (int segment : index.segmentsToCompact()) {
+            Log.d(name, "DISK cache compacting pack segment " + segment);
+            for (DiskIndex.Entry entry : index.entriesInSegment(segment)) {
+                if (!isDiskCacheEnabled || index != diskIndex) {
+                    return;
+                }
+                relocatePacked(index, entry);
+            }
+            index.deleteSegmentIfEmpty(segment);
+        }
+    }
+
+    private void relocatePacked(DiskIndex index, DiskIndex.Entry entry) {
+        Lock lock = diskLocks.forKey(entry.fileName).writeLock();
+        lock.lock();
+        try {
+            if (index != diskIndex) {
+                // the segments belong to a discarded generation
+                return;
+            }
+            DiskIndex.Entry current = index.get(entry.fileName);
+            if (current == null || current.segment != entry.segment
+                    || current.offset != entry.offset) {
+                // removed or rewritten in the meantime
+                return;
+            }
+            PackStore packStore = index.getPackStore();
+            byte[] record = packStore.read(entry.segment, entry.offset, (int) entry.size);
+            long location = packStore.append(record, 0, record.length);
+            index.move(entry.fileName, PackStore.segmentOf(location), PackStore
+                    .offsetOf(location));
+        } catch (IOException e) {
+            // the segment is going away, and the entry with it
+            Log.w(name, "Failed moving packed entry " + entry.fileName + ": " + e.getMessage());
+            index.remove(entry.fileName);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes all entries whose key, in string form, starts with the given prefix, from memory,
+     * disk, and the write-behind queue. Both tiers keep their keys in sorted indexes, so this costs
+     * time proportional to the number of matches rather than the size of the cache, and only
+     * locks the files it actually removes.
+     */
+    void removeAllWithKeyPrefix(final String keyPrefix) {
+        SlabCache<KeyT> slabs = offHeapCache;
+        if (slabs != null) {
+            for (KeyT key : slabs.keysWithPrefix(keyPrefix)) {
+                remove(key);
+            }
+        }
+        if (!isDiskCacheEnabled) {
+            for (KeyT key : cache.keysWithPrefix(keyPrefix)) {
+                remove(key);
+            }
+            return;
+        }
+
+        WriteBehindQueue<PendingWrite<ValT>> queue = writeBehindQueue;
+        if (queue != null) {
+            queue.removeAll(new Predicate<PendingWrite<ValT>>() {
+                @Override
+                public boolean apply(PendingWrite<ValT> pendingWrite) {
+                    return pendingWrite.key.startsWith(keyPrefix);
+                }
+            });
+        }
+
+        for (KeyT key : cache.keysWithPrefix(keyPrefix)) {
+            remove(key);
+        }
+
+        for (DiskIndex.Entry entry : diskIndex.entriesWithKeyPrefix(keyPrefix)) {
+            Lock lock = diskLocks.forKey(entry.fileName).writeLock();
+            lock.lock();
+            try {
+                // the file may have been rewritten for a different key in the meantime
+                DiskIndex.Entry current = diskIndex.get(entry.fileName);
+                if (current != null && current.key.startsWith(keyPrefix)) {
+                    deleteFromDisk(entry.fileName);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * @return whether the top level of the cache directory may still hold files written by
+     *         earlier versions of the cache
+     */
+    boolean hasLegacyFiles() {
+        return hasLegacyFiles;
+    }
+
+    /**
+     * Switches to the disk cache directory which has just been set. Returns right away; the disk
+     * index is loaded and the directory sanitized in the background.
+     */
+    private void startDiskCache() {
+        DiskIndex index, previous;
+        synchronized (generationLock) {
+            previous = diskIndex;
+            File root = new File(diskCacheDirectory);
+            int generation = DiskGenerations.findLatest(root, diskCacheVersion);
+            if (generation < 0 || (isDiskCacheSessionScoped && !isDiskCacheMultiProcess)) {
+                generation++;
+            }
+            File directory = DiskGenerations.getDirectory(root, diskCacheVersion, generation);
+            directory.mkdirs();
+            index = new DiskIndex(directory, threads.maintenanceTasks, isDiskCacheMultiProcess);
+            diskLocks.lockAll();
+            try {
+                diskIndex = index;
+                diskCacheGeneration = generation;
+                // until the sanitizer has looked
+                hasLegacyFiles = true;
+                legacyFileFilter = null;
+                isDiskCacheEnabled = true;
+            } finally {
+                diskLocks.unlockAll();
+            }
+        }
+        if (previous != null) {
+            previous.shutdown();
+        }
+        registerForTrimming();
+        loadDiskIndex(index);
+        threads.getMaintenanceExecutor().execute(new DiskCacheSanitizer(index));
+        sweepDiscardedGenerations(false);
+    }
+
+    /**
+     * Switches the disk cache to a new, empty generation directory, and has the previous one
+     * deleted in the background. Takes all disk locks for the switch itself, so that no file is
+     * written to the previous generation afterwards, but only for as long as it takes to create a
+     * directory.
+     * 
+     * @param isDiscardingLegacyFiles
+     *            whether files written by earlier versions of the cache are to be deleted, too
+     */
+    private void startNewGeneration(boolean isDiscardingLegacyFiles) {
+        DiskIndex previous;
+        synchronized (generationLock) {
+            previous = diskIndex;
+            File root = new File(diskCacheDirectory);
+            int generation = DiskGenerations.findLatest(root, diskCacheVersion) + 1;
+            File directory = DiskGenerations.getDirectory(root, diskCacheVersion, generation);
+            directory.mkdirs();
+            DiskIndex index = new DiskIndex(directory, threads.maintenanceTasks,
+                    isDiskCacheMultiProcess);
+            diskLocks.lockAll();
+            try {
+                diskIndex = index;
+                diskCacheGeneration = generation;
+                if (isDiscardingLegacyFiles) {
+                    hasLegacyFiles = false;
+                }
+            } finally {
+                diskLocks.unlockAll();
+            }
+        }
+        previous.shutdown();
+        loadDiskIndex(diskIndex);
+        Log.d(name, "DISK cache switched to " + diskIndex.getDirectory().getName());
+        sweepDiscardedGenerations(isDiscardingLegacyFiles);
+    }
+
+    /**
+     * In multi-process mode, switches to the latest generation if another process has started a
+     * new one, e.g. by clearing the cache. Unlike {@link #startNewGeneration(boolean)}, this leaves
+     * deleting the previous generation to the process which started the new one.
+     */
+    private void followLatestGeneration() {
+        DiskIndex previous;
+        synchronized (generationLock) {
+            File root = new File(diskCacheDirectory);
+            int generation = DiskGenerations.findLatest(root, diskCacheVersion);
+            if (generation <= diskCacheGeneration) {
+                return;
+            }
+            previous = diskIndex;
+            DiskIndex index = new DiskIndex(DiskGenerations.getDirectory(root, diskCacheVersion,
+                    generation), threads.maintenanceTasks, true);
+            diskLocks.lockAll();
+            try {
+                diskIndex = index;
+                diskCacheGeneration = generation;
+            } finally {
+                diskLocks.unlockAll();
+            }
+        }
+        previous.shutdown();
+        loadDiskIndex(diskIndex);
+        Log.d(name, "DISK cache followed another process to " + diskIndex.getDirectory().getName());
+    }
+
+    /**
+     * Has a newly created disk index read its journal in the background. Until it's done, the
+     * index looks up files which it doesn't know of yet by reading their headers, and nothing is
+     * packed.
+     */
+    private void loadDiskIndex(final DiskIndex index) {
+        threads.executeMaintenance(new Runnable() {
+            @Override
+            public void run() {
+                index.load();
+            }
+        });
+    }
+
+    /**
+     * Deletes everything in the disk cache directory which doesn't belong to the current
+     * generation, in the background.
+     */
+    private void sweepDiscardedGenerations(final boolean includeLegacyFiles) {
+        threads.executeMaintenance(new Runnable() {
+            @Override
+            public void run() {
+                DiskGenerations.Sweeper sweeper;
+                // whichever generation is current by now is the one to keep
+                synchronized (generationLock) {
+                    File current = diskIndex.getDirectory();
+                    sweeper = DiskGenerations.sweeperFor(current.getParentFile(), current,
+                            includeLegacyFiles);
+                }
+                sweeper.start(threads.maintenanceTasks);
+            }
+        });
+    }
+
+    /**
+     * Sets the version of the data in the disk cache, which should be changed whenever
+     * {@link #writeValueToDisk(OutputStream, Object)} starts writing something which earlier
+     * versions of {@link #readValueFromDisk(InputStream, int)} can't read, or vice versa. Entries
+     * written under a different version are never read; they're deleted in the background once the
+     * disk cache is enabled. If it's enabled already, the switch happens right away. Defaults to
+     * {@link #DEFAULT_DISK_CACHE_VERSION}.
+     * 
+     * @param version
+     *            the version, which must not be negative
+     */
+    public void setDiskCacheVersion(int version) {
+        if (version < 0) {
+            throw new IllegalArgumentException("disk cache version must not be negative");
+        }
+        synchronized (generationLock) {
+            if (version == diskCacheVersion) {
+                return;
+            }
+            diskCacheVersion = version;
+        }
+        if (isDiskCacheEnabled) {
+            startNewGeneration(false);
+        }
+    }
+
+    public int getDiskCacheVersion() {
+        return diskCacheVersion;
+    }
+
+    /**
+     * Makes the disk cache last only as long as the process: whenever it's enabled, it starts out
+     * empty, in a new generation directory, and whatever earlier processes cached is deleted in
+     * the background. Must be called before the disk cache is enabled. Off by default, i.e. the
+     * disk cache survives restarts. Ignored in multi-process mode (see
+     * {@link #setDiskCacheMultiProcess(boolean)}), where processes come and go independently.
+     * 
+     * @param isSessionScoped
+     *            whether to discard the disk cache's contents from earlier processes
+     */
+    public void setDiskCacheSessionScoped(boolean isSessionScoped) {
+        this.isDiskCacheSessionScoped = isSessionScoped;
+    }
+
+    public boolean isDiskCacheSessionScoped() {
+        return isDiskCacheSessionScoped;
+    }
+
+    /**
+     * Makes the disk cache safe to share between processes, such as an app's UI process and a
+     * sync service running in a process of its own, provided each of them sets up a cache with
+     * the same name, version and this mode. Off by default. Must be called before the disk cache
+     * is enabled.
+     * <p>
+     * In this mode, files are written under a temporary name and renamed into place once
+     * complete, so no process ever reads a partially written file. The disk index is kept in sync
+     * through its journal, which the processes lock before appending to it, and which every
+     * process checks for the others' changes on a memory miss; that costs a few file system
+     * lookups when nothing has changed. So whatever one process has downloaded is a disk hit for
+     * the others. Loads of the same key which are running in different processes at the same
+     * time are not coordinated, though; the value written last wins.
+     * </p>
+     * <p>
+     * Clearing the cache discards the disk cache for all processes, but only the memory cache of
+     * the calling process. Packing small values (see {@link #setMaxPackedEntrySize(int)}) and
+     * session scope (see {@link #setDiskCacheSessionScoped(boolean)}) aren't available in this
+     * mode.
+     * </p>
+     * 
+     * @param isMultiProcess
+     *            whether other processes may use the disk cache at the same time
+     */
+    public void setDiskCacheMultiProcess(boolean isMultiProcess) {
+        this.isDiskCacheMultiProcess = isMultiProcess;
+    }
+
+    public boolean isDiskCacheMultiProcess() {
+        return isDiskCacheMultiProcess;
+    }
+
+    /**
+     * Returns the single background thread which performs disk cache housekeeping for this cache,
+     * such as compacting the disk index.
+     */
+    ExecutorService getMaintenanceExecutor() {
+        return threads.getMaintenanceExecutor();
+    }
+
+    /**
+     * Enable caching to the phone's internal storage or SD card. Only creates the cache directory
+     * if necessary, so this is safe to call on the UI thread: reading the disk index and deleting
+     * expired files happens in the background (see {@link #onDiskCacheSanitized(long, int)}), and
+     * the cache can be used right away.
+     * 
+     * @param context
+     *            the current context
+     * @param storageDevice
+     *            where to store the cached files, either {@link #DISK_CACHE_INTERNAL} or
+     *            {@link #DISK_CACHE_SDCARD})
+     * @return
+     */
+    public boolean enableDiskCache(Context context, int storageDevice) {
+        Context appContext = context.getApplicationContext();
+
+        String rootDir = null;
+        if (storageDevice == DISK_CACHE_SDCARD
+                && Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState())) {
+            // SD-card available
+            rootDir = Environment.getExternalStorageDirectory().getAbsolutePath()
+                    + "/Android/data/" + appContext.getPackageName() + "/cache";
+        } else {
+            File internalCacheDir = appContext.getCacheDir();
+            // apparently on some configurations this can come back as null
+            if (internalCacheDir == null) {
+                return (isDiskCacheEnabled = false);
+            }
+            rootDir = internalCacheDir.getAbsolutePath();
+        }
+
+        setRootDir(rootDir);
+
+        File outFile = new File(diskCacheDirectory);
+        if (outFile.mkdirs()) {
+            File nomedia = new File(diskCacheDirectory, ".nomedia");
+            try {
+                nomedia.createNewFile();
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Failed creating .nomedia file");
+            }
+        }
+
+        if (!outFile.exists()) {
+            Log.w(LOG_TAG, "Failed creating disk cache directory " + diskCacheDirectory);
+            return (isDiskCacheEnabled = false);
+        }
+
+        Log.d(name, "enabled write through to " + diskCacheDirectory);
+        startDiskCache();
+
+        return isDiskCacheEnabled;
+    }
+
+    private void setRootDir(String rootDir) {
+        this.diskCacheDirectory = rootDir + "/cachefu/"
+                + IgnitedStrings.underscore(name.replaceAll("\\s", ""));
+    }
+
+    /**
+     * Only meaningful if disk caching is enabled. See {@link #enableDiskCache}. Cache files live
+     * in a generation directory below this one.
+     * 
+     * @return the full absolute path to the directory where files are cached, if the disk cache is
+     *         enabled, otherwise null
+     */
+    public String getDiskCacheDirectory() {
+        return diskCacheDirectory;
+    }
+
+    /**
+     * Only meaningful if disk caching is enabled. See {@link #enableDiskCache}. Turns a cache key
+     * into the file name that will be used to persist the value to disk. Subclasses must implement
+     * this, ideally using {@link CacheHelper#getFileNameFromKey(String)}. Since this is called on
+     * every disk cache access, it should be cheap. It need not be collision free, but collisions
+     * make the affected keys evict each other from the disk cache.
+     * 
+     * @param key
+     *            the cache key
+     * @return the file name
+     */
+    public abstract String getFileNameForKey(KeyT key);
+
+    /**
+     * Only meaningful if disk caching is enabled. See {@link #enableDiskCache}. Returns the name
+     * under which an earlier version of this cache stored the given key, so that files written by
+     * it can be migrated. Only consulted while such files exist. Returns null by default, which
+     * means there's nothing to migrate.
+     * 
+     * @param key
+     *            the cache key
+     * @return the legacy file name, or null
+     */
+    protected String getLegacyFileNameForKey(KeyT key) {
+        return null;
+    }
+
+    /**
+     * Only meaningful if disk caching is enabled. See {@link #enableDiskCache}. Turns the string
+     * form of a key, as returned by its <code>toString()</code>, back into the key. Needed to
+     * pre-populate the memory cache with keys recorded in an earlier run (see {@link #warmUp()}).
+     * Returns null by default, which means the cache can't be warmed up.
+     * 
+     * @param key
+     *            the string form of the key
+     * @return the cache key, or null
+     */
+    protected KeyT getKeyFromString(String key) {
+        return null;
+    }
+
+    /**
+     * Pre-populates the memory cache with the entries which were read most often before, so that
+     * the first reads after a restart are memory hits rather than disk reads. The cache records
+     * which keys those are every few minutes while it's used, when the app's UI is hidden (see
+     * {@link #trimMemory(int)}), and when it's closed. Only meaningful if disk caching is enabled,
+     * and the subclass implements {@link #getKeyFromString(String)}.
+     * <p>
+     * Returns right away. The entries are read from disk on the cache's background thread, which
+     * runs at low priority, and only until the memory cache is full.
+     * </p>
+     */
+    public void warmUp() {
+        if (!isDiskCacheEnabled) {
+            return;
+        }
+        final DiskIndex index = diskIndex;
+        final File directory = index.getDirectory();
+        threads.getMaintenanceExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                warmUp(index, directory);
+            }
+        });
+    }
+
+    private void warmUp(DiskIndex index, File directory) {
+        List<String> hotKeys;
+        try {
+            hotKeys = HotKeyManifest.read(directory);
+        } catch (IOException e) {
+            Log.w(name, "Failed reading hot keys: " + e.getMessage());
+            return;
+        }
+        int loaded = 0;
+        refreshSharedDiskCache();
+        for (String keyString : hotKeys) {
+            if (!isDiskCacheEnabled || index != diskIndex
+                    || cache.getSize() >= cache.getMaxSize()) {
+                break;
+            }
+            KeyT key = getKeyFromString(keyString);
+            if (key == null) {
+                break;
+            }
+            String fileName = getFileNameForKey(key);
+            if (!cache.containsKey(key) && mayBeOnDisk(fileName)
+                    && readThrough(key, fileName) != null) {
+                loaded++;
+            }
+        }
+        Log.d(name, "warmed up memory cache with " + loaded + " of " + hotKeys.size()
+                + " hot keys");
+    }
+
+    private void saveHotKeysIfDue(long now) {
+        if (now - hotKeysSavedAt >= HOT_KEY_SAVE_INTERVAL) {
+            saveHotKeys();
+        }
+    }
+
+    /**
+     * Records the keys read most often in the hot-key manifest. The keys are determined right
+     * away, but written on the cache's background thread.
+     */
+    private void saveHotKeys() {
+        if (!isDiskCacheEnabled || !isHotKeySaveScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        hotKeysSavedAt = System.currentTimeMillis();
+        final List<String> hotKeys = getHotKeys();
+        if (hotKeys == null) {
+            isHotKeySaveScheduled.set(false);
+            return;
+        }
+        final File directory = diskIndex.getDirectory();
+        if (!threads.executeMaintenance(new Runnable() {
+            @Override
+            public void run() {
+                isHotKeySaveScheduled.set(false);
+                writeHotKeys(directory, hotKeys);
+            }
+        })) {
+            isHotKeySaveScheduled.set(false);
+        }
+    }
+
+    /**
+     * @return the hottest keys in string form, or null if there's nothing worth recording
+     */
+    private List<String> getHotKeys() {
+        List<KeyT> hottest = cache.hottestKeys(HOT_KEY_COUNT);
+        if (hottest.isEmpty() || getKeyFromString(hottest.get(0).toString()) == null) {
+            // keep whatever was recorded before
+            return null;
+        }
+        List<String> hotKeys = new ArrayList<String>(hottest.size());
+        for (KeyT key : hottest) {
+            hotKeys.add(key.toString());
+        }
+        return hotKeys;
+    }
+
+    private void writeHotKeys(File directory, List<String> hotKeys) {
+        try {
+            HotKeyManifest.write(directory, hotKeys);
+        } catch (IOException e) {
+            Log.w(name, "Failed writing hot keys: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Only meaningful if disk caching is enabled. See {@link #enableDiskCache}. Restores a value
+     * previously persisted to the disk cache. The stream is positioned at the start of the data
+     * written by {@link #writeValueToDisk(OutputStream, Object)}, and ends after exactly
+     * <code>length</code> bytes. The checksum is verified after this method returns, so
+     * implementations may as well read the full payload.
+     * 
+     * @param istream
+     *            the stream holding the cached value (buffered, and not to be closed)
+     * @param length
+     *            the exact number of bytes available from the stream
+     * @return the cached value
+     * @throws IOException
+     */
+    protected abstract ValT readValueFromDisk(InputStream istream, int length) throws IOException;
+
+    /**
+     * Only meaningful if disk caching is enabled. See {@link #enableDiskCache}. Persists a value to
+     * the disk cache. The cache takes care of framing the data with a header, so implementations
+     * only need to write the value itself.
+     * 
+     * @param ostream
+     *            the file output stream (buffered, and not to be closed)
+     * @param value
+     *            the cache value to persist
+     * @throws IOException
+     */
+    protected abstract void writeValueToDisk(OutputStream ostream, ValT value) throws IOException;
+
+    /**
+     * Tells whether it's worth compressing a value with the cache's codec (see
+     * {@link #setCodec(Codec)}), which it usually isn't for data which is compressed already,
+     * such as most image formats. Values for which this returns false are stored as they are.
+     * Returns true by default.
+     * 
+     * @param value
+     *            the value about to be written to disk
+     */
+    protected boolean isCompressible(ValT value) {
+        return true;
+    }
+
+    // must hold the write lock for the file
+    private void cacheToDisk(String fileName, String key, ValT value, PayloadBuffer data,
+            long writtenAt, long expiresAt, boolean flushIndex) {
+        File file = diskIndex.getFile(fileName);
+        try {
+            // pack segments are appended to in place, which other processes could observe, and
+            // can't be used before the index has opened them
+            int maxPackedSize = isDiskCacheMultiProcess ? 0 : maxPackedEntrySize;
+            if (maxPackedSize > 0 && diskIndex.isLoaded()
+                    && packToDisk(fileName, key, value, data, writtenAt, expiresAt,
+                            maxPackedSize, flushIndex)) {
+                return;
+            }
+
+            long fileSize = writeToDisk(file, key, value, data, writtenAt, expiresAt);
+
+            diskIndex.put(fileName, key, fileSize, writtenAt, expiresAt, flushIndex);
+        } catch (IOException e) {
+            e.printStackTrace();
+            file.delete();
+            // the index may still point at an older value
+            diskIndex.remove(fileName);
+        }
+    }
+
+    /**
+     * Encodes a value in memory, and appends it to the active pack segment, provided it fits into
+     * the given number of bytes. Encoding stops as soon as it's clear the value doesn't fit.
+     * 
+     * @return false if the value is too large to be packed, in which case nothing was written
+     */
+    private boolean packToDisk(String fileName, String key, ValT value, PayloadBuffer data,
+            long writtenAt, long expiresAt, int maxSize, boolean flushIndex) throws IOException {
+        long startNanos = System.nanoTime();
+        Codec codec = getCodecFor(value);
+        EntryHeader header = new EntryHeader(key, writtenAt, expiresAt, codec.getId());
+        if (header.getSize() >= maxSize) {
+            return false;
+        }
+        RecordBuffer record = new RecordBuffer(maxSize, header.getSize());
+        try {
+            header = writePayload(record, header, codec, value, data);
+        } catch (IOException e) {
+            if (record.isOverflowed) {
+                return false;
+            }
+            throw e;
+        }
+        if (record.isOverflowed) {
+            // the exception was swallowed along the way
+            return false;
+        }
+        header.toByteBuffer().get(record.bytes, 0, header.getSize());
+
+        DiskIndex.Entry previous = diskIndex.get(fileName);
+        long location = diskIndex.getPackStore().append(record.bytes, 0, record.length);
+        diskIndex.put(fileName, key, record.length, writtenAt, expiresAt, PackStore
+                .segmentOf(location), PackStore.offsetOf(location), flushIndex);
+        if (previous != null && !previous.isPacked()) {
+            diskIndex.getFile(fileName).delete();
+        }
+        stats.diskWrites.recordSince(startNanos);
+        return true;
+    }
+
+    private Codec getCodecFor(ValT value) {
+        return isCompressible(value) ? this.codec : Codecs.IDENTITY;
+    }
+
+    /**
+     * Writes a cache file: a placeholder header, then the payload, then the real header, which
+     * can only be computed after the payload has been written. The file is written under a
+     * temporary name and then renamed, replacing any previous version of it, which buffers
+     * mapped by {@link #getBuffer(Object)} keep seeing, since it's never written to again. A
+     * file which is never completed (because the process died) is left under its temporary name.
+     * 
+     * @return the size of the file
+     */
+    private long writeToDisk(File file, String key, ValT value, PayloadBuffer data,
+            long writtenAt, long expiresAt) throws IOException {
+        long startNanos = System.nanoTime();
+        // other processes don't respect our locks, so the name is unique to this process, in
+        // case another one writes the file, too
+        File target = new File(file.getPath() + "." + Process.myPid()
+                + DiskIndex.TMP_FILE_SUFFIX);
+        FileOutputStream fileStream;
+        try {
+            fileStream = new FileOutputStream(target);
+        } catch (FileNotFoundException e) {
+            // first file in its shard
+            file.getParentFile().mkdir();
+            fileStream = new FileOutputStream(target);
+        }
+        boolean isWritten = false;
+        try {
+            Codec codec = getCodecFor(value);
+            EntryHeader header = new EntryHeader(key, writtenAt, expiresAt, codec.getId());
+            fileStream.write(new byte[header.getSize()]);
+
+            header = writePayload(new BufferedOutputStream(fileStream), header, codec, value,
+                    data);
+            fileStream.getChannel().write(header.toByteBuffer(), 0);
+            isWritten = true;
+            return header.getFileSize();
+        } finally {
+            fileStream.close();
+            if (!isWritten) {
+                target.delete();
+            } else if (!target.renameTo(file)) {
+                target.delete();
+                throw new IOException("failed renaming " + target);
+            }
+            stats.diskWrites.recordSince(startNanos);
+        }
+    }
+
+    /**
+     * Encodes a value using the given codec, and writes the result to the given stream, which is
+     * flushed but not closed.
+     * 
+     * @param data
+     *            the value as written by {@link #writeValueToDisk(OutputStream, Object)}, if it
+     *            has been serialized already, otherwise null
+     * @return the given header, completed with the lengths and checksum of the payload
+     */
+    private EntryHeader writePayload(OutputStream ostream, EntryHeader header, Codec codec,
+            ValT value, PayloadBuffer data) throws IOException {
+        CheckedOutputStream checkedStream = new CheckedOutputStream(ostream, new CRC32());
+        // DataOutputStreams only for counting the payload and value bytes
+        DataOutputStream payloadStream = new DataOutputStream(checkedStream);
+        DataOutputStream valueStream = payloadStream;
+        if (codec != Codecs.IDENTITY) {
+            valueStream = new DataOutputStream(codec.encode(new UnclosableOutputStream(
+                    payloadStream)));
+        }
+        try {
+            if (data != null) {
+                valueStream.write(data.array(), 0, data.size());
+            } else {
+                writeValueToDisk(valueStream, value);
+            }
+        } finally {
+            // codecs may hold native resources, which closing releases
+            if (valueStream != payloadStream) {
+                valueStream.close();
+            }
+        }
+        payloadStream.flush();
+
+        return header.withPayload(valueStream.size(), payloadStream.size(), (int) checkedStream
+                .getChecksum().getValue());
+    }
+
+    /**
+     * Reads and verifies the record of an index entry, from its pack segment or its file.
+     * 
+     * @param data
+     *            receives the value as written by {@link #writeValueToDisk(OutputStream, Object)}
+     *            if not null, so that it needn't be serialized again for the off-heap tier
+     * @return the value, or null if the entry has expired
+     * @throws CorruptEntryException
+     *             if the record is malformed, truncated, or fails the checksum test
+     * @throws KeyCollisionException
+     *             if the record holds the value of a different key
+     */
+    private ValT readFromDisk(DiskIndex.Entry entry, String key, PayloadBuffer data)
+            throws IOException {
+        long startNanos = System.nanoTime();
+        try {
+            if (entry.isPacked()) {
+                byte[] record = diskIndex.getPackStore().read(entry.segment, entry.offset,
+                        (int) entry.size);
+                return readRecord(new ByteArrayInputStream(record), record.length, key, data);
+            }
+            FileInputStream fileStream = new FileInputStream(diskIndex.getFile(entry.fileName));
+            try {
+                return readRecord(new BufferedInputStream(fileStream), fileStream.getChannel()
+                        .size(), key, data);
+            } finally {
+                fileStream.close();
+            }
+        } finally {
+            stats.diskReads.recordSince(startNanos);
+        }
+    }
+
+    /**
+     * Reads and verifies a record, i.e. a header followed by its payload.
+     * 
+     * @param recordSize
+     *            the number of bytes available from the stream
+     * @param data
+     *            see {@link #readFromDisk(DiskIndex.Entry, String, PayloadBuffer)}
+     * @return the value, or null if the record has expired
+     */
+    private ValT readRecord(InputStream istream, long recordSize, String key, PayloadBuffer data)
+            throws IOException {
+        EntryHeader header = readHeader(istream, recordSize, key);
+        if (header == null) {
+            return null;
+        }
+
+        BoundedInputStream payloadStream = new BoundedInputStream(istream, header.payloadLength);
+        CheckedInputStream checkedStream = new CheckedInputStream(payloadStream, new CRC32());
+        Codec codec = getCodec(header);
+        InputStream valueStream = codec == Codecs.IDENTITY ? checkedStream : codec
+                .decode(checkedStream);
+        ValT value;
+        try {
+            // values larger than a slab can't be held off-heap anyway
+            if (data != null && header.valueLength <= SlabCache.SLAB_SIZE) {
+                try {
+                    data.readFully(valueStream, header.valueLength);
+                } catch (EOFException e) {
+                    throw new CorruptEntryException("truncated value");
+                }
+                value = readValueFromDisk(new ByteArrayInputStream(data.array(), 0, data.size()),
+                        data.size());
+            } else {
+                value = readValueFromDisk(valueStream, header.valueLength);
+            }
+        } finally {
+            if (valueStream != checkedStream) {
+                valueStream.close();
+            }
+        }
+        // the checksum covers the whole payload, regardless of how much of it was consumed
+        byte[] skipBuffer = null;
+        while (payloadStream.remaining() > 0) {
+            if (skipBuffer == null) {
+                skipBuffer = new byte[1024];
+            }
+            if (checkedStream.read(skipBuffer) == -1) {
+                break;
+            }
+        }
+        if ((int) checkedStream.getChecksum().getValue() != header.checksum) {
+            throw new CorruptEntryException("checksum mismatch");
+        }
+        return value;
+    }
+
+    /**
+     * Reads a record's header and checks it against the record's size and the key.
+     * 
+     * @param istream
+     *            the stream to read the header from, which must be positioned at the start of the
+     *            record
+     * @param recordSize
+     *            the size of the record, i.e. of the file or of the packed entry
+     * @return the header, or null if the record has expired
+     */
+    private EntryHeader readHeader(InputStream istream, long recordSize, String key)
+            throws IOException {
+        EntryHeader header = EntryHeader.read(istream);
+        if (!header.key.equals(key)) {
+            throw new KeyCollisionException(key + " collides with " + header.key);
+        }
+        if (header.isExpired(System.currentTimeMillis())) {
+            return null;
+        }
+        if (recordSize != header.getFileSize()) {
+            throw new CorruptEntryException("expected " + header.getFileSize() + " bytes, found "
+                    + recordSize);
+        }
+        return header;
+    }
+
+    /**
+     * Like {@link #readFromDisk(DiskIndex.Entry, String, PayloadBuffer)}, but returns the verified payload
+     * instead of decoding it. Payloads of at least {@link #MAPPED_READ_THRESHOLD} bytes are memory
+     * mapped rather than read; packed payloads are always read.
+     */
+    private ByteBuffer readBufferFromDisk(DiskIndex.Entry entry, String key) throws IOException {
+        long startNanos = System.nanoTime();
+        try {
+            if (entry.isPacked()) {
+                byte[] record = diskIndex.getPackStore().read(entry.segment, entry.offset,
+                        (int) entry.size);
+                EntryHeader header = readHeader(new ByteArrayInputStream(record), record.length,
+                        key);
+                if (header == null) {
+                    return null;
+                }
+                return verifyPayload(ByteBuffer.wrap(record, header.getSize(),
+                        header.payloadLength).slice(), header);
+            }
+
+            FileInputStream fileStream = new FileInputStream(diskIndex.getFile(entry.fileName));
+            try {
+                FileChannel channel = fileStream.getChannel();
+                // only the header goes through this one, so keep it small
+                EntryHeader header = readHeader(new BufferedInputStream(fileStream, 512), channel
+                        .size(), key);
+                if (header == null) {
+                    return null;
+                }
+
+                ByteBuffer payload;
+                // encoded payloads are decoded into the heap anyway, so there's no point in
+                // mapping
+                if (header.codecId == Codecs.IDENTITY.getId()
+                        && header.payloadLength >= MAPPED_READ_THRESHOLD) {
+                    payload = channel.map(FileChannel.MapMode.READ_ONLY, header.getSize(),
+                            header.payloadLength);
+                } else {
+                    payload = ByteBuffer.allocate(header.payloadLength);
+                    while (payload.hasRemaining()) {
+                        if (channel.read(payload, header.getSize() + payload.position()) == -1) {
+                            throw new CorruptEntryException("truncated payload");
+                        }
+                    }
+                    payload.flip();
+                }
+                return verifyPayload(payload, header);
+            } finally {
+                // mappings outlive the channel they were created from
+                fileStream.close();
+            }
+        } finally {
+            stats.diskReads.recordSince(startNanos);
+        }
+    }
+
+    /**
+     * Checks a payload against its header's checksum, and decodes it if necessary.
+     * 
+     * @return a read-only buffer holding the value
+     */
+    private ByteBuffer verifyPayload(ByteBuffer payload, EntryHeader header) throws IOException {
+        Codec codec = getCodec(header);
+        if (checksumOf(payload) != header.checksum) {
+            throw new CorruptEntryException("checksum mismatch");
+        }
+        if (codec != Codecs.IDENTITY) {
+            payload = decode(codec, payload, header.valueLength);
+        }
+        return payload.asReadOnlyBuffer();
+    }
+
+    // the payload must be backed by an array
+    private static ByteBuffer decode(Codec codec, ByteBuffer payload, int valueLength)
+            throws IOException {
+        byte[] value = new byte[valueLength];
+        InputStream valueStream = codec.decode(new ByteArrayInputStream(payload.array(),
+                payload.arrayOffset() + payload.position(), payload.remaining()));
+        try {
+            new DataInputStream(valueStream).readFully(value);
+        } finally {
+            valueStream.close();
+        }
+        return ByteBuffer.wrap(value);
+    }
+
+    private static int checksumOf(ByteBuffer buffer) {
+        CRC32 crc = new CRC32();
+        if (buffer.hasArray()) {
+            crc.update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer
+                    .remaining());
+        } else {
+            // CRC32 can't read from a buffer directly, so feed it in chunks
+            ByteBuffer source = buffer.duplicate();
+            byte[] chunk = new byte[Math.min(8192, source.remaining())];
+            while (source.hasRemaining()) {
+                int length = Math.min(chunk.length, source.remaining());
+                source.get(chunk, 0, length);
+                crc.update(chunk, 0, length);
+            }
+        }
+        return (int) crc.getValue();
+    }
+
+    private long getExpirationInMillis() {
+        return expirationInMinutes * 60 * 1000;
+    }
+
+    private long expiresAt(long writtenAt) {
+        return writtenAt + getExpirationInMillis();
+    }
+
+    /**
+     * Looks up the expiration time the given key was last cached with, even if its entry has
+     * expired already, without counting as an access.
+     * 
+     * @return the entry's expiration time in milliseconds, or the cache's if there's no entry
+     */
+    private long getExpirationInMillis(KeyT key) {
+        MemoryCache.Node<KeyT, ValT> node = cache.peekNode(key);
+        if (node != null) {
+            return node.expiresAt - node.writtenAt;
+        }
+        DiskIndex index = diskIndex;
+        if (isDiskCacheEnabled && index != null) {
+            DiskIndex.Entry entry = index.get(getFileNameForKey(key));
+            if (entry != null && entry.key.equals(key.toString())) {
+                return entry.expiresAt - entry.writtenAt;
+            }
+        }
+        return getExpirationInMillis();
+    }
+
+    /**
+     * Reads a value from the cache by first probing the in-memory cache. If not found, the the disk
+     * cache will be probed. If it's a hit, the entry is written back to memory and returned.
+     * 
+     * @param elementKey
+     *            the cache key
+     * @return the cached value, or null if element was not cached
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public ValT get(Object elementKey) {
+        KeyT key = (KeyT) elementKey;
+        MemoryCache.Node<KeyT, ValT> node = cache.getNode(key);
+        if (node != null) {
+            stats.memoryHits.increment();
+            loads.refreshIfStale(key, node.writtenAt, node.expiresAt);
+            return node.value;
+        }
+        stats.memoryMisses.increment();
+
+        ValT value;
+
+        String fileName = getFileNameForKey(key);
+        SlabCache<KeyT> slabs = offHeapCache;
+        if (slabs != null) {
+            value = readOffHeapThrough(slabs, key, fileName);
+            if (value != null) {
+                stats.offHeapHits.increment();
+                return value;
+            }
+            stats.offHeapMisses.increment();
+        }
+
+        if (!isDiskCacheEnabled) {
+            return null;
+        }
+
+        saveHotKeysIfDue(System.currentTimeMillis());
+        refreshSharedDiskCache();
+
+        // memory miss, try reading from disk
+        value = mayBeOnDisk(fileName) ? readThrough(key, fileName) : null;
+        if (value == null && hasLegacyFiles) {
+            value = migrateLegacyFile(key, fileName);
+        }
+        if (value != null) {
+            stats.diskHits.increment();
+        } else {
+            stats.diskMisses.increment();
+        }
+        return value;
+    }
+
+    /**
+     * Decides cheaply, without touching the file system or taking any locks, whether the given
+     * file may be in the disk cache. A negative answer is definite, so callers can skip looking
+     * for the file altogether. In multi-process mode, call {@link #refreshSharedDiskCache()}
+     * first.
+     */
+    private boolean mayBeOnDisk(String fileName) {
+        if (diskIndex.mightContain(fileName)) {
+            return true;
+        }
+        WriteBehindQueue<PendingWrite<ValT>> queue = writeBehindQueue;
+        if (queue != null && queue.peek(fileName) != null) {
+            return true;
+        }
+        stats.diskFilterSkips.increment();
+        return false;
+    }
+
+    /**
+     * In multi-process mode, catches up with what the other processes have written to the disk
+     * cache, which takes a few file system lookups; does nothing otherwise. Reads call this once,
+     * up front. It must never be called while holding a disk lock, since following another
+     * process to a new generation takes all of them.
+     */
+    private void refreshSharedDiskCache() {
+        if (!isDiskCacheMultiProcess) {
+            return;
+        }
+        File next = DiskGenerations.getDirectory(new File(diskCacheDirectory), diskCacheVersion,
+                diskCacheGeneration + 1);
+        if (next.exists()) {
+            followLatestGeneration();
+        } else {
+            diskIndex.refresh();
+        }
+    }
+
+    private ValT readOffHeapThrough(SlabCache<KeyT> slabs, KeyT key, String fileName) {
+        // the same lock as for disk reads, so that a value can't be promoted to memory while a
+        // newer one is being put
+        Lock lock = diskLocks.forKey(fileName).readLock();
+        lock.lock();
+        try {
+            SlabCache.Entry<KeyT> entry = slabs.acquire(key);
+            if (entry == null) {
+                return null;
+            }
+            ValT value;
+            try {
+                ByteBuffer data = entry.getBuffer();
+                value = readValueFromDisk(new ByteBufferInputStream(data), data.remaining());
+            } catch (IOException e) {
+                e.printStackTrace();
+                slabs.remove(key);
+                return null;
+            } finally {
+                slabs.release(entry);
+            }
+            if (value != null) {
+                cache.put(key, value, entry.writtenAt, entry.expiresAt);
+                loads.refreshIfStale(key, entry.writtenAt, entry.expiresAt);
+            }
+            return value;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Puts a value into the in-memory cache, and the off-heap tier if it's enabled. Must hold the
+     * write lock for the key's file, or the read lock if the value was just read from disk.
+     * 
+     * @param data
+     *            the serialized value for the off-heap tier (see
+     *            {@link #serializeForOffHeap(Object)}), or null to have it serialized here
+     */
+    private ValT cacheInMemory(KeyT key, ValT value, PayloadBuffer data, long writtenAt,
+            long expiresAt) {
+        SlabCache<KeyT> slabs = offHeapCache;
+        if (slabs != null) {
+            if (data == null) {
+                data = serializeForOffHeap(value);
+            }
+            if (data != null) {
+                slabs.put(key, data.array(), data.size(), writtenAt, expiresAt);
+            } else {
+                slabs.remove(key);
+            }
+        }
+        return cache.put(key, value, writtenAt, expiresAt);
+    }
+
+    /**
+     * Serializes a value using {@link #writeValueToDisk(OutputStream, Object)} if the off-heap
+     * tier is enabled, which holds values in that form. Writing the value to disk can then reuse
+     * the result rather than serialize the value once more.
+     * 
+     * @return the serialized value, or null if there is no off-heap tier, or serializing failed
+     */
+    private PayloadBuffer serializeForOffHeap(ValT value) {
+        if (offHeapCache == null) {
+            return null;
+        }
+        PayloadBuffer data = new PayloadBuffer();
+        try {
+            writeValueToDisk(data, value);
+            return data;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private ValT readThrough(KeyT key, String fileName) {
+        Lock lock = diskLocks.forKey(fileName).readLock();
+        lock.lock();
+        try {
+            return readThroughLocked(key, fileName);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // must hold the read lock for the file
+    private ValT readThroughLocked(KeyT key, String fileName) {
+        WriteBehindQueue<PendingWrite<ValT>> queue = writeBehindQueue;
+        PendingWrite<ValT> pendingWrite = queue == null ? null : queue.peek(fileName);
+        if (pendingWrite != null) {
+            // the value was evicted from memory before it made it to disk
+            cacheInMemory(key, pendingWrite.value, pendingWrite.data, pendingWrite.writtenAt,
+                    pendingWrite.expiresAt);
+            return pendingWrite.value;
+        }
+
+        DiskIndex.Entry entry = diskIndex.get(fileName);
+        if (entry == null) {
+            // cache miss, which the disk index's filter failed to predict
+            stats.diskFilterFalsePositives.increment();
+            return null;
+        }
 
-    private String name;
+        // concurrent readers would come to the same conclusions about expired or corrupt
+        // files, and writers are excluded, so it's safe to delete them while only holding the
+        // read lock
+        if (entry.isExpired(System.currentTimeMillis())) {
+            stats.expirations.increment();
+            deleteFromDisk(fileName);
+            return null;
+        }
 
-    private long expirationInMinutes;
+        // the off-heap tier takes the value's bytes as they are on disk
+        PayloadBuffer data = null;
+        if (offHeapCache != null) {
+            data = new PayloadBuffer();
+            data.isFilled = false;
+        }
+        ValT value;
+        try {
+            value = readFromDisk(entry, key.toString(), data);
+        } catch (KeyCollisionException e) {
+            // the file is fine, it just belongs to another key
+            return null;
+        } catch (FileNotFoundException e) {
+            // the index was out of sync with the directory
+            diskIndex.remove(fileName);
+            return null;
+        } catch (CorruptEntryException e) {
+            Log.w(name, "DISK cache file " + fileName + " is corrupt: " + e.getMessage());
+            deleteFromDisk(fileName);
+            return null;
+        } catch (IOException e) {
+            // treat decoding errors as a cache miss
+            e.printStackTrace();
+            return null;
+        }
+        if (value == null) {
+            // expired after all, the index entry was stale
+            stats.expirations.increment();
+            deleteFromDisk(fileName);
+            return null;
+        }
+        diskIndex.touch(fileName);
+        // still under the read lock, so a concurrent put of a newer value (which must first
+        // acquire the write lock) can't be overwritten by the value we just read
+        cacheInMemory(key, value, data != null && data.isFilled ? data : null, entry.writtenAt,
+                entry.expiresAt);
+        loads.refreshIfStale(key, entry.writtenAt, entry.expiresAt);
+        return value;
+    }
 
     /**
-     * Creates a new cache instance.
+     * Reads a value from the cache, and if it's not cached, loads it using the given
+     * {@link Loader} and caches it. If several threads ask for the same missing key at the same
+     * time, only the first one invokes the loader, while the others wait for its result. Loading
+     * happens on the calling thread, so this blocks, and must not be called on the UI thread
+     * unless the value is known to be cached. If the key's previous value was cached with an
+     * expiration time of its own (see {@link #put(Object, Object, long)}) and is still known to
+     * the cache, the loaded value is cached with that same expiration time.
      * 
-     * @param name
-     *            a human readable identifier for this cache. Note that this value will be used to
-     *            derive a directory name if the disk cache is enabled, so don't get too creative
-     *            here (camel case names work great)
-     * @param initialCapacity
-     *            the initial element size of the cache
-     * @param expirationInMinutes
-     *            time in minutes after which elements will be purged from the cache
-     * @param maxConcurrentThreads
-     *            how many threads you think may at once access the cache; this need not be an exact
-     *            number, but it helps in fragmenting the cache properly
+     * @param key
+     *            the cache key
+     * @param loader
+     *            produces the value on a cache miss
+     * @return the cached or loaded value, or null if the loader returned null
+     * @throws ExecutionException
+     *             if the loader failed, which may have happened on another thread; the cause is
+     *             the exception the loader threw
      */
-    public AbstractCache(String name, int initialCapacity, long expirationInMinutes,
-            int maxConcurrentThreads) {
-
-        this.name = name;
-        this.expirationInMinutes = expirationInMinutes;
+    public ValT get(final KeyT key, final Loader<KeyT, ValT> loader) throws ExecutionException {
+        // looked up first, since reading an expired entry drops it
+        final long expirationInMillis = getExpirationInMillis(key);
+        ValT value = get(key);
+        if (value != null) {
+            return value;
+        }
 
-        MapMaker mapMaker = new MapMaker();
-        mapMaker.initialCapacity(initialCapacity);
-        mapMaker.expiration(expirationInMinutes * 60, TimeUnit.SECONDS);
-        mapMaker.concurrencyLevel(maxConcurrentThreads);
-        mapMaker.softValues();
-        this.cache = mapMaker.makeMap();
+        return loads.load(key, loader, expirationInMillis);
     }
 
     /**
-     * Sanitize disk cache. Remove files which are older than expirationInMinutes.
+     * Enables refreshing entries in the background. An entry which is older than the given
+     * interval, but hasn't expired yet, is still returned by reads, but the first such read also
+     * triggers a reload of the entry using the given {@link Loader}. Until the reload completes,
+     * reads keep returning the old value; if it fails, the old value stays in place until it
+     * expires. Reloads run on a small pool of background threads owned by the cache.
+     * 
+     * @param refreshAfterMinutes
+     *            the age in minutes after which entries are refreshed; must be less than the
+     *            expiration time of the cache, otherwise entries expire before they're refreshed.
+     *            Only the cache's expiration time is checked: entries put with a shorter one of
+     *            their own (see {@link #put(Object, Object, long)}) simply expire unrefreshed,
+     *            and are loaded again on the next miss
+     * @param loader
+     *            fetches fresh values, or null to stop refreshing entries
      */
-    private void sanitizeDiskCache() {
-        List<File> cachedFiles = getCachedFiles();
-        for (File f : cachedFiles) {
-            // if file older than expirationInMinutes, remove it
-            long lastModified = f.lastModified();
-            Date now = new Date();
-            long ageInMinutes = ((now.getTime() - lastModified) / (1000 * 60));
+    public void setRefreshAfterWrite(long refreshAfterMinutes, Loader<KeyT, ValT> loader) {
+        setRefreshAfterWrite(refreshAfterMinutes, loader, threads.refreshTasks);
+    }
 
-            if (ageInMinutes >= expirationInMinutes) {
-                Log.d(name, "DISK cache expiration for file " + f.toString());
-                f.delete();
-            }
+    /**
+     * Like {@link #setRefreshAfterWrite(long, Loader)}, but runs reloads on the given executor.
+     * 
+     * @param executor
+     *            runs the reloads; should not be the UI thread, since loaders usually block
+     */
+    public void setRefreshAfterWrite(long refreshAfterMinutes, Loader<KeyT, ValT> loader,
+            Executor executor) {
+        if (loader != null
+                && (refreshAfterMinutes < 0 || refreshAfterMinutes >= expirationInMinutes)) {
+            throw new IllegalArgumentException("refresh interval must be less than "
+                    + expirationInMinutes + " minutes");
         }
+        loads.setRefreshPolicy(refreshAfterMinutes * 60 * 1000, loader, executor);
     }
 
     /**
-     * Enable caching to the phone's internal storage or SD card.
+     * Reads several values from the cache at once. Memory hits are resolved first; the remaining
+     * keys are then looked up on disk, in the order their files are laid out in the cache
+     * directory, and taking each lock stripe only once for all keys that map to it. For more than
+     * a handful of keys, this is considerably cheaper than calling {@link #get(Object)} for each.
      * 
-     * @param context
-     *            the current context
-     * @param storageDevice
-     *            where to store the cached files, either {@link #DISK_CACHE_INTERNAL} or
-     *            {@link #DISK_CACHE_SDCARD})
-     * @return
+     * @param keys
+     *            the cache keys
+     * @return a map holding the cached value of every key that was found
      */
-    public boolean enableDiskCache(Context context, int storageDevice) {
-        Context appContext = context.getApplicationContext();
-
-        String rootDir = null;
-        if (storageDevice == DISK_CACHE_SDCARD
-                && Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState())) {
-            // SD-card available
-            rootDir = Environment.getExternalStorageDirectory().getAbsolutePath()
-                    + "/Android/data/" + appContext.getPackageName() + "/cache";
-        } else {
-            File internalCacheDir = appContext.getCacheDir();
-            // apparently on some configurations this can come back as null
-            if (internalCacheDir == null) {
-                return (isDiskCacheEnabled = false);
+    public Map<KeyT, ValT> getAll(Collection<? extends KeyT> keys) {
+        Map<KeyT, ValT> values = new HashMap<KeyT, ValT>(keys.size() * 4 / 3 + 1);
+        List<BatchItem<KeyT, ValT>> misses = null;
+        for (KeyT key : keys) {
+            MemoryCache.Node<KeyT, ValT> node = cache.getNode(key);
+            if (node != null) {
+                stats.memoryHits.increment();
+                loads.refreshIfStale(key, node.writtenAt, node.expiresAt);
+                values.put(key, node.value);
+                continue;
+            }
+            stats.memoryMisses.increment();
+            SlabCache<KeyT> slabs = offHeapCache;
+            String fileName = null;
+            if (slabs != null) {
+                fileName = getFileNameForKey(key);
+                ValT value = readOffHeapThrough(slabs, key, fileName);
+                if (value != null) {
+                    stats.offHeapHits.increment();
+                    values.put(key, value);
+                    continue;
+                }
+                stats.offHeapMisses.increment();
+            }
+            if (isDiskCacheEnabled) {
+                if (misses == null) {
+                    misses = new ArrayList<BatchItem<KeyT, ValT>>();
+                }
+                if (fileName == null) {
+                    fileName = getFileNameForKey(key);
+                }
+                misses.add(new BatchItem<KeyT, ValT>(key, fileName, null));
             }
-            rootDir = internalCacheDir.getAbsolutePath();
         }
+        if (misses == null) {
+            return values;
+        }
+        refreshSharedDiskCache();
 
-        setRootDir(rootDir);
-
-        File outFile = new File(diskCacheDirectory);
-        if (outFile.mkdirs()) {
-            File nomedia = new File(diskCacheDirectory, ".nomedia");
+        Collections.sort(misses);
+        int runStart = 0;
+        while (runStart < misses.size()) {
+            Lock lock = diskLocks.forKey(misses.get(runStart).fileName).readLock();
+            int runEnd = runStart;
+            lock.lock();
             try {
-                nomedia.createNewFile();
-            } catch (IOException e) {
-                Log.e(LOG_TAG, "Failed creating .nomedia file");
+                do {
+                    BatchItem<KeyT, ValT> item = misses.get(runEnd);
+                    if (mayBeOnDisk(item.fileName)) {
+                        item.value = readThroughLocked(item.key, item.fileName);
+                    }
+                    runEnd++;
+                } while (runEnd < misses.size()
+                        && diskLocks.forKey(misses.get(runEnd).fileName).readLock() == lock);
+            } finally {
+                lock.unlock();
             }
+            runStart = runEnd;
         }
 
-        isDiskCacheEnabled = outFile.exists();
-
-        if (!isDiskCacheEnabled) {
-            Log.w(LOG_TAG, "Failed creating disk cache directory " + diskCacheDirectory);
-        } else {
-            Log.d(name, "enabled write through to " + diskCacheDirectory);
-
-            // sanitize disk cache
-            Log.d(name, "sanitize DISK cache");
-            sanitizeDiskCache();
+        for (BatchItem<KeyT, ValT> item : misses) {
+            if (item.value == null && hasLegacyFiles) {
+                item.value = migrateLegacyFile(item.key, item.fileName);
+            }
+            if (item.value != null) {
+                stats.diskHits.increment();
+                values.put(item.key, item.value);
+            } else {
+                stats.diskMisses.increment();
+            }
         }
-
-        return isDiskCacheEnabled;
-    }
-
-    private void setRootDir(String rootDir) {
-        this.diskCacheDirectory = rootDir + "/cachefu/"
-                + IgnitedStrings.underscore(name.replaceAll("\\s", ""));
+        return values;
     }
 
     /**
-     * Only meaningful if disk caching is enabled. See {@link #enableDiskCache}.
+     * Like {@link #get(Object)}, but never blocks: if the value isn't in memory, it's looked up
+     * on one of the cache's I/O threads.
      * 
-     * @return the full absolute path to the directory where files are cached, if the disk cache is
-     *         enabled, otherwise null
+     * @param key
+     *            the cache key
+     * @return the pending result, which is already available if the value was found in memory
      */
-    public String getDiskCacheDirectory() {
-        return diskCacheDirectory;
+    public Future<ValT> getAsync(KeyT key) {
+        return getAsync(key, null, (Executor) null);
     }
 
     /**
-     * Only meaningful if disk caching is enabled. See {@link #enableDiskCache}. Turns a cache key
-     * into the file name that will be used to persist the value to disk. Subclasses must implement
-     * this.
+     * Like {@link #get(Object)}, but never blocks: if the value isn't in memory, it's looked up
+     * on one of the cache's I/O threads. Either way, the result is passed to the callback on the
+     * given executor.
      * 
      * @param key
      *            the cache key
-     * @return the file name
+     * @param callback
+     *            receives the value, or null if the key isn't cached; may be null
+     * @param callbackExecutor
+     *            runs the callback; may only be null if there is no callback
+     * @return the pending result, which is already available if the value was found in memory
+     * @throws IllegalArgumentException
+     *             if there is a callback, but no executor to run it
      */
-    public abstract String getFileNameForKey(KeyT key);
+    public Future<ValT> getAsync(final KeyT key, CacheCallback<KeyT, ValT> callback,
+            Executor callbackExecutor) {
+        checkCallbackExecutor(callback, callbackExecutor);
+        MemoryCache.Node<KeyT, ValT> node = cache.getNode(key);
+        if (node != null) {
+            stats.memoryHits.increment();
+            loads.refreshIfStale(key, node.writtenAt, node.expiresAt);
+            if (callback != null) {
+                deliver(callback, key, node.value, callbackExecutor);
+            }
+            FutureTask<ValT> result = new FutureTask<ValT>(NO_OP, node.value);
+            result.run();
+            return result;
+        }
+        return submitAsync(key, new Callable<ValT>() {
+            @Override
+            public ValT call() {
+                return get(key);
+            }
+        }, callback, callbackExecutor);
+    }
 
     /**
-     * Only meaningful if disk caching is enabled. See {@link #enableDiskCache}. Restores a value
-     * previously persisted to the disk cache.
+     * Like {@link #getAsync(Object, CacheCallback, Executor)}, but passes the result to the
+     * callback on the thread of the given {@link Looper}. Memory hits are passed on right away if
+     * that's the calling thread, e.g. when both are the main thread.
      * 
-     * @param file
-     *            the file holding the cached value
-     * @return the cached value
-     * @throws IOException
+     * @throws IllegalArgumentException
+     *             if there is a callback, but no Looper to pass the result to
      */
-    protected abstract ValT readValueFromDisk(File file) throws IOException;
+    public Future<ValT> getAsync(KeyT key, CacheCallback<KeyT, ValT> callback,
+            Looper callbackLooper) {
+        return getAsync(key, callback, executorFor(callbackLooper));
+    }
 
     /**
-     * Only meaningful if disk caching is enabled. See {@link #enableDiskCache}. Persists a value to
-     * the disk cache.
+     * Runs a task which may block, such as a read from this cache followed by decoding the value,
+     * on one of the cache's I/O threads, and passes its result to the callback (if there is one)
+     * on the given executor. Meant for subclasses offering asynchronous variants of their own
+     * accessors. If the task fails, the callback receives null. While the cache is being closed,
+     * the task may have to be run on the calling thread instead.
      * 
-     * @param ostream
-     *            the file output stream (buffered).
-     * @param value
-     *            the cache value to persist
-     * @throws IOException
+     * @param key
+     *            the cache key the task is about, passed on to the callback
+     * @param task
+     *            the task
+     * @param callback
+     *            receives the task's result; may be null
+     * @param callbackExecutor
+     *            runs the callback; may only be null if there is no callback
+     * @return the pending result
+     * @throws IllegalArgumentException
+     *             if there is a callback, but no executor to run it
      */
-    protected abstract void writeValueToDisk(File file, ValT value) throws IOException;
-
-    private void cacheToDisk(KeyT key, ValT value) {
-        File file = new File(diskCacheDirectory + "/" + getFileNameForKey(key));
+    protected <T> Future<T> submitAsync(final KeyT key, Callable<T> task,
+            final CacheCallback<KeyT, T> callback, final Executor callbackExecutor) {
+        checkCallbackExecutor(callback, callbackExecutor);
+        FutureTask<T> future = new FutureTask<T>(task) {
+            @Override
+            protected void done() {
+                if (callback == null || isCancelled()) {
+                    return;
+                }
+                T result = null;
+                try {
+                    result = get();
+                } catch (InterruptedException e) {
+                    // can't happen, the task is done
+                } catch (ExecutionException e) {
+                    Log.e(name, "Asynchronous cache access failed: " + e.getCause());
+                }
+                deliver(callback, key, result, callbackExecutor);
+            }
+        };
         try {
-            file.createNewFile();
-            file.deleteOnExit();
+            threads.getIoExecutor().execute(future);
+        } catch (RejectedExecutionException e) {
+            // close() is shutting the I/O threads down; they're only recreated once it's done
+            future.run();
+        }
+        return future;
+    }
 
-            writeValueToDisk(file, value);
+    /**
+     * @return an executor which runs tasks on the thread of the given {@link Looper}, right away
+     *         if that's the calling thread, or null if there is no Looper
+     */
+    protected static Executor executorFor(Looper looper) {
+        return looper == null ? null : new LooperExecutor(looper);
+    }
 
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
+    private static void checkCallbackExecutor(CacheCallback<?, ?> callback, Executor executor) {
+        if (callback != null && executor == null) {
+            throw new IllegalArgumentException("a callback needs an executor or Looper to run on");
         }
     }
 
-    private File getFileForKey(KeyT key) {
-        return new File(diskCacheDirectory + "/" + getFileNameForKey(key));
+    private static <KeyT, T> void deliver(final CacheCallback<KeyT, T> callback, final KeyT key,
+            final T result, Executor callbackExecutor) {
+        callbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                callback.onResult(key, result);
+            }
+        });
     }
 
     /**
-     * Reads a value from the cache by first probing the in-memory cache. If not found, the the disk
-     * cache will be probed. If it's a hit, the entry is written back to memory and returned.
+     * Looks for a file written by an earlier version of the cache, and moves its contents to where
+     * the current version expects them. Legacy files consist of the payload only, so there's no
+     * way of verifying them, and the file's modification date has to stand in for the time it was
+     * written.
+     */
+    private ValT migrateLegacyFile(KeyT key, String fileName) {
+        String legacyFileName = getLegacyFileNameForKey(key);
+        CountingBloomFilter legacyFilter = legacyFileFilter;
+        if (legacyFileName == null
+                || (legacyFilter != null && !legacyFilter.mightContain(legacyFileName))) {
+            return null;
+        }
+        Lock lock = diskLocks.forKey(fileName).writeLock();
+        lock.lock();
+        try {
+            File legacyFile = new File(diskCacheDirectory, legacyFileName);
+            if (diskIndex.get(fileName) != null || !legacyFile.isFile()) {
+                return null;
+            }
+            long writtenAt = legacyFile.lastModified();
+            long expiresAt = expiresAt(writtenAt);
+            if (expiresAt <= System.currentTimeMillis()
+                    || legacyFile.length() > Integer.MAX_VALUE) {
+                legacyFile.delete();
+                return null;
+            }
+
+            ValT value;
+            InputStream istream = new BufferedInputStream(new FileInputStream(legacyFile));
+            try {
+                value = readValueFromDisk(istream, (int) legacyFile.length());
+            } finally {
+                istream.close();
+            }
+            Log.d(name, "DISK cache migrating file " + legacyFileName);
+            if (value != null) {
+                PayloadBuffer data = serializeForOffHeap(value);
+                cacheToDisk(fileName, key.toString(), value, data, writtenAt, expiresAt, true);
+                cacheInMemory(key, value, data, writtenAt, expiresAt);
+            }
+            legacyFile.delete();
+            return value;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Only meaningful if disk caching is enabled. See {@link #enableDiskCache}. Returns the data
+     * which was written by {@link #writeValueToDisk(OutputStream, Object)} for the given key,
+     * without decoding it. Large values are memory mapped, so that they can be consumed without
+     * ever being copied to the Java heap. The buffer remains valid even if the value is removed
+     * from the cache or replaced in the meantime: cache files are never modified once written,
+     * only replaced by renaming a new file over them, or deleted, neither of which affects
+     * existing mappings.
+     * <p>
+     * Unlike {@link #get(Object)}, this neither consults nor populates the in-memory cache.
+     * </p>
      * 
      * @param elementKey
      *            the cache key
-     * @return the cached value, or null if element was not cached
+     * @return a read-only buffer holding the data, or null if the key isn't cached on disk
      */
-    @Override
     @SuppressWarnings("unchecked")
-    public synchronized ValT get(Object elementKey) {
-        KeyT key = (KeyT) elementKey;
-        ValT value = cache.get(key);
-        if (value != null) {
-            // memory hit
-            Log.d(name, "MEM cache hit for " + key.toString());
-            return value;
+    public ByteBuffer getBuffer(Object elementKey) {
+        if (!isDiskCacheEnabled) {
+            return null;
         }
 
-        // memory miss, try reading from disk
-        File file = getFileForKey(key);
-        if (file.exists()) {
-            // if file older than expirationInMinutes, remove it
-            long lastModified = file.lastModified();
-            Date now = new Date();
-            long ageInMinutes = ((now.getTime() - lastModified) / (1000 * 60));
-
-            if (ageInMinutes >= expirationInMinutes) {
-                Log.d(name, "DISK cache expiration for file " + file.toString());
-                file.delete();
-                return null;
+        KeyT key = (KeyT) elementKey;
+        String fileName = getFileNameForKey(key);
+        refreshSharedDiskCache();
+        if (!mayBeOnDisk(fileName)) {
+            return null;
+        }
+        Lock lock = diskLocks.forKey(fileName).readLock();
+        lock.lock();
+        try {
+            WriteBehindQueue<PendingWrite<ValT>> queue = writeBehindQueue;
+            PendingWrite<ValT> pendingWrite = queue == null ? null : queue.peek(fileName);
+            if (pendingWrite != null) {
+                // not on disk yet, so there's nothing to map
+                PayloadBuffer data = pendingWrite.data;
+                if (data == null) {
+                    data = new PayloadBuffer();
+                    writeValueToDisk(data, pendingWrite.value);
+                }
+                return ByteBuffer.wrap(data.array(), 0, data.size()).asReadOnlyBuffer();
             }
 
-            // disk hit
-            Log.d(name, "DISK cache hit for " + key.toString());
-            try {
-                value = readValueFromDisk(file);
-            } catch (IOException e) {
-                // treat decoding errors as a cache miss
-                e.printStackTrace();
+            DiskIndex.Entry entry = diskIndex.get(fileName);
+            if (entry == null) {
+                stats.diskFilterFalsePositives.increment();
                 return null;
             }
-            if (value == null) {
+            ByteBuffer buffer = entry.isExpired(System.currentTimeMillis()) ? null
+                    : readBufferFromDisk(entry, key.toString());
+            if (buffer == null) {
+                deleteFromDisk(fileName);
                 return null;
             }
-            cache.put(key, value);
-            return value;
+            diskIndex.touch(fileName);
+            return buffer;
+        } catch (KeyCollisionException e) {
+            return null;
+        } catch (FileNotFoundException e) {
+            diskIndex.remove(fileName);
+            return null;
+        } catch (CorruptEntryException e) {
+            Log.w(name, "DISK cache file " + fileName + " is corrupt: " + e.getMessage());
+            deleteFromDisk(fileName);
+            return null;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            lock.unlock();
         }
-
-        // cache miss
-        return null;
     }
 
     /**
      * Writes an element to the cache. NOTE: If disk caching is enabled, this will write through to
-     * the disk, which may introduce a performance penalty.
+     * the disk, which may introduce a performance penalty. Only writers of the same key (or keys
+     * sharing its lock stripe) are held up by this, though; readers of other keys are not. To
+     * avoid the penalty altogether, see {@link #enableWriteBehind(int)}.
      */
     @Override
-    public synchronized ValT put(KeyT key, ValT value) {
-        if (isDiskCacheEnabled) {
-            cacheToDisk(key, value);
+    public ValT put(KeyT key, ValT value) {
+        return put(key, value, getExpirationInMillis());
+    }
+
+    /**
+     * Like {@link #put(Object, Object)}, but with an expiration time for this entry only, which
+     * overrides the one the cache was created with. Both the memory and the disk cache honor it.
+     * 
+     * @param expirationInMillis
+     *            the time in milliseconds after which the entry expires
+     */
+    public ValT put(KeyT key, ValT value, long expirationInMillis) {
+        registerForTrimming();
+        long writtenAt = System.currentTimeMillis();
+        long expiresAt = writtenAt + expirationInMillis;
+        if (!isDiskCacheEnabled && offHeapCache == null) {
+            return cache.put(key, value, writtenAt, expiresAt);
+        }
+
+        String fileName = getFileNameForKey(key);
+        Lock lock = diskLocks.forKey(fileName).writeLock();
+        if (!isDiskCacheEnabled) {
+            lock.lock();
+            try {
+                return cacheInMemory(key, value, null, writtenAt, expiresAt);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        saveHotKeysIfDue(writtenAt);
+
+        // serialized once for both the disk and the off-heap tier
+        PayloadBuffer data = serializeForOffHeap(value);
+        WriteBehindQueue<PendingWrite<ValT>> queue = writeBehindQueue;
+        if (queue != null) {
+            PendingWrite<ValT> pendingWrite = new PendingWrite<ValT>(key.toString(), value, data,
+                    writtenAt, expiresAt);
+            do {
+                // don't wait for the writer while holding the lock, it may need the same stripe
+                lock.lock();
+                try {
+                    if (queue.offer(fileName, pendingWrite)) {
+                        return cacheInMemory(key, value, data, writtenAt, expiresAt);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            } while (queue.awaitCapacity());
+            // write-behind was shut down in the meantime, fall back to writing through
+        }
+
+        lock.lock();
+        try {
+            cacheToDisk(fileName, key.toString(), value, data, writtenAt, expiresAt, true);
+            return cacheInMemory(key, value, data, writtenAt, expiresAt);
+        } finally {
+            lock.unlock();
+            trimDiskCacheIfNeeded();
+        }
+    }
+
+    /**
+     * Like {@link #put(Object, Object)}, but never blocks: the value is written to all tiers on
+     * one of the cache's I/O threads. Asynchronous writes are performed in the order they were
+     * made, but a value only becomes visible once it has been written, so don't count on reading
+     * it back before the returned future is done.
+     * 
+     * @return the pending result, which is the value previously cached under the key, if it was
+     *         held in memory
+     */
+    public Future<ValT> putAsync(final KeyT key, final ValT value) {
+        final long expirationInMillis = getExpirationInMillis();
+        FutureTask<ValT> future = new FutureTask<ValT>(new Callable<ValT>() {
+            @Override
+            public ValT call() {
+                return put(key, value, expirationInMillis);
+            }
+        });
+        threads.getAsyncWriteExecutor().execute(future);
+        return future;
+    }
+
+    /**
+     * Switches the cache to write-behind mode: {@link #put(Object, Object)} only updates the
+     * memory cache and schedules the disk write, which is then performed by a dedicated writer
+     * thread. Writes are performed in batches, and a put which supersedes a write that hasn't
+     * started yet replaces it, so a key which is written repeatedly in quick succession hits the
+     * disk only once. Reads see pending writes, so this is transparent to users of the cache,
+     * except that values may be lost if the process dies before they're written. Use
+     * {@link #flush()} or {@link #close()} where that matters.
+     * 
+     * @param maxPendingWrites
+     *            the maximum number of writes waiting to be performed; once reached, puts block
+     *            until the writer has caught up
+     */
+    public synchronized void enableWriteBehind(int maxPendingWrites) {
+        if (writeBehindQueue != null) {
+            return;
+        }
+        writeBehindQueue = new WriteBehindQueue<PendingWrite<ValT>>(name, maxPendingWrites,
+                new WriteBehindQueue.Writer<PendingWrite<ValT>>() {
+                    @Override
+                    public void write(WriteBehindQueue<PendingWrite<ValT>> queue, String fileName) {
+                        writePending(queue, fileName);
+                    }
+
+                    @Override
+                    public void batchWritten() {
+                        diskIndex.flush();
+                        trimDiskCacheIfNeeded();
+                    }
+                });
+    }
+
+    public boolean isWriteBehindEnabled() {
+        return writeBehindQueue != null;
+    }
+
+    private void writePending(WriteBehindQueue<PendingWrite<ValT>> queue, String fileName) {
+        Lock lock = diskLocks.forKey(fileName).writeLock();
+        lock.lock();
+        try {
+            PendingWrite<ValT> pendingWrite = queue.take(fileName);
+            if (pendingWrite != null && isDiskCacheEnabled) {
+                cacheToDisk(fileName, pendingWrite.key, pendingWrite.value, pendingWrite.data,
+                        pendingWrite.writtenAt, pendingWrite.expiresAt, false);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Blocks until all writes scheduled so far in write-behind mode have been performed, and the
+     * disk index is up to date on disk. Returns immediately if there's nothing to write.
+     */
+    public void flush() {
+        WriteBehindQueue<PendingWrite<ValT>> queue = writeBehindQueue;
+        if (queue != null) {
+            queue.flush();
+        }
+        DiskIndex index = diskIndex;
+        if (index != null) {
+            index.flush();
         }
+    }
 
-        return cache.put(key, value);
+    /**
+     * Performs all pending writes and stops the write-behind thread, if write-behind mode is
+     * enabled, waits for asynchronous writes and housekeeping to finish, and stops the threads
+     * which performed them, and writes out the disk index and the hot-key manifest (see
+     * {@link #warmUp()}). Refreshes in progress are left to finish in the background. The cache
+     * remains usable afterwards, but writes through to disk again; threads are started again as
+     * needed. Work other threads hand to the cache while it's being closed may be dropped, so
+     * this is best called once the cache is no longer used. Blocks until pending writes are done,
+     * however long that takes, so don't call this on the UI thread.
+     */
+    public void close() {
+        // asynchronous writes first, since they may still go to the write-behind queue
+        threads.shutdown(new Runnable() {
+            @Override
+            public void run() {
+                WriteBehindQueue<PendingWrite<ValT>> queue;
+                synchronized (AbstractCache.this) {
+                    queue = writeBehindQueue;
+                    writeBehindQueue = null;
+                }
+                if (queue != null) {
+                    queue.shutdown();
+                }
+            }
+        });
+        DiskIndex index = diskIndex;
+        if (index != null) {
+            index.flush();
+        }
+        List<String> hotKeys;
+        if (isDiskCacheEnabled && index != null && (hotKeys = getHotKeys()) != null) {
+            writeHotKeys(index.getDirectory(), hotKeys);
+        }
     }
 
+    /**
+     * Writes several elements to the cache at once. When writing through to disk, the files are
+     * written in the order they're laid out in the cache directory, each lock stripe is taken only
+     * once for all keys that map to it, and the disk index is written out once at the end, rather
+     * than once per file.
+     */
     @Override
-    public synchronized void putAll(Map<? extends KeyT, ? extends ValT> t) {
-        throw new UnsupportedOperationException();
+    public void putAll(Map<? extends KeyT, ? extends ValT> t) {
+        registerForTrimming();
+        long writtenAt = System.currentTimeMillis();
+        long expiresAt = expiresAt(writtenAt);
+        if (!isDiskCacheEnabled && offHeapCache == null) {
+            for (Map.Entry<? extends KeyT, ? extends ValT> entry : t.entrySet()) {
+                cache.put(entry.getKey(), entry.getValue(), writtenAt, expiresAt);
+            }
+            return;
+        }
+        if (!isDiskCacheEnabled || writeBehindQueue != null) {
+            // cheap enough one by one, there are no disk writes, or the writer batches them
+            for (Map.Entry<? extends KeyT, ? extends ValT> entry : t.entrySet()) {
+                put(entry.getKey(), entry.getValue());
+            }
+            return;
+        }
+
+        List<BatchItem<KeyT, ValT>> items = new ArrayList<BatchItem<KeyT, ValT>>(t.size());
+        for (Map.Entry<? extends KeyT, ? extends ValT> entry : t.entrySet()) {
+            KeyT key = entry.getKey();
+            items.add(new BatchItem<KeyT, ValT>(key, getFileNameForKey(key), entry.getValue()));
+        }
+        Collections.sort(items);
+
+        try {
+            int runStart = 0;
+            while (runStart < items.size()) {
+                Lock lock = diskLocks.forKey(items.get(runStart).fileName).writeLock();
+                int runEnd = runStart;
+                lock.lock();
+                try {
+                    do {
+                        BatchItem<KeyT, ValT> item = items.get(runEnd);
+                        PayloadBuffer data = serializeForOffHeap(item.value);
+                        cacheToDisk(item.fileName, item.key.toString(), item.value, data,
+                                writtenAt, expiresAt, false);
+                        cacheInMemory(item.key, item.value, data, writtenAt, expiresAt);
+                        runEnd++;
+                    } while (runEnd < items.size()
+                            && diskLocks.forKey(items.get(runEnd).fileName).writeLock() == lock);
+                } finally {
+                    lock.unlock();
+                }
+                runStart = runEnd;
+            }
+        } finally {
+            diskIndex.flush();
+            trimDiskCacheIfNeeded();
+        }
     }
 
     /**
-     * Checks if a value is present in the cache. If the disk cached is enabled, this will also
-     * check whether the value has been persisted to disk.
+     * Checks if a value is present in the cache. If the off-heap tier or the disk cache is
+     * enabled, this will also check whether the value is held there.
      * 
      * @param key
      *            the cache key
-     * @return true if the value is cached in memory or on disk, false otherwise
+     * @return true if the value is cached in memory, off-heap or on disk, false otherwise
      */
     @Override
-    public synchronized boolean containsKey(Object key) {
-        return cache.containsKey(key) || containsKeyOnDisk(key);
+    public boolean containsKey(Object key) {
+        SlabCache<KeyT> slabs = offHeapCache;
+        return cache.containsKey(key) || (slabs != null && slabs.containsKey(key))
+                || containsKeyOnDisk(key);
     }
 
     /**
@@ -334,7 +2942,7 @@ public abstract class AbstractCache<KeyT, ValT> implements Map<KeyT, ValT> {
      *            the cache key
      * @return true if the value is currently hold in memory, false otherwise
      */
-    public synchronized boolean containsKeyInMemory(Object key) {
+    public boolean containsKeyInMemory(Object key) {
         return cache.containsKey(key);
     }
 
@@ -347,8 +2955,21 @@ public abstract class AbstractCache<KeyT, ValT> implements Map<KeyT, ValT> {
      *         cache is disabled.
      */
     @SuppressWarnings("unchecked")
-    public synchronized boolean containsKeyOnDisk(Object key) {
-        return isDiskCacheEnabled && getFileForKey((KeyT) key).exists();
+    public boolean containsKeyOnDisk(Object key) {
+        if (!isDiskCacheEnabled) {
+            return false;
+        }
+        String fileName = getFileNameForKey((KeyT) key);
+        refreshSharedDiskCache();
+        if (!mayBeOnDisk(fileName)) {
+            return false;
+        }
+        WriteBehindQueue<PendingWrite<ValT>> queue = writeBehindQueue;
+        if (queue != null && queue.peek(fileName) != null) {
+            return true;
+        }
+        DiskIndex.Entry entry = diskIndex.get(fileName);
+        return entry != null && !entry.isExpired(System.currentTimeMillis());
     }
 
     /**
@@ -356,7 +2977,7 @@ public abstract class AbstractCache<KeyT, ValT> implements Map<KeyT, ValT> {
      * does NOT probe the disk cache.
      */
     @Override
-    public synchronized boolean containsValue(Object value) {
+    public boolean containsValue(Object value) {
         return cache.containsValue(value);
     }
 
@@ -365,27 +2986,48 @@ public abstract class AbstractCache<KeyT, ValT> implements Map<KeyT, ValT> {
      */
     @Override
     @SuppressWarnings("unchecked")
-    public synchronized ValT remove(Object key) {
-        ValT value = removeKey(key);
+    public ValT remove(Object key) {
+        if (!isDiskCacheEnabled && offHeapCache == null) {
+            return removeKey(key);
+        }
 
-        if (isDiskCacheEnabled) {
-            File cachedValue = getFileForKey((KeyT) key);
-            if (cachedValue.exists()) {
-                cachedValue.delete();
+        String fileName = getFileNameForKey((KeyT) key);
+        Lock lock = diskLocks.forKey(fileName).writeLock();
+        lock.lock();
+        try {
+            ValT value = removeKey(key);
+            if (!isDiskCacheEnabled) {
+                return value;
+            }
+            WriteBehindQueue<PendingWrite<ValT>> queue = writeBehindQueue;
+            if (queue != null) {
+                queue.take(fileName);
+            }
+            if (diskIndex.get(fileName) != null) {
+                deleteFromDisk(fileName);
+            }
+            String legacyFileName;
+            if (hasLegacyFiles && (legacyFileName = getLegacyFileNameForKey((KeyT) key)) != null) {
+                new File(diskCacheDirectory, legacyFileName).delete();
             }
+            return value;
+        } finally {
+            lock.unlock();
         }
-
-        return value;
     }
 
     /**
-     * Removes an entry from memory.
+     * Removes an entry from memory, and from the off-heap tier if it's enabled.
      * 
      * @param key
      *            the cache key
      * @return the element removed or null
      */
     public ValT removeKey(Object key) {
+        SlabCache<KeyT> slabs = offHeapCache;
+        if (slabs != null) {
+            slabs.remove(key);
+        }
         return cache.remove(key);
     }
 
@@ -400,12 +3042,12 @@ public abstract class AbstractCache<KeyT, ValT> implements Map<KeyT, ValT> {
     }
 
     @Override
-    public synchronized int size() {
-        return cache.size();
+    public int size() {
+        return cache.count();
     }
 
     @Override
-    public synchronized boolean isEmpty() {
+    public boolean isEmpty() {
         return cache.isEmpty();
     }
 
@@ -415,17 +3057,62 @@ public abstract class AbstractCache<KeyT, ValT> implements Map<KeyT, ValT> {
 
     /**
      * Retrieves the list of files that are currently cached to disk. Guarantees to never return
-     * null.
+     * null. The list is taken from the disk index, so it doesn't require a directory listing.
+     * Packed entries (see {@link #setMaxPackedEntrySize(int)}) don't have files of their own; the
+     * segment files holding them are listed instead.
      * 
      * @return the list of files on disk
      */
     public List<File> getCachedFiles() {
-        File[] cachedFiles = new File(diskCacheDirectory).listFiles();
-        if (cachedFiles == null) {
+        if (!isDiskCacheEnabled) {
             return Collections.emptyList();
-        } else {
-            return Arrays.asList(cachedFiles);
         }
+        List<DiskIndex.Entry> entries = diskIndex.snapshot();
+        List<File> cachedFiles = new ArrayList<File>(entries.size());
+        boolean hasPackedEntries = false;
+        for (DiskIndex.Entry entry : entries) {
+            if (entry.isPacked()) {
+                hasPackedEntries = true;
+            } else {
+                cachedFiles.add(diskIndex.getFile(entry.fileName));
+            }
+        }
+        if (hasPackedEntries) {
+            cachedFiles.addAll(diskIndex.getPackStore().getSegmentFiles());
+        }
+        return cachedFiles;
+    }
+
+    /**
+     * @return the number of bytes occupied by the disk cache, or 0 if it's disabled
+     */
+    public long getDiskCacheSize() {
+        return isDiskCacheEnabled ? diskIndex.getTotalSize() : 0;
+    }
+
+    /**
+     * Returns a snapshot of this cache's statistics: hits and misses per tier, loads, evictions,
+     * expirations, current sizes, and disk latencies. Keeping these statistics is cheap enough to
+     * be always on, but taking a snapshot isn't free, so this shouldn't be called on every cache
+     * access.
+     * 
+     * @return the statistics
+     */
+    public CacheStats getStats() {
+        CacheStats snapshot = stats.snapshot();
+        snapshot.expirationCount += cache.getExpirationCount();
+        snapshot.memorySize = cache.getSize();
+        snapshot.memoryEntryCount = cache.count();
+        SlabCache<KeyT> slabs = offHeapCache;
+        if (slabs != null) {
+            snapshot.offHeapSize = slabs.getSize();
+            snapshot.offHeapEntryCount = slabs.count();
+        }
+        if (isDiskCacheEnabled) {
+            snapshot.diskSize = diskIndex.getTotalSize();
+            snapshot.diskEntryCount = diskIndex.getEntryCount();
+        }
+        return snapshot;
     }
 
     /**
@@ -436,38 +3123,43 @@ public abstract class AbstractCache<KeyT, ValT> implements Map<KeyT, ValT> {
     public void setDiskCacheEnabled(String rootDir) {
         if (rootDir != null && rootDir.length() > 0) {
             setRootDir(rootDir);
-            this.isDiskCacheEnabled = true;
+            startDiskCache();
         } else {
             this.isDiskCacheEnabled = false;
         }
     }
 
     /**
-     * Clears the entire cache (memory and disk).
+     * Clears the entire cache (memory, off-heap and disk).
      */
     @Override
-    public synchronized void clear() {
+    public void clear() {
         clear(isDiskCacheEnabled);
     }
 
     /**
-     * Clears the memory cache, as well as the disk cache if it's enabled and
-     * <code>removeFromDisk</code> is <code>true</code>.
+     * Clears the memory cache and the off-heap tier, as well as the disk cache if it's enabled and
+     * <code>removeFromDisk</code> is <code>true</code>. Entries which are put concurrently to
+     * this call may or may not survive it. Wiping the disk cache takes constant time: the cache
+     * switches to a new, empty generation directory, and the files of the previous one are deleted
+     * in the background.
      * 
      * @param removeFromDisk
      *            whether or not to wipe the disk cache, too
      */
-    public synchronized void clear(boolean removeFromDisk) {
+    public void clear(boolean removeFromDisk) {
         cache.clear();
+        SlabCache<KeyT> slabs = offHeapCache;
+        if (slabs != null) {
+            slabs.clear();
+        }
 
         if (removeFromDisk && isDiskCacheEnabled) {
-            File[] cachedFiles = new File(diskCacheDirectory).listFiles();
-            if (cachedFiles == null) {
-                return;
-            }
-            for (File f : cachedFiles) {
-                f.delete();
+            WriteBehindQueue<PendingWrite<ValT>> queue = writeBehindQueue;
+            if (queue != null) {
+                queue.clear();
             }
+            startNewGeneration(true);
         }
 
         Log.d(LOG_TAG, "Cache cleared");
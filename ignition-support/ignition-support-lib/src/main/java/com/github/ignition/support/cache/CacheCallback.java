@@ -0,0 +1,43 @@
+/* Copyright (c) 2009-2011 Matthias Kaeppler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.ignition.support.cache;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Receives the result of an asynchronous cache lookup, such as
+ * {@link AbstractCache#getAsync(Object, CacheCallback, Executor)}.
+ *
+ * @author Matthias Kaeppler
+ *
+ * @param <KeyT>
+ *            the cache key type
+ * @param <ResultT>
+ *            the result type, usually the cache value type
+ */
+public interface CacheCallback<KeyT, ResultT> {
+
+    /**
+     * Called once the lookup has completed, on the Looper or Executor given along with it. Not
+     * called if the lookup was cancelled.
+     *
+     * @param key
+     *            the cache key
+     * @param result
+     *            the result, or null if the key isn't cached
+     */
+    void onResult(KeyT key, ResultT result);
+}
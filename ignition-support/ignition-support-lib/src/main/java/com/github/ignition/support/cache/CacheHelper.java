@@ -2,42 +2,123 @@ package com.github.ignition.support.cache;
 
 import java.io.File;
 import java.io.FilenameFilter;
-import java.util.Set;
 
 public class CacheHelper {
 
-    public static String getFileNameFromUrl(String url) {
-        // replace all special URI characters with a single + symbol
-        return url.replaceAll("[.:/,%?&=]", "+").replaceAll("[+]+", "+");
-    }
+    private static final long FNV_64_OFFSET_BASIS = 0xcbf29ce484222325L;
 
-    public static void removeAllWithStringPrefix(AbstractCache<String, ?> cache, String urlPrefix) {
-        Set<String> keys = cache.keySet();
+    private static final long FNV_64_PRIME = 0x100000001b3L;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /**
+     * Turns a cache key into a file name by hashing it. The result always consists of 16
+     * hexadecimal digits, regardless of the key's length or the characters it contains. Different
+     * keys may, in rare cases, produce the same file name; {@link AbstractCache} detects this, and
+     * treats it as a cache miss.
+     *
+     * @param key
+     *            the cache key
+     * @return the file name
+     */
+    public static String getFileNameFromKey(String key) {
+        // 64 bit FNV-1a, fed with both bytes of every char
+        long hash = FNV_64_OFFSET_BASIS;
+        for (int i = 0, length = key.length(); i < length; i++) {
+            char c = key.charAt(i);
+            hash ^= c & 0xff;
+            hash *= FNV_64_PRIME;
+            hash ^= c >>> 8;
+            hash *= FNV_64_PRIME;
+        }
+        char[] digits = new char[16];
+        for (int i = 15; i >= 0; i--) {
+            digits[i] = HEX_DIGITS[(int) hash & 0xf];
+            hash >>>= 4;
+        }
+        return new String(digits);
+    }
 
-        for (String key : keys) {
-            if (key.startsWith(urlPrefix)) {
-                cache.remove(key);
+    /**
+     * The file naming scheme used by earlier versions of the cache, which replaces all special URI
+     * characters with a single + symbol. Only needed to find files written by those versions (see
+     * {@link AbstractCache#getLegacyFileNameForKey(Object)}); new files are named using
+     * {@link #getFileNameFromKey(String)}.
+     */
+    public static String getFileNameFromUrl(String url) {
+        StringBuilder fileName = new StringBuilder(url.length());
+        boolean isReplacing = false;
+        for (int i = 0, length = url.length(); i < length; i++) {
+            char c = url.charAt(i);
+            switch (c) {
+            case '.':
+            case ':':
+            case '/':
+            case ',':
+            case '%':
+            case '?':
+            case '&':
+            case '=':
+            case '+':
+                if (!isReplacing) {
+                    fileName.append('+');
+                    isReplacing = true;
+                }
+                break;
+            default:
+                fileName.append(c);
+                isReplacing = false;
             }
         }
+        return fileName.toString();
+    }
+
+    /**
+     * Checks whether the given data starts like a file in a compressed format: JPEG, PNG, GIF,
+     * WebP, gzip or zip. Such data doesn't get any smaller by compressing it again.
+     *
+     * @param data
+     *            the data to check
+     */
+    public static boolean isCompressedFormat(byte[] data) {
+        if (data.length < 4) {
+            return false;
+        }
+        int b0 = data[0] & 0xff, b1 = data[1] & 0xff, b2 = data[2] & 0xff, b3 = data[3] & 0xff;
+        return (b0 == 0xff && b1 == 0xd8) // JPEG
+                || (b0 == 0x89 && b1 == 'P' && b2 == 'N' && b3 == 'G')
+                || (b0 == 'G' && b1 == 'I' && b2 == 'F' && b3 == '8')
+                || (b0 == 'R' && b1 == 'I' && b2 == 'F' && b3 == 'F') // WebP
+                || (b0 == 0x1f && b1 == 0x8b) // gzip
+                || (b0 == 'P' && b1 == 'K' && b2 == 3 && b3 == 4); // zip
+    }
+
+    /**
+     * Removes all entries whose key starts with the given prefix from both memory and disk. Takes
+     * time proportional to the number of matching entries, not the size of the cache.
+     */
+    public static void removeAllWithStringPrefix(AbstractCache<String, ?> cache, String urlPrefix) {
+        cache.removeAllWithKeyPrefix(urlPrefix);
 
-        if (cache.isDiskCacheEnabled()) {
+        if (cache.isDiskCacheEnabled() && cache.hasLegacyFiles()) {
             removeExpiredCache(cache, urlPrefix);
         }
     }
 
+    // removes files written by earlier versions of the cache, which used prefix-preserving names
     private static void removeExpiredCache(final AbstractCache<String, ?> cache,
             final String urlPrefix) {
+        final String fileNamePrefix = cache.getLegacyFileNameForKey(urlPrefix);
         final File cacheDir = new File(cache.getDiskCacheDirectory());
 
-        if (!cacheDir.exists()) {
+        if (fileNamePrefix == null || !cacheDir.exists()) {
             return;
         }
 
         File[] list = cacheDir.listFiles(new FilenameFilter() {
             @Override
             public boolean accept(File dir, String filename) {
-                return dir.equals(cacheDir)
-                        && filename.startsWith(cache.getFileNameForKey(urlPrefix));
+                return dir.equals(cacheDir) && filename.startsWith(fileNamePrefix);
             }
         });
 
@@ -46,7 +127,9 @@ public class CacheHelper {
         }
 
         for (File file : list) {
-            file.delete();
+            if (file.isFile()) {
+                file.delete();
+            }
         }
     }
 
@@ -0,0 +1,326 @@
+/* Copyright (c) 2009-2011 Matthias Kaeppler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.ignition.support.cache;
+
+/**
+ * A snapshot of an {@link AbstractCache}'s statistics, as returned by
+ * {@link AbstractCache#getStats()}. Counts are totals since the cache was created. Since the
+ * underlying counters are updated without locking, a snapshot taken while the cache is in use
+ * may be slightly inconsistent, e.g. the hit count of one tier may already include a lookup which
+ * the other doesn't yet.
+ *
+ * @author Matthias Kaeppler
+ */
+public final class CacheStats {
+
+    /**
+     * A latency distribution with logarithmic buckets: bucket 0 counts operations which took less
+     * than 2 microseconds, and bucket <code>i</code> those which took at least 2<sup>i</sup>, but
+     * less than 2<sup>i+1</sup> microseconds. The last bucket also counts everything slower.
+     */
+    public static final class Histogram {
+
+        private final long[] bucketCounts;
+
+        private final long count;
+
+        private final long totalNanos;
+
+        Histogram(long[] bucketCounts, long totalNanos) {
+            this.bucketCounts = bucketCounts;
+            this.totalNanos = totalNanos;
+            long count = 0;
+            for (long bucketCount : bucketCounts) {
+                count += bucketCount;
+            }
+            this.count = count;
+        }
+
+        public int getBucketCount() {
+            return bucketCounts.length;
+        }
+
+        /**
+         * @return the number of operations in the given bucket
+         */
+        public long getCount(int bucket) {
+            return bucketCounts[bucket];
+        }
+
+        /**
+         * @return the upper bound of the given bucket in microseconds (exclusive)
+         */
+        public long getUpperBoundMicros(int bucket) {
+            return bucket == bucketCounts.length - 1 ? Long.MAX_VALUE : 2L << bucket;
+        }
+
+        /**
+         * @return the total number of operations recorded
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return the mean latency in microseconds, or 0 if nothing has been recorded
+         */
+        public double getMeanMicros() {
+            return count == 0 ? 0 : totalNanos / 1000.0 / count;
+        }
+
+        /**
+         * Estimates a percentile. Since only bucket counts are known, the result is the upper
+         * bound of the bucket the percentile falls into, i.e. accurate to within a factor of 2.
+         * 
+         * @param percentile
+         *            a value between 0 and 100
+         * @return the estimated latency in microseconds, or 0 if nothing has been recorded
+         */
+        public long getPercentileMicros(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(count * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < bucketCounts.length; i++) {
+                seen += bucketCounts[i];
+                if (seen >= rank && seen > 0) {
+                    return getUpperBoundMicros(i);
+                }
+            }
+            return getUpperBoundMicros(bucketCounts.length - 1);
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + count + ", mean=" + (long) getMeanMicros() + "us, p50="
+                    + getPercentileMicros(50) + "us, p99=" + getPercentileMicros(99) + "us";
+        }
+    }
+
+    long memoryHitCount;
+    long memoryMissCount;
+    long offHeapHitCount;
+    long offHeapMissCount;
+    long diskHitCount;
+    long diskMissCount;
+    long loadSuccessCount;
+    long loadFailureCount;
+    long refreshCount;
+    long memoryEvictionCount;
+    long diskEvictionCount;
+    long expirationCount;
+    long diskFilterSkipCount;
+    long diskFilterFalsePositiveCount;
+    long memorySize;
+    int memoryEntryCount;
+    long offHeapSize;
+    int offHeapEntryCount;
+    long diskSize;
+    int diskEntryCount;
+    Histogram diskReadLatency;
+    Histogram diskWriteLatency;
+
+    // populated by StatsCounter
+    CacheStats() {
+    }
+
+    /**
+     * @return the number of lookups answered from memory
+     */
+    public long getMemoryHitCount() {
+        return memoryHitCount;
+    }
+
+    /**
+     * @return the number of lookups which missed the memory cache
+     */
+    public long getMemoryMissCount() {
+        return memoryMissCount;
+    }
+
+    /**
+     * @return the number of memory misses answered from the off-heap tier (always 0 without one,
+     *         see {@link AbstractCache#enableOffHeapCache(long)})
+     */
+    public long getOffHeapHitCount() {
+        return offHeapHitCount;
+    }
+
+    /**
+     * @return the number of memory misses which missed the off-heap tier, too (always 0 without
+     *         one)
+     */
+    public long getOffHeapMissCount() {
+        return offHeapMissCount;
+    }
+
+    /**
+     * @return the number of memory misses answered from disk (always 0 without a disk cache)
+     */
+    public long getDiskHitCount() {
+        return diskHitCount;
+    }
+
+    /**
+     * @return the number of memory misses which missed the disk cache, too (always 0 without a
+     *         disk cache)
+     */
+    public long getDiskMissCount() {
+        return diskMissCount;
+    }
+
+    /**
+     * @return the fraction of all lookups answered by any tier, or 1 if there were none
+     */
+    public double getHitRate() {
+        long lookups = memoryHitCount + memoryMissCount;
+        return lookups == 0 ? 1.0 : (double) (memoryHitCount + offHeapHitCount + diskHitCount)
+                / lookups;
+    }
+
+    /**
+     * @return the number of times a {@link Loader} completed normally
+     */
+    public long getLoadSuccessCount() {
+        return loadSuccessCount;
+    }
+
+    /**
+     * @return the number of times a {@link Loader} threw an exception
+     */
+    public long getLoadFailureCount() {
+        return loadFailureCount;
+    }
+
+    /**
+     * @return the number of stale entries reloaded in the background (see
+     *         {@link AbstractCache#setRefreshAfterWrite(long, Loader)}); these also count as load
+     *         successes
+     */
+    public long getRefreshCount() {
+        return refreshCount;
+    }
+
+    /**
+     * @return the number of entries evicted from memory to stay within the memory budget
+     */
+    public long getMemoryEvictionCount() {
+        return memoryEvictionCount;
+    }
+
+    /**
+     * @return the number of files evicted from disk to stay within the disk quota
+     */
+    public long getDiskEvictionCount() {
+        return diskEvictionCount;
+    }
+
+    /**
+     * @return the number of entries dropped from either tier because they had expired
+     */
+    public long getExpirationCount() {
+        return expirationCount;
+    }
+
+    /**
+     * @return the number of disk lookups which were skipped because the disk cache's Bloom filter
+     *         ruled out that the file exists
+     */
+    public long getDiskFilterSkipCount() {
+        return diskFilterSkipCount;
+    }
+
+    /**
+     * @return the number of disk lookups for missing files which the disk cache's Bloom filter
+     *         failed to rule out
+     */
+    public long getDiskFilterFalsePositiveCount() {
+        return diskFilterFalsePositiveCount;
+    }
+
+    /**
+     * @return the observed fraction of lookups for missing files which the disk cache's Bloom
+     *         filter failed to rule out, or 0 if there were none
+     */
+    public double getDiskFilterFalsePositiveRate() {
+        long absent = diskFilterSkipCount + diskFilterFalsePositiveCount;
+        return absent == 0 ? 0.0 : (double) diskFilterFalsePositiveCount / absent;
+    }
+
+    /**
+     * @return the number of bytes held in memory, as measured by the cache's {@link Sizer}
+     */
+    public long getMemorySize() {
+        return memorySize;
+    }
+
+    public int getMemoryEntryCount() {
+        return memoryEntryCount;
+    }
+
+    /**
+     * @return the number of bytes the off-heap tier has allocated to entries
+     */
+    public long getOffHeapSize() {
+        return offHeapSize;
+    }
+
+    public int getOffHeapEntryCount() {
+        return offHeapEntryCount;
+    }
+
+    /**
+     * @return the number of bytes occupied on disk
+     */
+    public long getDiskSize() {
+        return diskSize;
+    }
+
+    public int getDiskEntryCount() {
+        return diskEntryCount;
+    }
+
+    /**
+     * @return the time it took to read and decode cache files
+     */
+    public Histogram getDiskReadLatency() {
+        return diskReadLatency;
+    }
+
+    /**
+     * @return the time it took to encode and write cache files
+     */
+    public Histogram getDiskWriteLatency() {
+        return diskWriteLatency;
+    }
+
+    @Override
+    public String toString() {
+        return "CacheStats[memory: " + memoryHitCount + " hits, " + memoryMissCount + " misses, "
+                + memoryEntryCount + " entries, " + memorySize + " bytes, " + memoryEvictionCount
+                + " evictions; off-heap: " + offHeapHitCount + " hits, " + offHeapMissCount
+                + " misses, " + offHeapEntryCount + " entries, " + offHeapSize
+                + " bytes; disk: " + diskHitCount + " hits, " + diskMissCount + " misses, "
+                + diskEntryCount + " entries, " + diskSize + " bytes, " + diskEvictionCount
+                + " evictions, " + diskFilterSkipCount + " filtered, "
+                + (float) getDiskFilterFalsePositiveRate() + " filter fp rate; "
+                + expirationCount + " expirations; loads: " + loadSuccessCount
+                + " succeeded, " + loadFailureCount + " failed, " + refreshCount
+                + " refreshes; disk reads: " + diskReadLatency
+                + "; disk writes: " + diskWriteLatency + "]";
+    }
+}
@@ -0,0 +1,211 @@
+/* Copyright (c) 2009-2011 Matthias Kaeppler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.ignition.support.cache;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+/**
+ * The background threads of an {@link AbstractCache}: a single maintenance thread for disk cache
+ * housekeeping, a small pool for asynchronous reads and writes, and another one for refreshing
+ * entries. Threads are only started once needed, and started again if the cache is used after
+ * {@link #shutdown(Runnable)}.
+ *
+ * @author Matthias Kaeppler
+ */
+class CacheThreads {
+
+    // how many entries the cache's own refresh pool reloads at a time
+    private static final int REFRESH_THREAD_COUNT = 2;
+
+    // how many asynchronous reads and writes are performed at a time
+    private static final int IO_THREAD_COUNT = 2;
+
+    private final String name;
+
+    // guarded by this
+    private ExecutorService maintenanceExecutor, refreshExecutor, ioExecutor;
+
+    // guarded by this; keeps asynchronous writes in order
+    private Executor asyncWriteExecutor;
+
+    /**
+     * Runs tasks on whichever maintenance thread is current, since {@link #shutdown(Runnable)}
+     * replaces it.
+     */
+    final Executor maintenanceTasks = new Executor() {
+        @Override
+        public void execute(Runnable task) {
+            getMaintenanceExecutor().execute(task);
+        }
+    };
+
+    /**
+     * Like {@link #maintenanceTasks}, for refreshes on the cache's own threads.
+     */
+    final Executor refreshTasks = new Executor() {
+        @Override
+        public void execute(Runnable task) {
+            getRefreshExecutor().execute(task);
+        }
+    };
+
+    CacheThreads(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Returns the single background thread which performs disk cache housekeeping, such as
+     * compacting the disk index.
+     */
+    synchronized ExecutorService getMaintenanceExecutor() {
+        if (maintenanceExecutor == null) {
+            maintenanceExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "CacheFu[" + name + "]");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+        }
+        return maintenanceExecutor;
+    }
+
+    /**
+     * Runs a task on the maintenance thread, unless {@link #shutdown(Runnable)} is stopping it.
+     *
+     * @return false if the task was rejected
+     */
+    boolean executeMaintenance(Runnable task) {
+        try {
+            getMaintenanceExecutor().execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    synchronized ExecutorService getIoExecutor() {
+        if (ioExecutor == null) {
+            ioExecutor = Executors.newFixedThreadPool(IO_THREAD_COUNT, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "CacheFu[" + name + "]-io");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            asyncWriteExecutor = new SerialExecutor(ioExecutor);
+        }
+        return ioExecutor;
+    }
+
+    /**
+     * Returns an executor which runs tasks on the I/O threads one at a time, in the order they
+     * were submitted.
+     */
+    synchronized Executor getAsyncWriteExecutor() {
+        getIoExecutor();
+        return asyncWriteExecutor;
+    }
+
+    private synchronized ExecutorService getRefreshExecutor() {
+        if (refreshExecutor == null) {
+            refreshExecutor = Executors.newFixedThreadPool(REFRESH_THREAD_COUNT,
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "CacheFu[" + name + "]-refresh");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        }
+        return refreshExecutor;
+    }
+
+    /**
+     * Lets the I/O threads finish the tasks they were given, runs the given task, then lets the
+     * maintenance thread finish, too, and stops all threads. Refreshes in progress are left to
+     * finish in the background. Tasks handed to the threads in the meantime may be rejected;
+     * threads are only started again once this returns.
+     *
+     * @param afterIo
+     *            runs once the I/O threads are done, e.g. to stop what they may have fed
+     */
+    void shutdown(Runnable afterIo) {
+        ExecutorService io;
+        synchronized (this) {
+            io = ioExecutor;
+        }
+        awaitShutdown(io);
+        afterIo.run();
+        ExecutorService maintenance, refresh;
+        synchronized (this) {
+            maintenance = maintenanceExecutor;
+            refresh = refreshExecutor;
+        }
+        awaitShutdown(maintenance);
+        if (refresh != null) {
+            refresh.shutdown();
+        }
+        synchronized (this) {
+            if (ioExecutor == io) {
+                ioExecutor = null;
+                asyncWriteExecutor = null;
+            }
+            if (maintenanceExecutor == maintenance) {
+                maintenanceExecutor = null;
+            }
+            if (refreshExecutor == refresh) {
+                refreshExecutor = null;
+            }
+        }
+    }
+
+    /**
+     * Lets the given executor finish the tasks it was given, then waits for its threads to stop.
+     * There's no time limit, since those tasks may be writes which must not be lost; a task which
+     * never finishes, e.g. because it's stuck on a hung storage device, therefore blocks the
+     * caller for good. Every second spent waiting is logged, so that such a hang shows up.
+     * Interrupting the caller ends the wait early, leaving the remaining tasks to finish in the
+     * background.
+     */
+    private void awaitShutdown(ExecutorService executor) {
+        if (executor == null) {
+            return;
+        }
+        executor.shutdown();
+        try {
+            int secondsWaited = 0;
+            while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                secondsWaited++;
+                Log.w(name, "Still waiting for background tasks to finish after " + secondsWaited
+                        + "s");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,58 @@
+/* Copyright (c) 2009-2011 Matthias Kaeppler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.ignition.support.cache;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Transforms values on their way to and from the disk cache, usually by compressing them. A
+ * cache writes new files using the codec set with {@link AbstractCache#setCodec(Codec)}, and
+ * records the codec's ID in every file, so that files written using a different codec remain
+ * readable as long as that codec is registered with the cache (see
+ * {@link AbstractCache#registerCodec(Codec)}). See {@link Codecs} for the built-in codecs.
+ *
+ * @author Matthias Kaeppler
+ */
+public interface Codec {
+
+    /**
+     * @return the ID stored with every file written using this codec; must be between 0 and 127
+     *         and unique among the codecs registered with a cache. The IDs of the built-in codecs
+     *         are taken.
+     */
+    int getId();
+
+    /**
+     * Wraps the given stream in one which encodes everything written to it. The cache closes the
+     * returned stream after writing a value, which must write out any buffered data and close the
+     * given stream (which does not close the underlying file).
+     *
+     * @param ostream
+     *            the stream to write the encoded data to
+     */
+    OutputStream encode(OutputStream ostream) throws IOException;
+
+    /**
+     * Wraps the given stream in one which decodes data read from it. The cache closes the
+     * returned stream after reading a value.
+     *
+     * @param istream
+     *            the stream to read the encoded data from; ends where the encoded data ends
+     */
+    InputStream decode(InputStream istream) throws IOException;
+}
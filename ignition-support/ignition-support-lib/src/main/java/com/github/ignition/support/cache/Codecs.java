@@ -0,0 +1,114 @@
+/* Copyright (c) 2009-2011 Matthias Kaeppler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.ignition.support.cache;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The {@link Codec}s every cache knows about.
+ *
+ * @author Matthias Kaeppler
+ */
+public final class Codecs {
+
+    /**
+     * Stores values as they are. This is the default.
+     */
+    public static final Codec IDENTITY = new Codec() {
+        @Override
+        public int getId() {
+            return 0;
+        }
+
+        @Override
+        public OutputStream encode(OutputStream ostream) {
+            return ostream;
+        }
+
+        @Override
+        public InputStream decode(InputStream istream) {
+            return istream;
+        }
+    };
+
+    /**
+     * Compresses values using zlib, which achieves good compression ratios at moderate speed.
+     */
+    public static final Codec DEFLATE = new DeflateCodec(1, Deflater.DEFAULT_COMPRESSION);
+
+    /**
+     * Compresses values using a fast LZ77 variant implemented in Java. Doesn't compress as well as
+     * {@link #DEFLATE}, but is several times faster, particularly when decompressing.
+     */
+    public static final Codec LZ = new LzCodec(2);
+
+    private Codecs() {
+    }
+
+    private static final class DeflateCodec implements Codec {
+
+        private final int id;
+
+        private final int level;
+
+        DeflateCodec(int id, int level) {
+            this.id = id;
+            this.level = level;
+        }
+
+        @Override
+        public int getId() {
+            return id;
+        }
+
+        @Override
+        public OutputStream encode(OutputStream ostream) {
+            final Deflater deflater = new Deflater(level);
+            return new DeflaterOutputStream(ostream, deflater, 4096) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        // only the default deflater is released by the stream itself
+                        deflater.end();
+                    }
+                }
+            };
+        }
+
+        @Override
+        public InputStream decode(InputStream istream) {
+            final Inflater inflater = new Inflater();
+            return new InflaterInputStream(istream, inflater, 4096) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        inflater.end();
+                    }
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/* Copyright (c) 2009-2011 Matthias Kaeppler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.ignition.support.cache;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * A Bloom filter over strings which also supports removal, by keeping a small counter rather
+ * than a single bit per slot. Lookups never block and never report a string which was added (and
+ * not removed since) as absent; strings which were never added are reported as possibly present
+ * with a small probability, about 1% as long as the filter holds no more strings than it was
+ * sized for.
+ * <p>
+ * Counters are 4 bits wide, eight to an int. A counter which reaches its maximum stays there for
+ * good, since it no longer knows how many strings it stands for; this only ever costs accuracy,
+ * never correctness. Concurrent modifications are safe, though callers usually serialize them
+ * anyway.
+ * </p>
+ *
+ * @author Matthias Kaeppler
+ */
+final class CountingBloomFilter {
+
+    private static final int COUNTERS_PER_SLOT = 10;
+
+    private static final int HASH_COUNT = 5;
+
+    private static final int MIN_COUNTERS = 64;
+
+    private static final int MAX_COUNT = 0xf;
+
+    private final AtomicIntegerArray words;
+
+    private final int counterMask;
+
+    private final int capacity;
+
+    /**
+     * @param capacity
+     *            the number of strings the filter is expected to hold at most
+     */
+    CountingBloomFilter(int capacity) {
+        int numCounters = MIN_COUNTERS;
+        while (numCounters < (long) capacity * COUNTERS_PER_SLOT && numCounters < 1 << 30) {
+            numCounters <<= 1;
+        }
+        this.words = new AtomicIntegerArray(numCounters / 8);
+        this.counterMask = numCounters - 1;
+        this.capacity = capacity;
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return false if the string is definitely absent, true if it may be present
+     */
+    boolean mightContain(String s) {
+        long hash = hash(s);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        for (int i = 0; i < HASH_COUNT; i++) {
+            if (getCount((h1 + i * h2) & counterMask) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void add(String s) {
+        long hash = hash(s);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        for (int i = 0; i < HASH_COUNT; i++) {
+            addToCount((h1 + i * h2) & counterMask, 1);
+        }
+    }
+
+    /**
+     * Removes a string which was previously added. Removing anything else corrupts the filter.
+     */
+    void remove(String s) {
+        long hash = hash(s);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        for (int i = 0; i < HASH_COUNT; i++) {
+            addToCount((h1 + i * h2) & counterMask, -1);
+        }
+    }
+
+    private int getCount(int counter) {
+        return (words.get(counter >>> 3) >>> ((counter & 7) << 2)) & MAX_COUNT;
+    }
+
+    private void addToCount(int counter, int delta) {
+        int index = counter >>> 3;
+        int shift = (counter & 7) << 2;
+        while (true) {
+            int word = words.get(index);
+            int count = (word >>> shift) & MAX_COUNT;
+            if (count == MAX_COUNT || (count == 0 && delta < 0)) {
+                // saturated, or never added
+                return;
+            }
+            int updated = (word & ~(MAX_COUNT << shift)) | ((count + delta) << shift);
+            if (words.compareAndSet(index, word, updated)) {
+                return;
+            }
+        }
+    }
+
+    // the two halves of the result serve as the two base hashes, from which all others are
+    // derived; mixing String's cached hash code is much cheaper than hashing the string again
+    private static long hash(String s) {
+        long h = s.hashCode();
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,277 @@
+/* Copyright (c) 2009-2011 Matthias Kaeppler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.ignition.support.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import android.util.Log;
+
+/**
+ * Manages the generation directories of a disk cache. Everything {@link AbstractCache} writes to
+ * disk (cache files, pack segments, the journal and the hot-key manifest) lives in a directory
+ * named after the cache's data version and a generation number, e.g. <code>v1.3</code>, below
+ * the cache's root directory. Only the latest generation of the current version is in use.
+ * <p>
+ * This makes discarding the entire disk cache, or all of it that was written under a different
+ * version, a matter of creating a new directory. Whatever is left of older generations is deleted
+ * later, on a background thread (see {@link Sweeper}), so nobody has to wait for it.
+ * </p>
+ * <p>
+ * When several processes share the root directory, each of them holds a shared lock on the
+ * generation it uses (see {@link #lockForUse(File)}), and the sweeper leaves generations alone
+ * while anyone does, since another process may not have noticed a new generation yet.
+ * </p>
+ *
+ * @author Matthias Kaeppler
+ */
+final class DiskGenerations {
+
+    private static final String LOG_TAG = "Droid-Fu[CacheFu]";
+
+    private static final String NOMEDIA_FILE_NAME = ".nomedia";
+
+    private static final String USE_LOCK_FILE_NAME = ".use.lock";
+
+    // how many files the sweeper deletes before giving other maintenance tasks a turn
+    private static final int SWEEP_BATCH_SIZE = 64;
+
+    private DiskGenerations() {
+    }
+
+    /**
+     * @return the latest generation of the given version in the root directory, or -1 if there is
+     *         none
+     */
+    static int findLatest(File root, int version) {
+        String[] names = root.list();
+        int latest = -1;
+        if (names != null) {
+            for (String name : names) {
+                latest = Math.max(latest, parseGeneration(name, version));
+            }
+        }
+        return latest;
+    }
+
+    /**
+     * @return the directory of the given generation, which need not exist
+     */
+    static File getDirectory(File root, int version, int generation) {
+        return new File(root, "v" + version + "." + generation);
+    }
+
+    /**
+     * Marks a generation directory as being in use by this process, which keeps the sweepers of
+     * other processes from deleting it. Never blocks: if the directory is being swept already,
+     * there's nothing left to protect.
+     * 
+     * @return the lock, to be passed to {@link #release(FileLock)} once the directory is no longer
+     *         used, or null if it couldn't be taken
+     */
+    static FileLock lockForUse(File directory) {
+        return tryLock(directory, true);
+    }
+
+    static void release(FileLock lock) {
+        if (lock != null) {
+            try {
+                // closing the channel releases the lock
+                lock.channel().close();
+            } catch (IOException e) {
+                // nothing we can do about it
+            }
+        }
+    }
+
+    // returns null if another process (or another cache of this one) holds a conflicting lock
+    private static FileLock tryLock(File directory, boolean isShared) {
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(new File(directory, USE_LOCK_FILE_NAME), "rw");
+            FileLock lock = file.getChannel().tryLock(0, Long.MAX_VALUE, isShared);
+            if (lock != null) {
+                return lock;
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Failed locking cache generation " + directory.getName() + ": "
+                    + e.getMessage());
+        } catch (OverlappingFileLockException e) {
+            // held by this process, through a different channel
+        }
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                // nothing we can do about it
+            }
+        }
+        return null;
+    }
+
+    // returns -1 if the name isn't that of a generation of the given version
+    private static int parseGeneration(String name, int version) {
+        String prefix = "v" + version + ".";
+        if (!name.startsWith(prefix)) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(name.substring(prefix.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Collects what can be deleted once the given generation directory is in use: all other
+     * directories in the root directory, which are either older generations, or were written by a
+     * version of the cache which didn't have generations, as well as the files such versions kept
+     * at the top level. Files written by even older versions, which kept cache files at the top
+     * level, too, are only included if asked for, since they may still be migrated. Later
+     * generations of the same version are left alone, since they can only have been started by
+     * another process sharing the directory.
+     */
+    static Sweeper sweeperFor(File root, File current, boolean includeLegacyFiles) {
+        Sweeper sweeper = new Sweeper();
+        File[] files = root.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (file.equals(current) || name.equals(NOMEDIA_FILE_NAME)
+                        || isLaterGeneration(name, current.getName())) {
+                    continue;
+                }
+                if (file.isDirectory()) {
+                    sweeper.pending.add(file);
+                    sweeper.directories.add(file);
+                } else if (name.startsWith(".") || includeLegacyFiles) {
+                    sweeper.pending.add(file);
+                }
+            }
+        }
+        return sweeper;
+    }
+
+    private static boolean isLaterGeneration(String name, String current) {
+        int dot = current.lastIndexOf('.');
+        if (dot < 0 || !name.startsWith(current.substring(0, dot + 1))) {
+            return false;
+        }
+        try {
+            return Integer.parseInt(name.substring(dot + 1)) > Integer.parseInt(current
+                    .substring(dot + 1));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Deletes a list of files and directories, including everything in them, a batch at a time.
+     * Every batch is a separate task on the executor it's started on. Directories which another
+     * process still uses are skipped, and left to a later sweep; the others are locked until
+     * they're gone.
+     */
+    static final class Sweeper implements Runnable {
+
+        // used as a stack, so that directories are emptied before they're deleted
+        private final List<File> pending = new ArrayList<File>();
+
+        // directories whose contents have been added to the stack already
+        private final Set<File> listed = new HashSet<File>();
+
+        // the directories at the top level, which may be in use by other processes
+        private final Set<File> directories = new HashSet<File>();
+
+        // the lock on the top-level directory being deleted
+        private FileLock lock;
+
+        private Executor executor;
+
+        private int deleted;
+
+        private Sweeper() {
+        }
+
+        /**
+         * Runs the sweeper on the given executor, unless there's nothing to delete.
+         */
+        void start(Executor executor) {
+            this.executor = executor;
+            if (!pending.isEmpty()) {
+                schedule();
+            }
+        }
+
+        @Override
+        public void run() {
+            for (int i = 0; i < SWEEP_BATCH_SIZE && !pending.isEmpty(); i++) {
+                File file = pending.get(pending.size() - 1);
+                if (directories.contains(file) && !listed.contains(file)) {
+                    lock = tryLock(file, false);
+                    if (lock == null) {
+                        Log.d(LOG_TAG, "Not sweeping " + file.getName() + ", still in use");
+                        pending.remove(pending.size() - 1);
+                        continue;
+                    }
+                }
+                if (listed.add(file)) {
+                    File[] children = file.listFiles();
+                    if (children != null && children.length > 0) {
+                        for (File child : children) {
+                            pending.add(child);
+                        }
+                        continue;
+                    }
+                }
+                pending.remove(pending.size() - 1);
+                listed.remove(file);
+                if (directories.contains(file)) {
+                    // the lock file is gone already, but the lock is still held
+                    release(lock);
+                    lock = null;
+                }
+                if (file.delete()) {
+                    deleted++;
+                }
+            }
+            if (!pending.isEmpty()) {
+                schedule();
+            } else if (deleted > 0) {
+                Log.d(LOG_TAG, "Deleted " + deleted + " files of discarded cache generations");
+            }
+        }
+
+        private void schedule() {
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                // the cache is being closed; whatever's left is swept when it's next started
+                Log.d(LOG_TAG, "Sweeping discarded cache generations stopped early");
+                release(lock);
+                lock = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,1420 @@
+/* Copyright (c) 2009-2011 Matthias Kaeppler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.ignition.support.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import android.util.Log;
+
+/**
+ * An in-memory index of the files in a disk cache directory, backed by an append-only journal.
+ * The journal is replayed once, when the index is first used; from then on presence checks,
+ * expiry checks and size accounting are plain lookups, and no longer need to touch the file
+ * system.
+ * <p>
+ * Every change to the index appends a small record to the journal. Since records superseded by
+ * later ones pile up over time, the journal is rewritten from the current index state every now
+ * and then. This happens on a background thread, and doesn't block index updates.
+ * </p>
+ * <p>
+ * Since the journal records accesses as well, the index also remembers the order in which files
+ * were last used across restarts, which is what the disk cache quota relies on for evicting the
+ * least recently used files first.
+ * </p>
+ * <p>
+ * The index tolerates getting out of sync with the directory, e.g. if the process dies before
+ * buffered records are written: a file missing from the index is merely a cache miss, and an
+ * index entry without a file is dropped the first time its file fails to open.
+ * </p>
+ * <p>
+ * Cache files are spread across up to 256 subdirectories, so that no single directory grows
+ * large enough for lookups in it to become slow. The subdirectory is derived from the file name
+ * (see {@link #getFile(String)}), so the index only needs to store the latter.
+ * </p>
+ * <p>
+ * The index also records the key stored in each file, and keeps the keys sorted, so that all
+ * files whose keys share a prefix can be found without reading any file headers (see
+ * {@link #entriesWithKeyPrefix(String)}).
+ * </p>
+ * <p>
+ * Small entries may be packed into the segment files of a {@link PackStore} rather than stored
+ * in files of their own. The index records where each packed entry lives, and keeps track of how
+ * many bytes of each segment are still in use, so that mostly dead segments can be compacted
+ * (see {@link #segmentsToCompact()}).
+ * </p>
+ * <p>
+ * A shared index (see {@link #DiskIndex(File, Executor, boolean)}) may be used by several
+ * processes at once, each of which keeps an index of its own. Every access to the journal then
+ * happens under a file lock: records are appended in one go, after applying whatever the other
+ * processes have appended since, and compaction holds the lock throughout. {@link #refresh()}
+ * catches up with the other processes in between, and only needs to look at the journal's length
+ * and modification date if there's nothing new. Pack segments can't be shared, so shared indexes
+ * should only be used for entries with files of their own.
+ * </p>
+ * <p>
+ * Lookups don't take any locks, and updates only hold the index's monitor while changing the
+ * entries in memory. The journal is never touched while holding the monitor: records are
+ * buffered, and written out in the background by the executor passed to the constructor, as is
+ * the compacted journal.
+ * </p>
+ *
+ * @author Matthias Kaeppler
+ */
+class DiskIndex {
+
+    static final String JOURNAL_FILE_NAME = ".journal";
+
+    private static final String LOG_TAG = "Droid-Fu[CacheFu]";
+
+    private static final String JOURNAL_TMP_FILE_NAME = ".journal.tmp";
+
+    private static final String LOCK_FILE_NAME = ".journal.lock";
+
+    private static final int JOURNAL_MAGIC = 0x4a524e4c;
+
+    // version 2 moved all files into shard directories, version 3 added keys to put records,
+    // version 4 write times, version 5 pack locations and version 6 the journal ID
+    private static final int JOURNAL_VERSION = 6;
+
+    // buffered records are written out once there are this many bytes of them, even if none of
+    // them asked to be written right away
+    private static final int MAX_PENDING_RECORD_BYTES = 8 * 1024;
+
+    private static final Random JOURNAL_IDS = new Random();
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static final int MIN_FILTER_CAPACITY = 1024;
+
+    private static final byte OP_PUT = 1;
+    private static final byte OP_ACCESS = 2;
+    private static final byte OP_REMOVE = 3;
+    private static final byte OP_MOVE = 4;
+
+    // rewrite the journal once this many records have become obsolete (and they outnumber the
+    // live entries)
+    private static final int COMPACTION_THRESHOLD = 2000;
+
+    // cache files are written under this suffix, and renamed once complete
+    static final String TMP_FILE_SUFFIX = ".tmp";
+
+    // a temporary file this old was left behind by a process which died while writing it
+    private static final long STALE_TMP_FILE_AGE = 60 * 60 * 1000;
+
+    // file systems may round modification dates down to this
+    private static final long MODIFICATION_DATE_GRANULARITY = 2000;
+
+    /**
+     * An index entry, describing a single cached file. Entries are immutable, so snapshots of the
+     * index can be handed out freely.
+     */
+    static final class Entry {
+        final String fileName;
+        final String key;
+        final long size;
+        final long writtenAt;
+        final long expiresAt;
+        final long lastAccess;
+        // the pack segment and offset the entry is stored at, or -1 if it has a file of its own
+        final int segment;
+        final int offset;
+
+        Entry(String fileName, String key, long size, long writtenAt, long expiresAt,
+                long lastAccess) {
+            this(fileName, key, size, writtenAt, expiresAt, lastAccess, -1, 0);
+        }
+
+        Entry(String fileName, String key, long size, long writtenAt, long expiresAt,
+                long lastAccess, int segment, int offset) {
+            this.fileName = fileName;
+            this.key = key;
+            this.size = size;
+            this.writtenAt = writtenAt;
+            this.expiresAt = expiresAt;
+            this.lastAccess = lastAccess;
+            this.segment = segment;
+            this.offset = offset;
+        }
+
+        boolean isExpired(long now) {
+            return now >= expiresAt;
+        }
+
+        /**
+         * @return whether the entry is stored in a pack segment rather than a file of its own
+         */
+        boolean isPacked() {
+            return segment >= 0;
+        }
+    }
+
+    private final File directory;
+
+    private final File journalFile;
+
+    private final Executor executor;
+
+    private final PackStore packStore;
+
+    private final boolean isShared;
+
+    private final File lockFile;
+
+    // serializes all reads and writes of the journal, which happen without holding the monitor,
+    // so that lookups and updates of the index never wait for the file system. Never acquired
+    // while holding the monitor
+    private final Object journalLock = new Object();
+
+    // held open while the index is in use, so that locking the journal is cheap; shared index
+    // only. Guarded by journalLock
+    private RandomAccessFile lockAccess;
+
+    // changes whenever the journal is rewritten from scratch, which tells a shared index that it
+    // has to reload rather than read on where it left off. Guarded by journalLock
+    private long journalId;
+
+    // how much of the journal a shared index has applied, and the journal's modification date at
+    // that point; written while holding journalLock
+    private volatile long journalLength;
+
+    private volatile long journalModified;
+
+    // guarded by journalLock
+    private DataOutputStream journalWriter;
+
+    // guarded by journalLock
+    private boolean isShutdown;
+
+    // keeps other processes from sweeping the directory while a shared index uses it; guarded by
+    // journalLock
+    private FileLock useLock;
+
+    // the records yet to be appended to the journal; guarded by this
+    private final ByteArrayOutputStream pendingRecords = new ByteArrayOutputStream();
+
+    // whether a task appending the pending records has been scheduled; guarded by this
+    private boolean isWriteScheduled;
+
+    // in order of last access, eldest first; guarded by this
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>();
+
+    // the same entries, for lookups which don't need the monitor. Modified while holding it
+    private final ConcurrentHashMap<String, Entry> lookup = new ConcurrentHashMap<String, Entry>();
+
+    // maps keys to file names, sorted so that keys sharing a prefix can be found quickly; guarded
+    // by this
+    private final TreeMap<String, String> keyIndex = new TreeMap<String, String>();
+
+    // the file names of all entries, for lock-free presence checks; null until the index has been
+    // loaded, since any file may exist until then. Modified while holding this
+    private volatile CountingBloomFilter filter;
+
+    // all entries, soonest to expire first; guarded by this. Since accesses replace entries with
+    // copies that compare equal, the queue may hold an outdated copy, so look entries up by file
+    // name before using them
+    private final TreeSet<Entry> expiryQueue = new TreeSet<Entry>(new Comparator<Entry>() {
+        @Override
+        public int compare(Entry lhs, Entry rhs) {
+            if (lhs.expiresAt != rhs.expiresAt) {
+                return lhs.expiresAt < rhs.expiresAt ? -1 : 1;
+            }
+            return lhs.fileName.compareTo(rhs.fileName);
+        }
+    });
+
+    // the number of bytes of each pack segment used by live entries; segments without any are
+    // absent. Guarded by this
+    private final Map<Integer, Long> liveSegmentBytes = new HashMap<Integer, Long>();
+
+    // whether a segment may have become mostly dead space since the last compaction; guarded by
+    // this, as are the following fields
+    private boolean hasDeadSegments;
+
+    private long totalSize;
+
+    private int redundantRecords;
+
+    // records are serialized here first, so they can be written to more than one place
+    private final ByteArrayOutputStream recordBuffer = new ByteArrayOutputStream(128);
+
+    private final DataOutputStream recordWriter = new DataOutputStream(recordBuffer);
+
+    private volatile boolean isLoaded;
+
+    // guarded by this
+    private boolean isCompacting;
+
+    private final Runnable pendingRecordsWriter = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (DiskIndex.this) {
+                isWriteScheduled = false;
+            }
+            flush();
+        }
+    };
+
+    DiskIndex(File directory, Executor executor) {
+        this(directory, executor, false);
+    }
+
+    /**
+     * @param executor
+     *            runs journal writes and compactions
+     * @param isShared
+     *            whether other processes may use the directory at the same time
+     */
+    DiskIndex(File directory, Executor executor, boolean isShared) {
+        this.directory = directory;
+        this.journalFile = new File(directory, JOURNAL_FILE_NAME);
+        this.executor = executor;
+        this.packStore = new PackStore(new File(directory, PackStore.DIRECTORY_NAME));
+        this.isShared = isShared;
+        this.lockFile = new File(directory, LOCK_FILE_NAME);
+        if (isShared) {
+            useLock = DiskGenerations.lockForUse(directory);
+        }
+    }
+
+    /**
+     * Populates the index by replaying the journal. If there is no journal yet (or it's
+     * unreadable), the index is rebuilt from the directory contents instead, taking expiry times
+     * from the files' headers and deriving the access order from their modification dates. Files
+     * without a valid {@link EntryHeader} are deleted in the process, unless they may still be
+     * being written (see {@link #indexShard(File, long, List)}).
+     * <p>
+     * Does nothing if the index has been loaded already. Since this reads the whole journal, or
+     * even every file header, it should be called on a background thread right after creating
+     * the index. The index can be used in the meantime: changes made to it are carried over, and
+     * until it's loaded, {@link #get(String)} falls back to reading file headers.
+     * </p>
+     */
+    void load() {
+        synchronized (journalLock) {
+            if (isLoaded || isShutdown) {
+                return;
+            }
+            FileLock lock = null;
+            if (isShared) {
+                try {
+                    lock = lockJournal();
+                } catch (IOException e) {
+                    // still better than no index at all
+                    Log.w(LOG_TAG, "Failed locking cache journal: " + e.getMessage());
+                }
+            }
+            try {
+                reload();
+            } finally {
+                release(lock);
+            }
+        }
+        synchronized (this) {
+            if (pendingRecords.size() > 0) {
+                // changes made while loading
+                scheduleWrite();
+            }
+        }
+    }
+
+    /**
+     * @return whether {@link #load()} has completed
+     */
+    boolean isLoaded() {
+        return isLoaded;
+    }
+
+    // must hold journalLock, and in a shared index the journal lock as well
+    private void reload() {
+        byte[] journal = null;
+        try {
+            journal = readJournal();
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Failed reading cache journal, rebuilding index: " + e.getMessage());
+        }
+
+        boolean isJournalIntact = false;
+        boolean isRebuildNeeded;
+        synchronized (this) {
+            clearEntries();
+            if (journal != null) {
+                try {
+                    isJournalIntact = readRecords(journal);
+                } catch (IOException e) {
+                    Log.w(LOG_TAG, "Failed reading cache journal, rebuilding index: "
+                            + e.getMessage());
+                    clearEntries();
+                }
+            }
+            isRebuildNeeded = entries.isEmpty() && !isJournalIntact;
+        }
+        // pack segments still hold records which were removed, and which would come back to
+        // life if the index was rebuilt from them; since no entry refers to them now, they're
+        // deleted when the store is opened
+        List<Entry> rebuilt = isRebuildNeeded ? rebuildFromDirectory() : null;
+
+        Set<Integer> liveSegments;
+        synchronized (this) {
+            if (rebuilt != null) {
+                for (Entry entry : rebuilt) {
+                    applyPut(entry);
+                }
+            }
+            replayPendingRecords();
+            rebuildFilter(entries.size() * 2);
+            liveSegments = new HashSet<Integer>(liveSegmentBytes.keySet());
+        }
+        packStore.open(liveSegments);
+
+        try {
+            if (!isJournalIntact) {
+                // never append to a journal with a torn record at the end
+                rewriteJournal();
+            } else if (!isShared) {
+                openJournalWriter();
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed opening cache journal: " + e.getMessage());
+        }
+        synchronized (this) {
+            hasDeadSegments = !segmentsToCompact().isEmpty();
+        }
+        isLoaded = true;
+    }
+
+    // must hold the monitor
+    private void clearEntries() {
+        entries.clear();
+        lookup.clear();
+        keyIndex.clear();
+        expiryQueue.clear();
+        liveSegmentBytes.clear();
+        totalSize = 0;
+        redundantRecords = 0;
+    }
+
+    /**
+     * Reads the records of the journal. Must hold journalLock.
+     * 
+     * @return the records, or null if there's no journal, or it was written by a different
+     *         version
+     */
+    private byte[] readJournal() throws IOException {
+        FileInputStream istream;
+        try {
+            istream = new FileInputStream(journalFile);
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(istream);
+            if (in.readInt() != JOURNAL_MAGIC || in.readInt() != JOURNAL_VERSION) {
+                return null;
+            }
+            journalId = in.readLong();
+            byte[] records = readToEnd(istream);
+            journalLength = journalFile.length();
+            journalModified = journalFile.lastModified();
+            return records;
+        } catch (EOFException e) {
+            return null;
+        } finally {
+            istream.close();
+        }
+    }
+
+    private static byte[] readToEnd(InputStream istream) throws IOException {
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8 * 1024];
+        int bytesRead;
+        while ((bytesRead = istream.read(buffer)) != -1) {
+            records.write(buffer, 0, bytesRead);
+        }
+        return records.toByteArray();
+    }
+
+    /**
+     * Applies the given journal records. Must hold the monitor.
+     * 
+     * @return false if the records ended in the middle of a record, or held an unknown one
+     */
+    private boolean readRecords(byte[] records) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(records));
+        try {
+            while (true) {
+                int op = in.read();
+                if (op == -1) {
+                    return true;
+                }
+                String fileName = in.readUTF();
+                switch (op) {
+                case OP_PUT:
+                    String key = in.readUTF();
+                    long size = in.readLong();
+                    long writtenAt = in.readLong();
+                    long expiresAt = in.readLong();
+                    long lastAccess = in.readLong();
+                    int segment = in.readInt();
+                    int offset = in.readInt();
+                    applyPut(new Entry(fileName, key, size, writtenAt, expiresAt, lastAccess,
+                            segment, offset));
+                    break;
+                case OP_ACCESS:
+                    applyAccess(fileName, in.readLong());
+                    break;
+                case OP_REMOVE:
+                    applyRemove(fileName);
+                    break;
+                case OP_MOVE:
+                    int newSegment = in.readInt();
+                    int newOffset = in.readInt();
+                    applyMove(fileName, newSegment, newOffset);
+                    break;
+                default:
+                    return false;
+                }
+            }
+        } catch (EOFException e) {
+            // the process died while a record was being written
+            return false;
+        }
+    }
+
+    /**
+     * Applies the records which are yet to be written once more, so that they take precedence
+     * over what was just read, just like they will once they've been written. Must hold the
+     * monitor.
+     */
+    private void replayPendingRecords() {
+        if (pendingRecords.size() > 0) {
+            try {
+                readRecords(pendingRecords.toByteArray());
+            } catch (IOException e) {
+                // can't happen, the records were written by us
+                Log.e(LOG_TAG, "Failed replaying cache index records: " + e.getMessage());
+            }
+        }
+    }
+
+    private List<Entry> rebuildFromDirectory() {
+        long startedAt = System.currentTimeMillis();
+        List<Entry> rebuilt = new ArrayList<Entry>();
+        File[] shards = directory.listFiles();
+        if (shards == null) {
+            return rebuilt;
+        }
+        for (File shard : shards) {
+            // plain files at the top level are either ours (the journal) or were written by an
+            // older version of the cache, which doesn't use shard directories
+            if (isShardName(shard.getName()) && shard.isDirectory()) {
+                indexShard(shard, startedAt, rebuilt);
+            }
+        }
+        // the modification date is the best guess we have at the access order
+        Collections.sort(rebuilt, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry lhs, Entry rhs) {
+                return lhs.lastAccess < rhs.lastAccess ? -1 : (lhs.lastAccess == rhs.lastAccess ? 0
+                        : 1);
+            }
+        });
+        return rebuilt;
+    }
+
+    /**
+     * Adds the files of a shard directory to the rebuilt index, deleting those which are
+     * misplaced or corrupt. Files are written under a temporary name by whichever thread or
+     * process holds the lock for them, so those are left alone, unless their writer must have
+     * died long ago. So are files modified since the rebuild started, which may have been
+     * renamed into place while the directory was listed: they're left unindexed, and their
+     * writers add them to the index.
+     */
+    private static void indexShard(File shard, long startedAt, List<Entry> rebuilt) {
+        File[] files = shard.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String fileName = file.getName();
+            long modified = file.lastModified();
+            if (fileName.endsWith(TMP_FILE_SUFFIX)) {
+                if (modified < startedAt - STALE_TMP_FILE_AGE) {
+                    file.delete();
+                }
+                continue;
+            }
+            if (modified >= startedAt - MODIFICATION_DATE_GRANULARITY) {
+                continue;
+            }
+            if (!shard.getName().equals(getShardName(fileName))) {
+                file.delete();
+                continue;
+            }
+            EntryHeader header;
+            try {
+                header = EntryHeader.read(file);
+            } catch (IOException e) {
+                // written by an older version, or torn
+                file.delete();
+                continue;
+            }
+            rebuilt.add(new Entry(fileName, header.key, header.getFileSize(), header.writtenAt,
+                    header.expiresAt, modified));
+        }
+    }
+
+    /**
+     * @return the name of the shard directory the file with the given name belongs in
+     */
+    static String getShardName(String fileName) {
+        int h = fileName.hashCode();
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return new String(new char[] { HEX_DIGITS[(h >>> 4) & 0xf], HEX_DIGITS[h & 0xf] });
+    }
+
+    private static boolean isShardName(String name) {
+        return name.length() == 2 && Character.digit(name.charAt(0), 16) != -1
+                && Character.digit(name.charAt(1), 16) != -1;
+    }
+
+    /**
+     * @return the directory the index covers
+     */
+    File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Applies the changes other processes have made to a shared index since it was loaded or last
+     * refreshed. Costs two file system lookups if there are none. Does nothing if the index isn't
+     * shared, or hasn't been loaded yet.
+     */
+    void refresh() {
+        if (!isShared || !isLoaded || !isJournalChanged()) {
+            return;
+        }
+        synchronized (journalLock) {
+            if (isShutdown) {
+                return;
+            }
+            FileLock lock = null;
+            try {
+                lock = lockJournal();
+                readAppendedRecords();
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Failed refreshing cache index: " + e.getMessage());
+            } finally {
+                release(lock);
+            }
+        }
+    }
+
+    private boolean isJournalChanged() {
+        return journalFile.length() != journalLength
+                || journalFile.lastModified() != journalModified;
+    }
+
+    /**
+     * @return the location of the cache file with the given name, which need not exist
+     */
+    File getFile(String fileName) {
+        return new File(new File(directory, getShardName(fileName)), fileName);
+    }
+
+    /**
+     * Checks whether the index may have an entry for the given file, without blocking. Until the
+     * index has been loaded, every file is assumed to exist.
+     * 
+     * @return false if there definitely is no entry for the file
+     */
+    boolean mightContain(String fileName) {
+        CountingBloomFilter filter = this.filter;
+        return filter == null || filter.mightContain(fileName);
+    }
+
+    /**
+     * Looks up the entry for the given file. Never blocks once the index has been loaded; until
+     * then, files which aren't indexed yet are looked up on disk, by reading their headers.
+     * 
+     * @return the entry, or null if there is none
+     */
+    Entry get(String fileName) {
+        Entry entry = lookup.get(fileName);
+        if (entry != null || isLoaded) {
+            return entry;
+        }
+        File file = getFile(fileName);
+        try {
+            EntryHeader header = EntryHeader.read(file);
+            return new Entry(fileName, header.key, header.getFileSize(), header.writtenAt,
+                    header.expiresAt, file.lastModified());
+        } catch (IOException e) {
+            // missing, or left for the index to deal with
+            return null;
+        }
+    }
+
+    /**
+     * @return the store holding the packed entries; only ready for use once the index has been
+     *         loaded
+     */
+    PackStore getPackStore() {
+        return packStore;
+    }
+
+    void put(String fileName, String key, long size, long writtenAt, long expiresAt) {
+        put(fileName, key, size, writtenAt, expiresAt, true);
+    }
+
+    /**
+     * @param key
+     *            the cache key stored in the file
+     * @param flush
+     *            whether to have the journal record written out right away, in the background;
+     *            when adding many entries in a row, pass false and call {@link #flush()} at the
+     *            end
+     */
+    void put(String fileName, String key, long size, long writtenAt, long expiresAt,
+            boolean flush) {
+        put(fileName, key, size, writtenAt, expiresAt, -1, 0, flush);
+    }
+
+    /**
+     * Like {@link #put(String, String, long, long, long, boolean)}, but for an entry which has
+     * been appended to the {@link PackStore} rather than written to a file.
+     *
+     * @param segment
+     *            the segment holding the entry, or -1 if the entry has a file of its own
+     * @param offset
+     *            the offset of the entry within the segment
+     */
+    synchronized void put(String fileName, String key, long size, long writtenAt,
+            long expiresAt, int segment, int offset, boolean flush) {
+        Entry entry = new Entry(fileName, key, size, writtenAt, expiresAt, System
+                .currentTimeMillis(), segment, offset);
+        applyPut(entry);
+        try {
+            DataOutputStream record = beginRecord(OP_PUT, fileName);
+            record.writeUTF(entry.key);
+            record.writeLong(entry.size);
+            record.writeLong(entry.writtenAt);
+            record.writeLong(entry.expiresAt);
+            record.writeLong(entry.lastAccess);
+            record.writeInt(entry.segment);
+            record.writeInt(entry.offset);
+            appendRecord(flush);
+        } catch (IOException e) {
+            // can't happen, records are serialized in memory
+            Log.e(LOG_TAG, "Failed recording cache index change: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Records an access to the given file, making it the most recently used one.
+     */
+    synchronized void touch(String fileName) {
+        long now = System.currentTimeMillis();
+        if (!applyAccess(fileName, now)) {
+            return;
+        }
+        try {
+            DataOutputStream record = beginRecord(OP_ACCESS, fileName);
+            record.writeLong(now);
+            // losing an access record is harmless, so these can wait in the buffer
+            appendRecord(false);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed recording cache index change: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Records that a packed entry has been copied to a different location, e.g. during
+     * compaction. Unlike a put, this doesn't count as an access.
+     */
+    synchronized void move(String fileName, int segment, int offset) {
+        if (!applyMove(fileName, segment, offset)) {
+            return;
+        }
+        try {
+            DataOutputStream record = beginRecord(OP_MOVE, fileName);
+            record.writeInt(segment);
+            record.writeInt(offset);
+            // the old location stays valid until its segment is deleted, which flushes
+            appendRecord(false);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed recording cache index change: " + e.getMessage());
+        }
+    }
+
+    synchronized void remove(String fileName) {
+        // until the index is loaded, the entry may be yet to be read from the journal
+        if (!applyRemove(fileName) && isLoaded) {
+            return;
+        }
+        try {
+            beginRecord(OP_REMOVE, fileName);
+            appendRecord(true);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed recording cache index change: " + e.getMessage());
+        }
+    }
+
+    void clear() {
+        synchronized (journalLock) {
+            FileLock lock = null;
+            try {
+                if (isShared) {
+                    lock = lockJournal();
+                }
+                synchronized (this) {
+                    // no point in loading what's about to be discarded
+                    isLoaded = true;
+                    clearEntries();
+                    hasDeadSegments = false;
+                    rebuildFilter(0);
+                }
+                packStore.clear();
+                rewriteJournal();
+            } catch (IOException e) {
+                journalFailed(e);
+            } finally {
+                release(lock);
+            }
+        }
+    }
+
+    synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    /**
+     * @return the summed size in bytes of all indexed files
+     */
+    synchronized long getTotalSize() {
+        return totalSize;
+    }
+
+    /**
+     * @return a copy of all index entries, least recently used first
+     */
+    synchronized List<Entry> snapshot() {
+        return new ArrayList<Entry>(entries.values());
+    }
+
+    /**
+     * Finds the entries whose keys start with the given prefix. Costs time proportional to the
+     * number of matches, not the size of the index.
+     *
+     * @return the matching entries, in key order
+     */
+    synchronized List<Entry> entriesWithKeyPrefix(String keyPrefix) {
+        List<Entry> matches = new ArrayList<Entry>();
+        for (Map.Entry<String, String> mapping : keyIndex.tailMap(keyPrefix).entrySet()) {
+            if (!mapping.getKey().startsWith(keyPrefix)) {
+                break;
+            }
+            matches.add(entries.get(mapping.getValue()));
+        }
+        return matches;
+    }
+
+    /**
+     * @return the time at which the next entry expires, or {@link Long#MAX_VALUE} if the index is
+     *         empty
+     */
+    synchronized long getNextExpiry() {
+        return expiryQueue.isEmpty() ? Long.MAX_VALUE : expiryQueue.first().expiresAt;
+    }
+
+    /**
+     * Finds entries which have expired, without scanning the whole index.
+     * 
+     * @param count
+     *            the maximum number of entries to return
+     * @return expired entries, soonest expired first
+     */
+    synchronized List<Entry> expired(long now, int count) {
+        List<Entry> expired = new ArrayList<Entry>();
+        for (Entry queued : expiryQueue) {
+            if (expired.size() == count || queued.expiresAt > now) {
+                break;
+            }
+            expired.add(entries.get(queued.fileName));
+        }
+        return expired;
+    }
+
+    /**
+     * @param count
+     *            the maximum number of entries to return
+     * @return the least recently used entries, eldest first
+     */
+    synchronized List<Entry> eldest(int count) {
+        List<Entry> eldest = new ArrayList<Entry>(Math.min(count, entries.size()));
+        for (Entry entry : entries.values()) {
+            if (eldest.size() == count) {
+                break;
+            }
+            eldest.add(entry);
+        }
+        return eldest;
+    }
+
+    /**
+     * @return whether any pack segment may have become mostly dead space, i.e. whether
+     *         {@link #segmentsToCompact()} is likely to find something
+     */
+    synchronized boolean hasSegmentsToCompact() {
+        return hasDeadSegments;
+    }
+
+    /**
+     * Finds the pack segments of which at most half is still in use. Their remaining entries
+     * should be moved elsewhere (see {@link #move(String, int, int)}), after which the segments
+     * can be deleted using {@link #deleteSegmentIfEmpty(int)}. The active segment is never
+     * returned, since it's still growing.
+     *
+     * @return the numbers of the segments worth compacting
+     */
+    synchronized List<Integer> segmentsToCompact() {
+        hasDeadSegments = false;
+        List<Integer> segments = new ArrayList<Integer>();
+        for (int segment : packStore.getSegments()) {
+            if (isMostlyDead(segment)) {
+                segments.add(segment);
+            }
+        }
+        return segments;
+    }
+
+    private boolean isMostlyDead(int segment) {
+        if (segment == packStore.getActiveSegment()) {
+            return false;
+        }
+        Long liveBytes = liveSegmentBytes.get(segment);
+        return (liveBytes == null ? 0 : liveBytes) * 2 <= packStore.getLength(segment);
+    }
+
+    /**
+     * @return the entries stored in the given pack segment
+     */
+    synchronized List<Entry> entriesInSegment(int segment) {
+        List<Entry> matches = new ArrayList<Entry>();
+        if (liveSegmentBytes.containsKey(segment)) {
+            for (Entry entry : entries.values()) {
+                if (entry.segment == segment) {
+                    matches.add(entry);
+                }
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Deletes the given pack segment, unless it's still in use.
+     */
+    void deleteSegmentIfEmpty(int segment) {
+        synchronized (this) {
+            // entries are only ever added to the active segment, so this can't change anymore
+            if (liveSegmentBytes.containsKey(segment) || segment == packStore.getActiveSegment()) {
+                return;
+            }
+        }
+        // the records moving entries out of the segment must be on disk before it's gone
+        flush();
+        packStore.delete(segment);
+    }
+
+    /**
+     * Writes out any buffered journal records, on the calling thread. Does nothing until the
+     * index has been loaded.
+     */
+    void flush() {
+        synchronized (journalLock) {
+            writePendingRecords();
+        }
+    }
+
+    /**
+     * Writes out any buffered journal records, and closes the journal. The index remains usable,
+     * and reopens the journal when it's next written to.
+     */
+    void close() {
+        synchronized (journalLock) {
+            writePendingRecords();
+            closeJournalWriter();
+        }
+    }
+
+    /**
+     * Closes the journal and the pack segments, when the index is no longer going to be used.
+     * Threads which still hold on to the index may go on calling it, but their changes are no
+     * longer written to the journal.
+     */
+    void shutdown() {
+        synchronized (journalLock) {
+            close();
+            isShutdown = true;
+            packStore.close();
+            DiskGenerations.release(useLock);
+            useLock = null;
+            if (lockAccess != null) {
+                try {
+                    lockAccess.close();
+                } catch (IOException e) {
+                    // nothing we can do about it
+                }
+                lockAccess = null;
+            }
+        }
+    }
+
+    // must hold journalLock
+    private void closeJournalWriter() {
+        if (journalWriter != null) {
+            try {
+                journalWriter.close();
+            } catch (IOException e) {
+                // nothing we can do about it
+            }
+            journalWriter = null;
+        }
+    }
+
+    private void applyPut(Entry entry) {
+        Entry previous = entries.remove(entry.fileName);
+        if (previous != null) {
+            totalSize -= previous.size;
+            redundantRecords++;
+            // the file may have belonged to a different key, which collided with this one
+            keyIndex.remove(previous.key);
+            expiryQueue.remove(previous);
+            removeLiveBytes(previous);
+        }
+        entries.put(entry.fileName, entry);
+        lookup.put(entry.fileName, entry);
+        keyIndex.put(entry.key, entry.fileName);
+        expiryQueue.add(entry);
+        addLiveBytes(entry);
+        if (previous == null && filter != null) {
+            if (entries.size() > filter.getCapacity()) {
+                rebuildFilter(entries.size() * 2);
+            } else {
+                filter.add(entry.fileName);
+            }
+        }
+        totalSize += entry.size;
+    }
+
+    private boolean applyAccess(String fileName, long time) {
+        Entry entry = entries.remove(fileName);
+        if (entry == null) {
+            return false;
+        }
+        // re-inserting moves the entry to the young end
+        entry = new Entry(fileName, entry.key, entry.size, entry.writtenAt, entry.expiresAt,
+                time, entry.segment, entry.offset);
+        entries.put(fileName, entry);
+        lookup.put(fileName, entry);
+        redundantRecords++;
+        return true;
+    }
+
+    private boolean applyMove(String fileName, int segment, int offset) {
+        Entry entry = entries.get(fileName);
+        if (entry == null) {
+            return false;
+        }
+        removeLiveBytes(entry);
+        // replacing the value of an existing mapping keeps its place in the access order
+        entry = new Entry(fileName, entry.key, entry.size, entry.writtenAt, entry.expiresAt,
+                entry.lastAccess, segment, offset);
+        entries.put(fileName, entry);
+        lookup.put(fileName, entry);
+        addLiveBytes(entry);
+        redundantRecords++;
+        return true;
+    }
+
+    private boolean applyRemove(String fileName) {
+        Entry entry = entries.remove(fileName);
+        if (entry == null) {
+            return false;
+        }
+        lookup.remove(fileName);
+        keyIndex.remove(entry.key);
+        expiryQueue.remove(entry);
+        removeLiveBytes(entry);
+        if (filter != null) {
+            filter.remove(fileName);
+        }
+        totalSize -= entry.size;
+        // both the remove record and the put record it cancels are obsolete
+        redundantRecords += 2;
+        return true;
+    }
+
+    private void addLiveBytes(Entry entry) {
+        if (entry.isPacked()) {
+            Long liveBytes = liveSegmentBytes.get(entry.segment);
+            liveSegmentBytes.put(entry.segment, (liveBytes == null ? 0 : liveBytes) + entry.size);
+        }
+    }
+
+    private void removeLiveBytes(Entry entry) {
+        if (!entry.isPacked()) {
+            return;
+        }
+        long liveBytes = liveSegmentBytes.get(entry.segment) - entry.size;
+        if (liveBytes > 0) {
+            liveSegmentBytes.put(entry.segment, liveBytes);
+        } else {
+            liveSegmentBytes.remove(entry.segment);
+        }
+        if (!hasDeadSegments && isMostlyDead(entry.segment)) {
+            hasDeadSegments = true;
+        }
+    }
+
+    // builds a new filter off to the side, so lock-free readers never see a partial one
+    private void rebuildFilter(int capacity) {
+        CountingBloomFilter rebuilt = new CountingBloomFilter(Math.max(MIN_FILTER_CAPACITY,
+                capacity));
+        for (String fileName : entries.keySet()) {
+            rebuilt.add(fileName);
+        }
+        filter = rebuilt;
+    }
+
+    private DataOutputStream beginRecord(byte op, String fileName) throws IOException {
+        recordBuffer.reset();
+        recordWriter.writeByte(op);
+        recordWriter.writeUTF(fileName);
+        return recordWriter;
+    }
+
+    // must hold the monitor
+    private void appendRecord(boolean flush) throws IOException {
+        recordBuffer.writeTo(pendingRecords);
+        if (flush || pendingRecords.size() >= MAX_PENDING_RECORD_BYTES) {
+            scheduleWrite();
+        }
+        scheduleCompactionIfNeeded();
+    }
+
+    // must hold the monitor
+    private void scheduleWrite() {
+        if (isWriteScheduled) {
+            return;
+        }
+        isWriteScheduled = true;
+        try {
+            executor.execute(pendingRecordsWriter);
+        } catch (RejectedExecutionException e) {
+            // the cache is being closed, which flushes the index
+            isWriteScheduled = false;
+        }
+    }
+
+    private synchronized byte[] takePendingRecords() {
+        byte[] records = pendingRecords.toByteArray();
+        pendingRecords.reset();
+        return records;
+    }
+
+    // must hold journalLock
+    private void writePendingRecords() {
+        if (!isLoaded || isShutdown) {
+            // loading writes out whatever has been recorded in the meantime
+            return;
+        }
+        if (isShared) {
+            writePendingRecordsShared();
+            return;
+        }
+        byte[] records = takePendingRecords();
+        if (records.length == 0) {
+            return;
+        }
+        try {
+            if (journalWriter == null) {
+                openJournalWriter();
+            }
+            journalWriter.write(records);
+            journalWriter.flush();
+        } catch (IOException e) {
+            journalFailed(e);
+        }
+    }
+
+    // must hold journalLock
+    private void writePendingRecordsShared() {
+        synchronized (this) {
+            if (pendingRecords.size() == 0) {
+                return;
+            }
+        }
+        FileLock lock = null;
+        try {
+            lock = lockJournal();
+            readAppendedRecords();
+            byte[] records = takePendingRecords();
+            if (records.length > 0) {
+                RandomAccessFile journal = new RandomAccessFile(journalFile, "rw");
+                try {
+                    journal.seek(journalLength);
+                    journal.write(records);
+                    journalLength = journal.getFilePointer();
+                } finally {
+                    journal.close();
+                }
+                journalModified = journalFile.lastModified();
+            }
+        } catch (IOException e) {
+            journalFailed(e);
+        } finally {
+            release(lock);
+        }
+    }
+
+    // must hold journalLock
+    private void openJournalWriter() throws IOException {
+        boolean append = journalFile.exists();
+        journalWriter = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(
+                journalFile, append)));
+        if (!append) {
+            journalId = JOURNAL_IDS.nextLong();
+            journalWriter.writeInt(JOURNAL_MAGIC);
+            journalWriter.writeInt(JOURNAL_VERSION);
+            journalWriter.writeLong(journalId);
+            journalWriter.flush();
+        }
+    }
+
+    // must hold journalLock
+    private void journalFailed(IOException e) {
+        Log.e(LOG_TAG, "Failed writing cache journal: " + e.getMessage());
+        // the index tolerates losing records
+        if (!isShared) {
+            closeJournalWriter();
+        }
+    }
+
+    /**
+     * Locks the journal of a shared index against other processes. Threads of this process are
+     * kept out by journalLock, which callers must hold until the lock has been released.
+     */
+    private FileLock lockJournal() throws IOException {
+        if (lockAccess == null) {
+            lockAccess = new RandomAccessFile(lockFile, "rw");
+        }
+        return lockAccess.getChannel().lock();
+    }
+
+    private static void release(FileLock lock) {
+        if (lock != null) {
+            try {
+                lock.release();
+            } catch (IOException e) {
+                // the lock goes away with the channel anyway
+            }
+        }
+    }
+
+    /**
+     * Brings a shared index up to date with the journal, by applying the records other processes
+     * have appended since it was last read, or by reloading the index altogether if the journal
+     * has been replaced. Records which are still pending are applied again afterwards, so that
+     * they take precedence, just like they will once they've been appended. Must hold both
+     * journalLock and the journal lock.
+     */
+    private void readAppendedRecords() throws IOException {
+        if (!isJournalChanged()) {
+            return;
+        }
+        FileInputStream istream;
+        try {
+            istream = new FileInputStream(journalFile);
+        } catch (FileNotFoundException e) {
+            istream = null;
+        }
+        byte[] records = null;
+        if (istream != null) {
+            try {
+                DataInputStream header = new DataInputStream(istream);
+                if (header.readInt() == JOURNAL_MAGIC && header.readInt() == JOURNAL_VERSION
+                        && header.readLong() == journalId) {
+                    istream.getChannel().position(journalLength);
+                    records = readToEnd(istream);
+                }
+            } catch (EOFException e) {
+                // truncated header, the journal has been replaced
+            } finally {
+                istream.close();
+            }
+        }
+        boolean isCaughtUp = false;
+        if (records != null) {
+            synchronized (this) {
+                // the journal lock guarantees there are only complete records
+                isCaughtUp = readRecords(records);
+                replayPendingRecords();
+            }
+        }
+        if (isCaughtUp) {
+            journalLength = journalFile.length();
+            journalModified = journalFile.lastModified();
+        } else {
+            reload();
+        }
+    }
+
+    // must hold the monitor
+    private void scheduleCompactionIfNeeded() {
+        if (isCompacting || redundantRecords < COMPACTION_THRESHOLD
+                || redundantRecords < entries.size()) {
+            return;
+        }
+        isCompacting = true;
+        redundantRecords = 0;
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    compact();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // the cache is being closed; compacting can wait until it's used again
+            isCompacting = false;
+        }
+    }
+
+    /**
+     * Replaces the journal with one holding a single record per entry. Only holds the monitor
+     * while taking a snapshot of the entries, so the index can be used in the meantime. A shared
+     * journal is locked throughout, since other processes may append to it at any time.
+     */
+    private void compact() {
+        try {
+            synchronized (journalLock) {
+                if (!isLoaded || isShutdown) {
+                    return;
+                }
+                FileLock lock = null;
+                try {
+                    if (isShared) {
+                        lock = lockJournal();
+                        readAppendedRecords();
+                    }
+                    rewriteJournal();
+                } catch (IOException e) {
+                    Log.w(LOG_TAG, "Failed compacting cache journal: " + e.getMessage());
+                } finally {
+                    release(lock);
+                }
+            }
+        } finally {
+            synchronized (this) {
+                isCompacting = false;
+            }
+        }
+    }
+
+    /**
+     * Writes a new journal from a snapshot of the index, which covers all pending records, too.
+     * Must hold journalLock, and in a shared index the journal lock as well.
+     */
+    private void rewriteJournal() throws IOException {
+        List<Entry> snapshot;
+        synchronized (this) {
+            snapshot = new ArrayList<Entry>(entries.values());
+            pendingRecords.reset();
+        }
+        File tmpFile = new File(directory, JOURNAL_TMP_FILE_NAME);
+        long id = writeJournal(tmpFile, snapshot);
+        closeJournalWriter();
+        if (!tmpFile.renameTo(journalFile)) {
+            tmpFile.delete();
+            throw new IOException("failed renaming " + tmpFile);
+        }
+        journalId = id;
+        if (isShared) {
+            journalLength = journalFile.length();
+            journalModified = journalFile.lastModified();
+        } else {
+            openJournalWriter();
+        }
+    }
+
+    /**
+     * @return the ID of the new journal
+     */
+    private long writeJournal(File file, List<Entry> snapshot) throws IOException {
+        long id = JOURNAL_IDS.nextLong();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(
+                file)));
+        try {
+            out.writeInt(JOURNAL_MAGIC);
+            out.writeInt(JOURNAL_VERSION);
+            out.writeLong(id);
+            for (Entry entry : snapshot) {
+                out.writeByte(OP_PUT);
+                out.writeUTF(entry.fileName);
+                out.writeUTF(entry.key);
+                out.writeLong(entry.size);
+                out.writeLong(entry.writtenAt);
+                out.writeLong(entry.expiresAt);
+                out.writeLong(entry.lastAccess);
+                out.writeInt(entry.segment);
+                out.writeInt(entry.offset);
+            }
+        } finally {
+            out.close();
+        }
+        return id;
+    }
+}
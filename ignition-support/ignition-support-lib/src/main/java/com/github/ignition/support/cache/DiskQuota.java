@@ -0,0 +1,76 @@
+/* Copyright (c) 2009-2011 Matthias Kaeppler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.ignition.support.cache;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The limits an {@link AbstractCache} places on its disk cache, in bytes and in files, and
+ * whether a trim enforcing them is already on its way. Both limits are unbounded by default.
+ *
+ * @author Matthias Kaeppler
+ */
+class DiskQuota {
+
+    private volatile long maxSize = Long.MAX_VALUE;
+
+    private volatile int maxEntries = Integer.MAX_VALUE;
+
+    private final AtomicBoolean isTrimScheduled = new AtomicBoolean();
+
+    void setMaxSize(long maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("disk quota must not be negative");
+        }
+        this.maxSize = maxBytes;
+    }
+
+    long getMaxSize() {
+        return maxSize;
+    }
+
+    void setMaxEntries(int maxEntries) {
+        if (maxEntries < 0) {
+            throw new IllegalArgumentException("max entries must not be negative");
+        }
+        this.maxEntries = maxEntries;
+    }
+
+    int getMaxEntries() {
+        return maxEntries;
+    }
+
+    boolean isExceededBy(DiskIndex index) {
+        return index.getTotalSize() > maxSize || index.getEntryCount() > maxEntries;
+    }
+
+    /**
+     * Claims the right to schedule a trim, so that only one is pending at a time.
+     *
+     * @return false if a trim has been scheduled already and hasn't started yet
+     */
+    boolean claimTrim() {
+        return isTrimScheduled.compareAndSet(false, true);
+    }
+
+    /**
+     * Gives up the claim made by {@link #claimTrim()}, once the trim has started or couldn't be
+     * scheduled after all.
+     */
+    void releaseTrim() {
+        isTrimScheduled.set(false);
+    }
+}
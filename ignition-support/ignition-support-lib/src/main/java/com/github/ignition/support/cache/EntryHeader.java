@@ -0,0 +1,218 @@
+/* Copyright (c) 2009-2011 Matthias Kaeppler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.ignition.support.cache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+
+/**
+ * The fixed-size header {@link AbstractCache} writes in front of every value it persists to disk.
+ * It makes cache files self-describing: reading it is enough to tell whether a file has expired,
+ * and since it states the exact payload length and checksum, truncated or otherwise corrupt files
+ * can be told apart from valid ones. It also records the key the value was cached under, since
+ * file names are derived from a digest of the key, and different keys may therefore end up in
+ * the same file.
+ *
+ * <pre>
+ * int   magic
+ * short format version
+ * long  time the value was written (ms since epoch)
+ * long  absolute expiry time (ms since epoch)
+ * byte  ID of the codec the payload was encoded with
+ * int   value length in bytes, i.e. the length of the decoded payload
+ * int   payload length in bytes
+ * int   CRC32 of the payload
+ * UTF   cache key (modified UTF-8, preceded by its length as a short)
+ * </pre>
+ *
+ * @author Matthias Kaeppler
+ */
+final class EntryHeader {
+
+    /**
+     * Thrown when a cache file turns out to be malformed. Such files should be discarded.
+     */
+    static final class CorruptEntryException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        CorruptEntryException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Thrown when a cache file holds the value of a different key than the one requested, i.e.
+     * when two keys map to the same file name. The file itself is valid.
+     */
+    static final class KeyCollisionException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        KeyCollisionException(String message) {
+            super(message);
+        }
+    }
+
+    static final int MAGIC = 0x43466531;
+
+    // version 3 added the write time, version 4 the codec and value length
+    static final short VERSION = 4;
+
+    private static final int FIXED_SIZE = 4 + 2 + 8 + 8 + 1 + 4 + 4 + 4;
+
+    final String key;
+
+    final long writtenAt;
+
+    final long expiresAt;
+
+    final int codecId;
+
+    final int valueLength;
+
+    final int payloadLength;
+
+    final int checksum;
+
+    private final byte[] encodedKey;
+
+    /**
+     * Creates the header for a value which is yet to be written, i.e. whose payload length and
+     * checksum are still unknown. See {@link #withPayload(int, int, int)}.
+     */
+    EntryHeader(String key, long writtenAt, long expiresAt, int codecId) throws IOException {
+        this(key, writtenAt, expiresAt, codecId, 0, 0, 0, encodeKey(key));
+    }
+
+    EntryHeader(String key, long writtenAt, long expiresAt, int codecId, int valueLength,
+            int payloadLength, int checksum) throws IOException {
+        this(key, writtenAt, expiresAt, codecId, valueLength, payloadLength, checksum,
+                encodeKey(key));
+    }
+
+    private EntryHeader(String key, long writtenAt, long expiresAt, int codecId,
+            int valueLength, int payloadLength, int checksum, byte[] encodedKey) {
+        this.key = key;
+        this.writtenAt = writtenAt;
+        this.expiresAt = expiresAt;
+        this.codecId = codecId;
+        this.valueLength = valueLength;
+        this.payloadLength = payloadLength;
+        this.checksum = checksum;
+        this.encodedKey = encodedKey;
+    }
+
+    private static byte[] encodeKey(String key) throws IOException {
+        ByteArrayOutputStream keyBuffer = new ByteArrayOutputStream(key.length() + 2);
+        new DataOutputStream(keyBuffer).writeUTF(key);
+        return keyBuffer.toByteArray();
+    }
+
+    /**
+     * @return a copy of this header describing the given payload
+     */
+    EntryHeader withPayload(int valueLength, int payloadLength, int checksum) {
+        return new EntryHeader(key, writtenAt, expiresAt, codecId, valueLength, payloadLength,
+                checksum, encodedKey);
+    }
+
+    /**
+     * @return the size of the header in bytes, which depends on the length of the key
+     */
+    int getSize() {
+        return FIXED_SIZE + encodedKey.length;
+    }
+
+    boolean isExpired(long now) {
+        return now >= expiresAt;
+    }
+
+    /**
+     * @return the size of the whole cache file, header included
+     */
+    long getFileSize() {
+        return getSize() + (long) payloadLength;
+    }
+
+    ByteBuffer toByteBuffer() {
+        ByteBuffer buffer = ByteBuffer.allocate(getSize());
+        buffer.putInt(MAGIC);
+        buffer.putShort(VERSION);
+        buffer.putLong(writtenAt);
+        buffer.putLong(expiresAt);
+        buffer.put((byte) codecId);
+        buffer.putInt(valueLength);
+        buffer.putInt(payloadLength);
+        buffer.putInt(checksum);
+        buffer.put(encodedKey);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Reads a header from the current position of the given stream.
+     *
+     * @throws CorruptEntryException
+     *             if the stream doesn't start with a valid header
+     */
+    static EntryHeader read(InputStream istream) throws IOException {
+        DataInputStream in = new DataInputStream(istream);
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new CorruptEntryException("not a cache file");
+            }
+            short version = in.readShort();
+            if (version != VERSION) {
+                throw new CorruptEntryException("unsupported cache file version " + version);
+            }
+            long writtenAt = in.readLong();
+            long expiresAt = in.readLong();
+            int codecId = in.readByte();
+            int valueLength = in.readInt();
+            int payloadLength = in.readInt();
+            int checksum = in.readInt();
+            if (codecId < 0 || valueLength < 0 || payloadLength < 0) {
+                throw new CorruptEntryException("negative codec ID or length");
+            }
+            String key = in.readUTF();
+            return new EntryHeader(key, writtenAt, expiresAt, codecId, valueLength,
+                    payloadLength, checksum);
+        } catch (EOFException e) {
+            throw new CorruptEntryException("truncated header");
+        } catch (UTFDataFormatException e) {
+            throw new CorruptEntryException("malformed key");
+        }
+    }
+
+    /**
+     * Reads the header of the given cache file, without reading any of the payload.
+     */
+    static EntryHeader read(File file) throws IOException {
+        FileInputStream istream = new FileInputStream(file);
+        try {
+            return read(istream);
+        } finally {
+            istream.close();
+        }
+    }
+}
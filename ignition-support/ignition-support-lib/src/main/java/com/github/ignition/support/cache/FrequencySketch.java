@@ -0,0 +1,145 @@
+/* Copyright (c) 2009-2011 Matthias Kaeppler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.ignition.support.cache;
+
+/**
+ * Estimates how often keys were accessed recently, in a fixed amount of memory. This is a
+ * count-min sketch: every key maps to one 4 bit counter in each of four rows, and its estimated
+ * frequency is the smallest of those, so collisions can only make a key seem more popular than
+ * it is. Once the number of increments reaches ten times the width of the sketch, all counters
+ * are halved, so that popularity fades if a key stops being accessed.
+ * <p>
+ * Used by {@link MemoryCache} to decide whether a new entry is worth evicting others for (the
+ * TinyLFU admission policy). Not thread-safe; the memory cache's eviction lock guards it.
+ * </p>
+ *
+ * @author Matthias Kaeppler
+ */
+final class FrequencySketch {
+
+    private static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L,
+            0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+
+    // the lowest bit of every counter
+    private static final long ONE_MASK = 0x1111111111111111L;
+
+    // every counter but its highest bit, to clear what's shifted in from the next counter
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private static final int MIN_WIDTH = 16;
+
+    private static final int MAX_WIDTH = 1 << 22;
+
+    private static final int MAX_COUNT = 0xf;
+
+    // 16 counters per word; every key uses four counters of four words, one per row
+    private long[] table;
+
+    private int tableMask;
+
+    private int sampleSize;
+
+    private int additions;
+
+    /**
+     * @param expectedEntries
+     *            the number of entries the cache is expected to hold
+     */
+    FrequencySketch(int expectedEntries) {
+        ensureCapacity(expectedEntries);
+    }
+
+    /**
+     * Widens the sketch if it's too small for the given number of entries. Since counters can't
+     * be carried over, this starts from scratch.
+     */
+    void ensureCapacity(int expectedEntries) {
+        int width = MIN_WIDTH;
+        while (width < expectedEntries && width < MAX_WIDTH) {
+            width <<= 1;
+        }
+        if (table != null && table.length >= width) {
+            return;
+        }
+        table = new long[width];
+        tableMask = width - 1;
+        sampleSize = 10 * width;
+        additions = 0;
+    }
+
+    /**
+     * @return the estimated number of recent accesses of the key with the given hash, at most 15
+     */
+    int frequency(int hash) {
+        hash = spread(hash);
+        int start = (hash & 3) << 2;
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < 4; i++) {
+            int offset = (start + i) << 2;
+            int count = (int) (table[indexOf(hash, i)] >>> offset) & MAX_COUNT;
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    /**
+     * Records an access of the key with the given hash.
+     */
+    void increment(int hash) {
+        hash = spread(hash);
+        int start = (hash & 3) << 2;
+        boolean isAdded = false;
+        for (int i = 0; i < 4; i++) {
+            isAdded |= incrementAt(indexOf(hash, i), (start + i) << 2);
+        }
+        if (isAdded && ++additions >= sampleSize) {
+            reset();
+        }
+    }
+
+    private boolean incrementAt(int index, int offset) {
+        long mask = (long) MAX_COUNT << offset;
+        if ((table[index] & mask) == mask) {
+            // saturated
+            return false;
+        }
+        table[index] += 1L << offset;
+        return true;
+    }
+
+    // halves all counters
+    private void reset() {
+        int oddCounters = 0;
+        for (int i = 0; i < table.length; i++) {
+            oddCounters += Long.bitCount(table[i] & ONE_MASK);
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        // every key accounts for four counters, and halving an odd one drops half an addition
+        additions = (additions >>> 1) - (oddCounters >>> 2);
+    }
+
+    private int indexOf(int hash, int row) {
+        long h = (hash + SEEDS[row]) * SEEDS[row];
+        h += h >>> 32;
+        return (int) h & tableMask;
+    }
+
+    // hash codes of similar keys tend to differ in few bits
+    private static int spread(int hash) {
+        hash *= 0x9e3779b9;
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,119 @@
+/* Copyright (c) 2009-2011 Matthias Kaeppler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.ignition.support.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reads and writes the list of keys {@link AbstractCache} found to be accessed most often, which
+ * is used to pre-populate the memory cache after a restart (see {@link AbstractCache#warmUp()}).
+ * The manifest is a small file in the disk cache directory, which is replaced as a whole
+ * whenever it's written, so readers never see a partial one.
+ *
+ * <pre>
+ * int   magic
+ * int   format version
+ * UTF   key, hottest first (modified UTF-8, preceded by its length as a short)
+ * ...
+ * </pre>
+ *
+ * @author Matthias Kaeppler
+ */
+final class HotKeyManifest {
+
+    static final String FILE_NAME = ".hotkeys";
+
+    private static final String TMP_FILE_NAME = ".hotkeys.tmp";
+
+    private static final int MAGIC = 0x484b4559;
+
+    private static final int VERSION = 1;
+
+    private HotKeyManifest() {
+    }
+
+    /**
+     * Replaces the manifest in the given directory. Keys which are too long to be stored are
+     * skipped.
+     *
+     * @param keys
+     *            the keys in string form, hottest first
+     */
+    static void write(File directory, List<String> keys) throws IOException {
+        File tmpFile = new File(directory, TMP_FILE_NAME);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmpFile)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            for (String key : keys) {
+                try {
+                    out.writeUTF(key);
+                } catch (UTFDataFormatException e) {
+                    // longer than 64K when encoded; nothing has been written in that case
+                }
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmpFile.renameTo(new File(directory, FILE_NAME))) {
+            tmpFile.delete();
+            throw new IOException("failed renaming " + tmpFile);
+        }
+    }
+
+    /**
+     * Reads the manifest in the given directory.
+     *
+     * @return the keys in string form, hottest first; empty if there's no (valid) manifest
+     */
+    static List<String> read(File directory) throws IOException {
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(new File(
+                    directory, FILE_NAME))));
+        } catch (FileNotFoundException e) {
+            return Collections.emptyList();
+        }
+        List<String> keys = new ArrayList<String>();
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return Collections.emptyList();
+            }
+            while (true) {
+                keys.add(in.readUTF());
+            }
+        } catch (EOFException e) {
+            // the end of the list, or a torn key, which the rename should have made impossible
+            return keys;
+        } finally {
+            in.close();
+        }
+    }
+}
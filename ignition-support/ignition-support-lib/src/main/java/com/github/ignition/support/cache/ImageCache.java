@@ -15,56 +15,96 @@
 
 package com.github.ignition.support.cache;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
 
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.os.Looper;
+
+import com.google.common.base.Function;
 
 /**
  * Implements a cache capable of caching image files. It exposes helper methods to immediately
  * access binary image data as {@link Bitmap} objects.
+ * <p>
+ * Caches backing long, quickly scrolled lists of images may want to enable the admission filter
+ * (see {@link #setAdmissionFilterEnabled(boolean)}), so that images which are only shown once
+ * don't push out the ones shown over and over.
+ * </p>
  * 
  * @author Matthias Kaeppler
  * 
  */
 public class ImageCache extends AbstractCache<String, byte[]> {
 
+    private static final Function<ByteBuffer, Bitmap> BITMAP_DECODER =
+            new Function<ByteBuffer, Bitmap>() {
+                @Override
+                public Bitmap apply(ByteBuffer imageData) {
+                    return BitmapFactory.decodeStream(new ByteBufferInputStream(imageData));
+                }
+            };
+
     public ImageCache(int initialCapacity, long expirationInMinutes, int maxConcurrentThreads) {
         super("ImageCache", initialCapacity, expirationInMinutes, maxConcurrentThreads);
+        setSizer(new Sizer<String, byte[]>() {
+            @Override
+            public long sizeOf(String imageUrl, byte[] imageData) {
+                return imageData.length;
+            }
+        });
     }
 
-    public synchronized void removeAllWithPrefix(String urlPrefix) {
+    public void removeAllWithPrefix(String urlPrefix) {
         CacheHelper.removeAllWithStringPrefix(this, urlPrefix);
     }
 
     @Override
     public String getFileNameForKey(String imageUrl) {
-        return CacheHelper.getFileNameFromUrl(imageUrl);
+        return CacheHelper.getFileNameFromKey(imageUrl);
     }
 
     @Override
-    protected byte[] readValueFromDisk(File file) throws IOException {
-        BufferedInputStream istream = new BufferedInputStream(new FileInputStream(file));
-        long fileSize = file.length();
-        if (fileSize > Integer.MAX_VALUE) {
-            throw new IOException("Cannot read files larger than " + Integer.MAX_VALUE + " bytes");
-        }
-
-        int imageDataLength = (int) fileSize;
+    protected String getLegacyFileNameForKey(String imageUrl) {
+        return CacheHelper.getFileNameFromUrl(imageUrl);
+    }
 
-        byte[] imageData = new byte[imageDataLength];
-        istream.read(imageData, 0, imageDataLength);
-        istream.close();
+    @Override
+    protected String getKeyFromString(String imageUrl) {
+        return imageUrl;
+    }
 
+    @Override
+    protected byte[] readValueFromDisk(InputStream istream, int length) throws IOException {
+        byte[] imageData = new byte[length];
+        new DataInputStream(istream).readFully(imageData);
         return imageData;
     }
 
-    public synchronized Bitmap getBitmap(Object elementKey) {
+    @Override
+    protected boolean isCompressible(byte[] imageData) {
+        return !CacheHelper.isCompressedFormat(imageData);
+    }
+
+    /**
+     * Decodes a cached image. If the off-heap tier is enabled (see
+     * {@link #enableOffHeapCache(long)}) and holds the image, it's decoded from there, without
+     * copying the image data onto the heap first.
+     */
+    public Bitmap getBitmap(Object elementKey) {
+        if (isOffHeapCacheEnabled()) {
+            Bitmap bitmap = readOffHeap(elementKey, BITMAP_DECODER);
+            if (bitmap != null) {
+                return bitmap;
+            }
+        }
         byte[] imageData = super.get(elementKey);
         if (imageData == null) {
             return null;
@@ -72,12 +112,46 @@ public class ImageCache extends AbstractCache<String, byte[]> {
         return BitmapFactory.decodeByteArray(imageData, 0, imageData.length);
     }
 
-    @Override
-    protected void writeValueToDisk(File file, byte[] imageData) throws IOException {
-        BufferedOutputStream ostream = new BufferedOutputStream(new FileOutputStream(file));
+    /**
+     * Like {@link #getBitmap(Object)}, but never blocks: the image is read and decoded on one of
+     * the cache's I/O threads, and passed to the callback on the given executor. Since decoding
+     * takes a while even when the image is held in memory, this always completes asynchronously.
+     * 
+     * @param imageUrl
+     *            the cache key
+     * @param callback
+     *            receives the bitmap, or null if the image isn't cached or can't be decoded; may be
+     *            null
+     * @param callbackExecutor
+     *            runs the callback; may only be null if there is no callback
+     * @return the pending result
+     * @throws IllegalArgumentException
+     *             if there is a callback, but no executor to run it
+     */
+    public Future<Bitmap> getBitmapAsync(final String imageUrl,
+            CacheCallback<String, Bitmap> callback, Executor callbackExecutor) {
+        return submitAsync(imageUrl, new Callable<Bitmap>() {
+            @Override
+            public Bitmap call() {
+                return getBitmap(imageUrl);
+            }
+        }, callback, callbackExecutor);
+    }
 
-        ostream.write(imageData);
+    /**
+     * Like {@link #getBitmapAsync(String, CacheCallback, Executor)}, but passes the bitmap to the
+     * callback on the thread of the given {@link Looper}.
+     * 
+     * @throws IllegalArgumentException
+     *             if there is a callback, but no Looper to pass the bitmap to
+     */
+    public Future<Bitmap> getBitmapAsync(String imageUrl, CacheCallback<String, Bitmap> callback,
+            Looper callbackLooper) {
+        return getBitmapAsync(imageUrl, callback, executorFor(callbackLooper));
+    }
 
-        ostream.close();
+    @Override
+    protected void writeValueToDisk(OutputStream ostream, byte[] imageData) throws IOException {
+        ostream.write(imageData);
     }
 }
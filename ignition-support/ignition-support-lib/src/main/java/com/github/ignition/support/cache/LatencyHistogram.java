@@ -0,0 +1,54 @@
+/* Copyright (c) 2009-2011 Matthias Kaeppler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.ignition.support.cache;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records latencies into the logarithmic buckets described by {@link CacheStats.Histogram}.
+ *
+ * @author Matthias Kaeppler
+ */
+class LatencyHistogram {
+
+    // the last bucket starts at 2^23 us, i.e. a little over 8 seconds
+    private static final int NUM_BUCKETS = 24;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(NUM_BUCKETS);
+
+    private final StripedCounter totalNanos = new StripedCounter();
+
+    /**
+     * @param startNanos
+     *            the value of {@link System#nanoTime()} when the operation started
+     */
+    void recordSince(long startNanos) {
+        long nanos = System.nanoTime() - startNanos;
+        long micros = nanos / 1000;
+        // floor(log2(micros)), with everything below 2us going to bucket 0
+        int bucket = micros < 2 ? 0 : 63 - Long.numberOfLeadingZeros(micros);
+        buckets.incrementAndGet(Math.min(bucket, NUM_BUCKETS - 1));
+        totalNanos.add(nanos);
+    }
+
+    CacheStats.Histogram snapshot() {
+        long[] counts = new long[NUM_BUCKETS];
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+        }
+        return new CacheStats.Histogram(counts, totalNanos.sum());
+    }
+}
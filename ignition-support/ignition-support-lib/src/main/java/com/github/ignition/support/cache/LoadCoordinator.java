@@ -0,0 +1,215 @@
+/* Copyright (c) 2009-2011 Matthias Kaeppler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.ignition.support.cache;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+import android.util.Log;
+
+/**
+ * Loads missing values for an {@link AbstractCache} and refreshes stale ones, making sure that a
+ * key is only loaded once at a time, no matter how many threads ask for it or whether it's being
+ * refreshed already. Loaded values are stored through {@link AbstractCache#put(Object, Object,
+ * long)}.
+ *
+ * @author Matthias Kaeppler
+ *
+ * @param <KeyT>
+ *            the cache key type
+ * @param <ValT>
+ *            the cache value type
+ */
+class LoadCoordinator<KeyT, ValT> {
+
+    private static final class RefreshPolicy<KeyT, ValT> {
+        final long refreshAfterMillis;
+        final Loader<KeyT, ValT> loader;
+        final Executor executor;
+
+        RefreshPolicy(long refreshAfterMillis, Loader<KeyT, ValT> loader, Executor executor) {
+            this.refreshAfterMillis = refreshAfterMillis;
+            this.loader = loader;
+            this.executor = executor;
+        }
+    }
+
+    private final AbstractCache<KeyT, ValT> owner;
+
+    private final MemoryCache<KeyT, ValT> cache;
+
+    private final StatsCounter stats;
+
+    private final String name;
+
+    // loads and refreshes which haven't finished yet
+    private final ConcurrentMap<KeyT, FutureTask<ValT>> inFlightLoads =
+            new ConcurrentHashMap<KeyT, FutureTask<ValT>>();
+
+    private volatile RefreshPolicy<KeyT, ValT> refreshPolicy;
+
+    LoadCoordinator(AbstractCache<KeyT, ValT> owner, MemoryCache<KeyT, ValT> cache,
+            StatsCounter stats, String name) {
+        this.owner = owner;
+        this.cache = cache;
+        this.stats = stats;
+        this.name = name;
+    }
+
+    /**
+     * Loads the value for a key which the cache has just missed, or waits for the load another
+     * thread has started already. See {@link AbstractCache#get(Object, Loader)}.
+     *
+     * @param expirationInMillis
+     *            the expiration time to cache the loaded value with
+     */
+    ValT load(final KeyT key, final Loader<KeyT, ValT> loader, final long expirationInMillis)
+            throws ExecutionException {
+        FutureTask<ValT> load = new FutureTask<ValT>(new Callable<ValT>() {
+            @Override
+            public ValT call() throws Exception {
+                // another load may have finished between our miss and our claiming the key
+                ValT value = cache.get(key);
+                if (value == null) {
+                    try {
+                        value = loader.load(key);
+                    } catch (Exception e) {
+                        stats.loadFailures.increment();
+                        throw e;
+                    }
+                    stats.loadSuccesses.increment();
+                    if (value != null) {
+                        owner.put(key, value, expirationInMillis);
+                    }
+                }
+                return value;
+            }
+        });
+        while (true) {
+            FutureTask<ValT> inFlightLoad = inFlightLoads.putIfAbsent(key, load);
+            if (inFlightLoad == null) {
+                inFlightLoad = load;
+                try {
+                    load.run();
+                } finally {
+                    inFlightLoads.remove(key, load);
+                }
+            }
+            try {
+                return awaitLoad(inFlightLoad);
+            } catch (CancellationException e) {
+                // a refresh which its executor rejected, so it never ran; load the value here
+                inFlightLoads.remove(key, inFlightLoad);
+            }
+        }
+    }
+
+    /**
+     * Waits for a load to complete, even if the calling thread is interrupted in the meantime,
+     * in which case its interrupt status is restored before returning.
+     */
+    private static <ValT> ValT awaitLoad(FutureTask<ValT> load) throws ExecutionException {
+        boolean isInterrupted = false;
+        try {
+            while (true) {
+                try {
+                    return load.get();
+                } catch (InterruptedException e) {
+                    // the value may well be needed by others, so don't give up on it
+                    isInterrupted = true;
+                }
+            }
+        } finally {
+            if (isInterrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Has entries older than the given age reloaded using the given loader on the given
+     * executor. See {@link AbstractCache#setRefreshAfterWrite(long, Loader, Executor)}.
+     *
+     * @param loader
+     *            fetches fresh values, or null to stop refreshing entries
+     */
+    void setRefreshPolicy(long refreshAfterMillis, Loader<KeyT, ValT> loader, Executor executor) {
+        refreshPolicy = loader == null ? null : new RefreshPolicy<KeyT, ValT>(refreshAfterMillis,
+                loader, executor);
+    }
+
+    /**
+     * Starts reloading the given entry in the background if it's due for a refresh, unless it's
+     * already being loaded. Never blocks. The fresh value is stored with the entry's expiration
+     * time, which may be its own rather than the cache's.
+     */
+    void refreshIfStale(final KeyT key, long writtenAt, long expiresAt) {
+        final RefreshPolicy<KeyT, ValT> policy = refreshPolicy;
+        if (policy == null
+                || System.currentTimeMillis() - writtenAt < policy.refreshAfterMillis) {
+            return;
+        }
+        final long expirationInMillis = expiresAt - writtenAt;
+
+        final FutureTask<ValT> refresh = new FutureTask<ValT>(new Callable<ValT>() {
+            @Override
+            public ValT call() throws Exception {
+                ValT value;
+                try {
+                    value = policy.loader.load(key);
+                } catch (Exception e) {
+                    stats.loadFailures.increment();
+                    Log.w(name, "Failed to refresh " + key + ": " + e.getMessage());
+                    throw e;
+                }
+                stats.loadSuccesses.increment();
+                stats.refreshes.increment();
+                if (value != null) {
+                    owner.put(key, value, expirationInMillis);
+                }
+                return value;
+            }
+        });
+        // registering the refresh as an ordinary load also makes load() wait for it rather than
+        // start another load, should the stale value expire in the meantime
+        if (inFlightLoads.putIfAbsent(key, refresh) != null) {
+            return;
+        }
+        try {
+            policy.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        refresh.run();
+                    } finally {
+                        inFlightLoads.remove(key, refresh);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inFlightLoads.remove(key, refresh);
+            // nobody will run it, so don't leave anyone waiting for it; load() then loads the
+            // value itself
+            refresh.cancel(false);
+        }
+    }
+}
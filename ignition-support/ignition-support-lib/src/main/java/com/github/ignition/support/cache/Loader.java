@@ -0,0 +1,43 @@
+/* Copyright (c) 2009-2011 Matthias Kaeppler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.ignition.support.cache;
+
+/**
+ * Produces the value for a key which isn't cached, e.g. by downloading it. Used with
+ * {@link AbstractCache#get(Object, Loader)}, which makes sure that a key is only loaded once no
+ * matter how many threads ask for it at the same time.
+ *
+ * @author Matthias Kaeppler
+ *
+ * @param <KeyT>
+ *            the cache key type
+ * @param <ValT>
+ *            the cache value type
+ */
+public interface Loader<KeyT, ValT> {
+
+    /**
+     * Loads the value for the given key. Invoked on the thread which first asked for the key.
+     *
+     * @param key
+     *            the cache key
+     * @return the value, or null if there is none; null is not cached
+     * @throws Exception
+     *             if loading failed; the exception is passed on to everyone waiting for the value,
+     *             and nothing is cached
+     */
+    ValT load(KeyT key) throws Exception;
+}
@@ -0,0 +1,400 @@
+/* Copyright (c) 2009-2011 Matthias Kaeppler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.ignition.support.cache;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * A byte-oriented LZ77 codec in the style of LZ4: no entropy coding, a single hash probe per
+ * position and greedy matching, which makes it fast enough to use on the UI thread's behalf, at
+ * the cost of compression ratio.
+ * <p>
+ * Data is compressed in independent blocks of up to 64 KB, each preceded by its decompressed
+ * length and its compressed length; the latter is 0 for blocks which didn't compress and are
+ * stored as they are. A decompressed length of 0 marks the end of the stream. A compressed block
+ * is a series of sequences, each made up of
+ * </p>
+ *
+ * <pre>
+ * byte     token: literal count (high nibble), match length - 4 (low nibble)
+ * byte*    more literal count, if the nibble is 15: bytes are added up until one isn't 255
+ * byte[]   literals
+ * short    match offset, little endian
+ * byte*    more match length, if the nibble is 15
+ * </pre>
+ * <p>
+ * The last sequence of a block consists of the token and literals only.
+ * </p>
+ *
+ * @author Matthias Kaeppler
+ */
+final class LzCodec implements Codec {
+
+    private static final int BLOCK_SIZE = 64 * 1024;
+
+    private static final int MIN_MATCH = 4;
+
+    private static final int MAX_OFFSET = 0xffff;
+
+    private static final int HASH_BITS = 12;
+
+    private final int id;
+
+    LzCodec(int id) {
+        this.id = id;
+    }
+
+    @Override
+    public int getId() {
+        return id;
+    }
+
+    @Override
+    public OutputStream encode(OutputStream ostream) {
+        return new LzOutputStream(ostream);
+    }
+
+    @Override
+    public InputStream decode(InputStream istream) {
+        return new LzInputStream(istream);
+    }
+
+    private static int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    private static int readInt(byte[] buffer, int offset) {
+        return (buffer[offset] & 0xff) << 24 | (buffer[offset + 1] & 0xff) << 16
+                | (buffer[offset + 2] & 0xff) << 8 | (buffer[offset + 3] & 0xff);
+    }
+
+    /**
+     * Compresses a block.
+     * 
+     * @param hashTable
+     *            scratch space, cleared by this method
+     * @return the compressed length
+     */
+    static int compress(byte[] src, int length, byte[] dst, int[] hashTable) {
+        Arrays.fill(hashTable, 0);
+        int dstPos = 0;
+        int anchor = 0;
+        int pos = 0;
+        int matchLimit = length - MIN_MATCH;
+        while (pos <= matchLimit) {
+            int sequence = readInt(src, pos);
+            int hash = (sequence * -1640531535) >>> (32 - HASH_BITS);
+            // positions are stored plus one, so that 0 means empty
+            int candidate = hashTable[hash] - 1;
+            hashTable[hash] = pos + 1;
+            if (candidate < 0 || pos - candidate > MAX_OFFSET
+                    || readInt(src, candidate) != sequence) {
+                pos++;
+                continue;
+            }
+
+            int matchLength = MIN_MATCH;
+            while (pos + matchLength < length && src[candidate + matchLength] == src[pos
+                    + matchLength]) {
+                matchLength++;
+            }
+            dstPos = writeSequence(src, anchor, pos - anchor, dst, dstPos, pos - candidate,
+                    matchLength);
+            pos += matchLength;
+            anchor = pos;
+        }
+        return writeSequence(src, anchor, length - anchor, dst, dstPos, 0, 0);
+    }
+
+    // a match length of 0 writes a final sequence without a match
+    private static int writeSequence(byte[] src, int literalStart, int literalCount, byte[] dst,
+            int dstPos, int offset, int matchLength) {
+        int matchNibble = matchLength == 0 ? 0 : Math.min(matchLength - MIN_MATCH, 15);
+        dst[dstPos++] = (byte) (Math.min(literalCount, 15) << 4 | matchNibble);
+        if (literalCount >= 15) {
+            dstPos = writeLength(literalCount - 15, dst, dstPos);
+        }
+        System.arraycopy(src, literalStart, dst, dstPos, literalCount);
+        dstPos += literalCount;
+        if (matchLength == 0) {
+            return dstPos;
+        }
+        dst[dstPos++] = (byte) offset;
+        dst[dstPos++] = (byte) (offset >>> 8);
+        if (matchNibble == 15) {
+            dstPos = writeLength(matchLength - MIN_MATCH - 15, dst, dstPos);
+        }
+        return dstPos;
+    }
+
+    private static int writeLength(int length, byte[] dst, int dstPos) {
+        while (length >= 255) {
+            dst[dstPos++] = (byte) 255;
+            length -= 255;
+        }
+        dst[dstPos++] = (byte) length;
+        return dstPos;
+    }
+
+    /**
+     * Decompresses a block, checking every reference, since the data may be corrupt.
+     */
+    static void decompress(byte[] src, int srcLength, byte[] dst, int dstLength)
+            throws IOException {
+        int srcPos = 0;
+        int dstPos = 0;
+        while (true) {
+            if (srcPos >= srcLength) {
+                throw new IOException("truncated LZ block");
+            }
+            int token = src[srcPos++] & 0xff;
+
+            int literalCount = token >>> 4;
+            if (literalCount == 15) {
+                int b;
+                do {
+                    if (srcPos >= srcLength) {
+                        throw new IOException("truncated LZ block");
+                    }
+                    b = src[srcPos++] & 0xff;
+                    literalCount += b;
+                } while (b == 255);
+            }
+            if (literalCount > srcLength - srcPos || literalCount > dstLength - dstPos) {
+                throw new IOException("malformed LZ block");
+            }
+            System.arraycopy(src, srcPos, dst, dstPos, literalCount);
+            srcPos += literalCount;
+            dstPos += literalCount;
+            if (dstPos == dstLength) {
+                return;
+            }
+
+            if (srcPos + 2 > srcLength) {
+                throw new IOException("truncated LZ block");
+            }
+            int offset = (src[srcPos] & 0xff) | (src[srcPos + 1] & 0xff) << 8;
+            srcPos += 2;
+            int matchLength = token & 0xf;
+            if (matchLength == 15) {
+                int b;
+                do {
+                    if (srcPos >= srcLength) {
+                        throw new IOException("truncated LZ block");
+                    }
+                    b = src[srcPos++] & 0xff;
+                    matchLength += b;
+                } while (b == 255);
+            }
+            matchLength += MIN_MATCH;
+            int matchPos = dstPos - offset;
+            if (offset == 0 || matchPos < 0 || matchLength > dstLength - dstPos) {
+                throw new IOException("malformed LZ block");
+            }
+            // byte by byte, since the match may overlap the bytes it produces
+            for (int i = 0; i < matchLength; i++) {
+                dst[dstPos++] = dst[matchPos++];
+            }
+        }
+    }
+
+    private static final class LzOutputStream extends OutputStream {
+
+        private final OutputStream out;
+
+        private final byte[] block = new byte[BLOCK_SIZE];
+
+        private int blockLength;
+
+        private byte[] compressed;
+
+        private int[] hashTable;
+
+        private final byte[] lengths = new byte[8];
+
+        private boolean isClosed;
+
+        LzOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (blockLength == BLOCK_SIZE) {
+                writeBlock();
+            }
+            block[blockLength++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int count) throws IOException {
+            while (count > 0) {
+                if (blockLength == BLOCK_SIZE) {
+                    writeBlock();
+                }
+                int chunk = Math.min(count, BLOCK_SIZE - blockLength);
+                System.arraycopy(buffer, offset, block, blockLength, chunk);
+                blockLength += chunk;
+                offset += chunk;
+                count -= chunk;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            // partial blocks compress worse, so they're only written on close
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (isClosed) {
+                return;
+            }
+            isClosed = true;
+            if (blockLength > 0) {
+                writeBlock();
+            }
+            writeLengths(0, 0);
+            out.close();
+        }
+
+        private void writeBlock() throws IOException {
+            if (compressed == null) {
+                compressed = new byte[maxCompressedLength(BLOCK_SIZE)];
+                hashTable = new int[1 << HASH_BITS];
+            }
+            int compressedLength = compress(block, blockLength, compressed, hashTable);
+            if (compressedLength < blockLength) {
+                writeLengths(blockLength, compressedLength);
+                out.write(compressed, 0, compressedLength);
+            } else {
+                writeLengths(blockLength, 0);
+                out.write(block, 0, blockLength);
+            }
+            blockLength = 0;
+        }
+
+        private void writeLengths(int length, int compressedLength) throws IOException {
+            lengths[0] = (byte) (length >>> 24);
+            lengths[1] = (byte) (length >>> 16);
+            lengths[2] = (byte) (length >>> 8);
+            lengths[3] = (byte) length;
+            lengths[4] = (byte) (compressedLength >>> 24);
+            lengths[5] = (byte) (compressedLength >>> 16);
+            lengths[6] = (byte) (compressedLength >>> 8);
+            lengths[7] = (byte) compressedLength;
+            out.write(lengths);
+        }
+    }
+
+    private static final class LzInputStream extends InputStream {
+
+        private final InputStream in;
+
+        private final byte[] block = new byte[BLOCK_SIZE];
+
+        private int blockLength;
+
+        private int blockPosition;
+
+        private byte[] compressed;
+
+        private final byte[] lengths = new byte[8];
+
+        private boolean isAtEnd;
+
+        LzInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (blockPosition == blockLength && !readBlock()) {
+                return -1;
+            }
+            return block[blockPosition++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            if (count == 0) {
+                return 0;
+            }
+            if (blockPosition == blockLength && !readBlock()) {
+                return -1;
+            }
+            int chunk = Math.min(count, blockLength - blockPosition);
+            System.arraycopy(block, blockPosition, buffer, offset, chunk);
+            blockPosition += chunk;
+            return chunk;
+        }
+
+        @Override
+        public int available() {
+            return blockLength - blockPosition;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+        private boolean readBlock() throws IOException {
+            if (isAtEnd) {
+                return false;
+            }
+            readFully(lengths, lengths.length);
+            int length = readInt(lengths, 0);
+            int compressedLength = readInt(lengths, 4);
+            if (length == 0) {
+                isAtEnd = true;
+                return false;
+            }
+            if (length < 0 || length > BLOCK_SIZE || compressedLength < 0
+                    || compressedLength > maxCompressedLength(length)) {
+                throw new IOException("malformed LZ block header");
+            }
+            if (compressedLength == 0) {
+                readFully(block, length);
+            } else {
+                if (compressed == null) {
+                    compressed = new byte[maxCompressedLength(BLOCK_SIZE)];
+                }
+                readFully(compressed, compressedLength);
+                decompress(compressed, compressedLength, block, length);
+            }
+            blockLength = length;
+            blockPosition = 0;
+            return true;
+        }
+
+        private void readFully(byte[] buffer, int count) throws IOException {
+            int position = 0;
+            while (position < count) {
+                int bytesRead = in.read(buffer, position, count - position);
+                if (bytesRead == -1) {
+                    throw new EOFException("truncated LZ stream");
+                }
+                position += bytesRead;
+            }
+        }
+    }
+}
@@ -0,0 +1,640 @@
+/* Copyright (c) 2009-2011 Matthias Kaeppler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.ignition.support.cache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.google.common.base.Function;
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Maps;
+
+/**
+ * The 1st level cache used by {@link AbstractCache}. Values are held through strong references
+ * and the total size of all entries (as measured by a {@link Sizer}) is kept within a byte
+ * budget by evicting the least recently used entries.
+ * <p>
+ * Lookups go straight to a {@link ConcurrentMap} and never block. Since keeping an LRU list
+ * ordered requires a lock, reads merely record the access in a buffer, which is replayed against
+ * the LRU list by whichever thread next gets hold of the eviction lock (at the latest the next
+ * writer). This is what keeps eviction order predictable without making reads contend.
+ * </p>
+ * <p>
+ * Optionally, new entries have to earn their place: a {@link FrequencySketch} tracks how often
+ * keys were accessed recently, and a new entry is only admitted if it's at least as popular as
+ * each of the entries it would evict (see {@link #setAdmissionFilterEnabled(boolean)}). This
+ * keeps a burst of entries which are never asked for again, such as images scrolled past
+ * quickly, from flushing out the few which are used over and over.
+ * </p>
+ *
+ * @author Matthias Kaeppler
+ */
+class MemoryCache<KeyT, ValT> {
+
+    /**
+     * Receives entries which were evicted to stay within the memory budget, including new entries
+     * which the admission filter turned away. Called without any locks held.
+     */
+    interface EvictionListener<KeyT, ValT> {
+        void onEvicted(KeyT key, ValT value);
+    }
+
+    // how many reads are buffered before a reader attempts to drain the buffer itself
+    private static final int READ_BUFFER_DRAIN_THRESHOLD = 32;
+
+    // access counts are halved after this many reads, or ten reads per entry if that's more
+    private static final int MIN_AGING_PERIOD = 1000;
+
+    static final class Node<KeyT, ValT> {
+        final KeyT key;
+        // the key as seen by the prefix index
+        final String indexKey;
+        final ValT value;
+        final long size;
+        final long writtenAt;
+        final long expiresAt;
+
+        // guarded by the eviction lock
+        Node<KeyT, ValT> prev, next;
+        boolean linked;
+        // breaks ties in the expiry queue
+        long sequence;
+        // how often the entry was read, with older reads weighing less (see ageAccessCounts);
+        // guarded by the eviction lock
+        int accessCount;
+
+        Node(KeyT key, ValT value, long size, long writtenAt, long expiresAt) {
+            this.key = key;
+            this.indexKey = String.valueOf(key);
+            this.value = value;
+            this.size = size;
+            this.writtenAt = writtenAt;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isExpired(long now) {
+            return now >= expiresAt;
+        }
+    }
+
+    private final ConcurrentMap<KeyT, Node<KeyT, ValT>> map;
+
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+    private final ConcurrentLinkedQueue<Node<KeyT, ValT>> readBuffer =
+            new ConcurrentLinkedQueue<Node<KeyT, ValT>>();
+
+    private final AtomicInteger bufferedReads = new AtomicInteger();
+
+    // all linked nodes, sorted by the string form of their keys; guarded by the eviction lock
+    private final TreeMap<String, Node<KeyT, ValT>> keyIndex =
+            new TreeMap<String, Node<KeyT, ValT>>();
+
+    // all linked nodes, soonest to expire first; guarded by the eviction lock
+    private final TreeSet<Node<KeyT, ValT>> expiryQueue = new TreeSet<Node<KeyT, ValT>>(
+            new Comparator<Node<KeyT, ValT>>() {
+                @Override
+                public int compare(Node<KeyT, ValT> lhs, Node<KeyT, ValT> rhs) {
+                    if (lhs.expiresAt != rhs.expiresAt) {
+                        return lhs.expiresAt < rhs.expiresAt ? -1 : 1;
+                    }
+                    return lhs.sequence < rhs.sequence ? -1 : (lhs.sequence == rhs.sequence ? 0
+                            : 1);
+                }
+            });
+
+    // guarded by the eviction lock
+    private long nextSequence;
+
+    // guarded by the eviction lock
+    private int readsSinceAging;
+
+    // null unless the admission filter is enabled; guarded by the eviction lock
+    private FrequencySketch sketch;
+
+    private final Comparator<Node<KeyT, ValT>> byAccessCount = new Comparator<Node<KeyT, ValT>>() {
+        @Override
+        public int compare(Node<KeyT, ValT> lhs, Node<KeyT, ValT> rhs) {
+            return lhs.accessCount < rhs.accessCount ? -1
+                    : (lhs.accessCount == rhs.accessCount ? 0 : 1);
+        }
+    };
+
+    // sentinel of the LRU list; head.next is the eldest entry, head.prev the youngest
+    private final Node<KeyT, ValT> head = new Node<KeyT, ValT>(null, null, 0, 0,
+            Long.MAX_VALUE);
+
+    private volatile long size;
+
+    private volatile long maxSize;
+
+    private volatile Sizer<KeyT, ValT> sizer;
+
+    private volatile EvictionListener<KeyT, ValT> evictionListener;
+
+    private final StripedCounter expirations = new StripedCounter();
+
+    private final Function<Node<KeyT, ValT>, ValT> nodeToValue =
+            new Function<Node<KeyT, ValT>, ValT>() {
+                @Override
+                public ValT apply(Node<KeyT, ValT> node) {
+                    return node.value;
+                }
+            };
+
+    MemoryCache(int initialCapacity, int concurrencyLevel, long maxSize, Sizer<KeyT, ValT> sizer) {
+        MapMaker mapMaker = new MapMaker();
+        mapMaker.initialCapacity(initialCapacity);
+        mapMaker.concurrencyLevel(concurrencyLevel);
+        this.map = mapMaker.makeMap();
+        this.maxSize = maxSize;
+        this.sizer = sizer;
+        head.prev = head;
+        head.next = head;
+    }
+
+    void setSizer(Sizer<KeyT, ValT> sizer) {
+        this.sizer = sizer;
+    }
+
+    void setEvictionListener(EvictionListener<KeyT, ValT> evictionListener) {
+        this.evictionListener = evictionListener;
+    }
+
+    /**
+     * Changes the memory budget. If the cache currently exceeds the new budget, the least
+     * recently used entries are evicted immediately.
+     */
+    void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+        List<Node<KeyT, ValT>> evicted = null;
+        evictionLock.lock();
+        try {
+            drainReadBuffer();
+            expire(System.currentTimeMillis());
+            evicted = evict(maxSize);
+        } finally {
+            evictionLock.unlock();
+        }
+        notifyEvicted(evicted);
+    }
+
+    /**
+     * Evicts the least recently used entries until the cache holds no more than the given number
+     * of bytes, without changing the budget. Expired entries go first.
+     */
+    void trimToSize(long targetSize) {
+        List<Node<KeyT, ValT>> evicted = null;
+        evictionLock.lock();
+        try {
+            drainReadBuffer();
+            expire(System.currentTimeMillis());
+            evicted = evict(targetSize);
+        } finally {
+            evictionLock.unlock();
+        }
+        notifyEvicted(evicted);
+    }
+
+    long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Switches the frequency-based admission filter on or off. While it's on, a new entry which
+     * would require evicting others is only admitted if it has been accessed at least as often
+     * recently as each of them; otherwise it's dropped right away, and reported to the
+     * {@link EvictionListener} as if it had been evicted. Replacing the value of a key which is
+     * already cached always succeeds. Off by default.
+     */
+    void setAdmissionFilterEnabled(boolean isEnabled) {
+        evictionLock.lock();
+        try {
+            if (!isEnabled) {
+                sketch = null;
+            } else if (sketch == null) {
+                sketch = new FrequencySketch(map.size());
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    boolean isAdmissionFilterEnabled() {
+        evictionLock.lock();
+        try {
+            return sketch != null;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * @return the summed size in bytes of all entries currently held
+     */
+    long getSize() {
+        return size;
+    }
+
+    /**
+     * @return the number of entries dropped so far because they were found to have expired
+     */
+    long getExpirationCount() {
+        return expirations.sum();
+    }
+
+    ValT get(Object key) {
+        Node<KeyT, ValT> node = getNode(key);
+        return node == null ? null : node.value;
+    }
+
+    /**
+     * Like {@link #get(Object)}, but returns the whole entry, so that callers can tell when its
+     * value was written.
+     */
+    Node<KeyT, ValT> getNode(Object key) {
+        Node<KeyT, ValT> node = map.get(key);
+        if (node == null) {
+            return null;
+        }
+        if (node.isExpired(System.currentTimeMillis())) {
+            if (removeNode(node)) {
+                expirations.increment();
+            }
+            return null;
+        }
+        recordAccess(node);
+        return node;
+    }
+
+    /**
+     * Like {@link #getNode(Object)}, but also returns expired entries, and doesn't count as an
+     * access.
+     */
+    Node<KeyT, ValT> peekNode(Object key) {
+        return map.get(key);
+    }
+
+    /**
+     * Checks for a live mapping without counting as an access.
+     */
+    boolean containsKey(Object key) {
+        Node<KeyT, ValT> node = map.get(key);
+        return node != null && !node.isExpired(System.currentTimeMillis());
+    }
+
+    /**
+     * Adds an entry. Entries larger than the entire budget are not admitted at all (any previous
+     * mapping for the key is dropped, though, so that stale values are never served).
+     *
+     * @return the value previously mapped to the key, or null
+     */
+    ValT put(KeyT key, ValT value, long writtenAt, long expiresAt) {
+        long entrySize = sizer.sizeOf(key, value);
+        if (entrySize > maxSize) {
+            return remove(key);
+        }
+
+        Node<KeyT, ValT> node = new Node<KeyT, ValT>(key, value, entrySize, writtenAt,
+                expiresAt);
+        Node<KeyT, ValT> previous = map.put(key, node);
+
+        List<Node<KeyT, ValT>> evicted = null;
+        Node<KeyT, ValT> rejected = null;
+        evictionLock.lock();
+        try {
+            if (previous != null) {
+                // a new value for a popular key is just as popular
+                node.accessCount = previous.accessCount;
+                unlink(previous);
+            }
+            drainReadBuffer();
+            // reclaiming expired entries first may spare live ones from eviction
+            expire(System.currentTimeMillis());
+            if (sketch != null) {
+                sketch.increment(key.hashCode());
+                sketch.ensureCapacity(map.size());
+            }
+            // a concurrent remove or put may have replaced our node already
+            if (map.get(key) == node) {
+                if (previous != null || admits(node)) {
+                    link(node);
+                } else if (map.remove(key, node)) {
+                    rejected = node;
+                }
+            }
+            evicted = evict(maxSize);
+        } finally {
+            evictionLock.unlock();
+        }
+        if (rejected != null) {
+            if (evicted == null) {
+                evicted = new ArrayList<Node<KeyT, ValT>>(1);
+            }
+            evicted.add(rejected);
+        }
+        notifyEvicted(evicted);
+
+        return previous == null ? null : previous.value;
+    }
+
+    ValT remove(Object key) {
+        Node<KeyT, ValT> node = map.remove(key);
+        if (node == null) {
+            return null;
+        }
+        evictionLock.lock();
+        try {
+            unlink(node);
+        } finally {
+            evictionLock.unlock();
+        }
+        return node.value;
+    }
+
+    void clear() {
+        evictionLock.lock();
+        try {
+            map.clear();
+            keyIndex.clear();
+            expiryQueue.clear();
+            readBuffer.clear();
+            bufferedReads.set(0);
+            Node<KeyT, ValT> node = head.next;
+            while (node != head) {
+                Node<KeyT, ValT> next = node.next;
+                node.prev = node.next = null;
+                node.linked = false;
+                node = next;
+            }
+            head.prev = head;
+            head.next = head;
+            size = 0;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    int count() {
+        return map.size();
+    }
+
+    boolean isEmpty() {
+        return map.isEmpty();
+    }
+
+    boolean containsValue(Object value) {
+        for (Node<KeyT, ValT> node : map.values()) {
+            if (node.value.equals(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Finds the keys whose string form starts with the given prefix. Costs time proportional to
+     * the number of matches rather than the number of entries, and never blocks readers.
+     */
+    List<KeyT> keysWithPrefix(String keyPrefix) {
+        List<KeyT> keys = new ArrayList<KeyT>();
+        evictionLock.lock();
+        try {
+            for (Node<KeyT, ValT> node : keyIndex.tailMap(keyPrefix).values()) {
+                if (!node.indexKey.startsWith(keyPrefix)) {
+                    break;
+                }
+                keys.add(node.key);
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+        return keys;
+    }
+
+    /**
+     * Finds the keys which have been read most often. Access counts are halved every so often, so
+     * recent reads weigh more than older ones.
+     *
+     * @param count
+     *            the maximum number of keys to return
+     * @return the most frequently read keys, most frequent first; keys which haven't been read
+     *         in a while aren't included
+     */
+    List<KeyT> hottestKeys(int count) {
+        // a min-heap, so that the coldest of the hottest keys is the one to make room
+        PriorityQueue<Node<KeyT, ValT>> hottest = new PriorityQueue<Node<KeyT, ValT>>(count + 1,
+                byAccessCount);
+        List<KeyT> keys;
+        evictionLock.lock();
+        try {
+            drainReadBuffer();
+            for (Node<KeyT, ValT> node = head.next; node != head; node = node.next) {
+                if (node.accessCount > 0) {
+                    hottest.add(node);
+                    if (hottest.size() > count) {
+                        hottest.poll();
+                    }
+                }
+            }
+            keys = new ArrayList<KeyT>(hottest.size());
+            while (!hottest.isEmpty()) {
+                keys.add(hottest.poll().key);
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+        Collections.reverse(keys);
+        return keys;
+    }
+
+    Set<KeyT> keySet() {
+        return map.keySet();
+    }
+
+    Set<Map.Entry<KeyT, ValT>> entrySet() {
+        return Maps.transformValues(map, nodeToValue).entrySet();
+    }
+
+    Collection<ValT> values() {
+        return Maps.transformValues(map, nodeToValue).values();
+    }
+
+    private boolean removeNode(Node<KeyT, ValT> node) {
+        if (!map.remove(node.key, node)) {
+            return false;
+        }
+        evictionLock.lock();
+        try {
+            unlink(node);
+        } finally {
+            evictionLock.unlock();
+        }
+        return true;
+    }
+
+    // decides whether a new entry is worth evicting the entries in its way for. Must hold the
+    // eviction lock
+    private boolean admits(Node<KeyT, ValT> node) {
+        long excess = size + node.size - maxSize;
+        if (sketch == null || excess <= 0) {
+            return true;
+        }
+        int frequency = sketch.frequency(node.key.hashCode());
+        for (Node<KeyT, ValT> victim = head.next; victim != head && excess > 0;
+                victim = victim.next) {
+            if (sketch.frequency(victim.key.hashCode()) > frequency) {
+                return false;
+            }
+            excess -= victim.size;
+        }
+        return true;
+    }
+
+    private void recordAccess(Node<KeyT, ValT> node) {
+        readBuffer.offer(node);
+        if (bufferedReads.incrementAndGet() >= READ_BUFFER_DRAIN_THRESHOLD
+                && evictionLock.tryLock()) {
+            try {
+                drainReadBuffer();
+                expire(System.currentTimeMillis());
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    // must hold the eviction lock
+    private void drainReadBuffer() {
+        bufferedReads.set(0);
+        Node<KeyT, ValT> node;
+        while ((node = readBuffer.poll()) != null) {
+            if (node.linked) {
+                // move to the young end of the list
+                node.prev.next = node.next;
+                node.next.prev = node.prev;
+                appendToTail(node);
+                if (node.accessCount < Integer.MAX_VALUE) {
+                    node.accessCount++;
+                }
+                if (sketch != null) {
+                    sketch.increment(node.key.hashCode());
+                }
+                readsSinceAging++;
+            }
+        }
+        if (readsSinceAging >= Math.max(MIN_AGING_PERIOD, 10 * map.size())) {
+            ageAccessCounts();
+        }
+    }
+
+    // halves all access counts, so that keys which were popular a long time ago, but no longer
+    // are, fade out. Amortized over many reads, this costs next to nothing. Must hold the
+    // eviction lock
+    private void ageAccessCounts() {
+        for (Node<KeyT, ValT> node = head.next; node != head; node = node.next) {
+            node.accessCount >>= 1;
+        }
+        readsSinceAging = 0;
+    }
+
+    // must hold the eviction lock
+    private void link(Node<KeyT, ValT> node) {
+        appendToTail(node);
+        keyIndex.put(node.indexKey, node);
+        node.sequence = nextSequence++;
+        expiryQueue.add(node);
+        node.linked = true;
+        size += node.size;
+    }
+
+    // must hold the eviction lock
+    private void unlink(Node<KeyT, ValT> node) {
+        if (!node.linked) {
+            return;
+        }
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+        node.prev = node.next = null;
+        node.linked = false;
+        size -= node.size;
+        // distinct keys may share a string form, so only drop the mapping if it's ours
+        if (keyIndex.get(node.indexKey) == node) {
+            keyIndex.remove(node.indexKey);
+        }
+        expiryQueue.remove(node);
+    }
+
+    private void appendToTail(Node<KeyT, ValT> node) {
+        node.prev = head.prev;
+        node.next = head;
+        head.prev.next = node;
+        head.prev = node;
+    }
+
+    // drops the entries which have expired by the given time; only looks at expired entries, so
+    // this is cheap enough to do on every write. Must hold the eviction lock
+    private void expire(long now) {
+        while (!expiryQueue.isEmpty()) {
+            Node<KeyT, ValT> node = expiryQueue.first();
+            if (!node.isExpired(now)) {
+                return;
+            }
+            unlink(node);
+            if (map.remove(node.key, node)) {
+                expirations.increment();
+            }
+        }
+    }
+
+    // must hold the eviction lock
+    private List<Node<KeyT, ValT>> evict(long maxSize) {
+        List<Node<KeyT, ValT>> evicted = null;
+        while (size > maxSize && head.next != head) {
+            Node<KeyT, ValT> eldest = head.next;
+            unlink(eldest);
+            if (map.remove(eldest.key, eldest)) {
+                if (evicted == null) {
+                    evicted = new ArrayList<Node<KeyT, ValT>>();
+                }
+                evicted.add(eldest);
+            }
+        }
+        return evicted;
+    }
+
+    private void notifyEvicted(List<Node<KeyT, ValT>> evicted) {
+        EvictionListener<KeyT, ValT> listener = evictionListener;
+        if (evicted == null || listener == null) {
+            return;
+        }
+        for (Node<KeyT, ValT> node : evicted) {
+            listener.onEvicted(node.key, node.value);
+        }
+    }
+}
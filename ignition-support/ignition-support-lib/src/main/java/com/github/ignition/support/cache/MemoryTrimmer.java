@@ -0,0 +1,117 @@
+/* Copyright (c) 2009-2011 Matthias Kaeppler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.ignition.support.cache;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.ConcurrentMap;
+
+import android.content.ComponentCallbacks;
+import android.content.Context;
+import android.util.Log;
+
+import com.google.common.collect.MapMaker;
+
+/**
+ * Passes memory pressure signals on to every live {@link AbstractCache} which has been put to use
+ * (see {@link AbstractCache#trimMemory(int)}). On Android 4.0 and newer, {@link #install(Context)}
+ * registers for <code>onTrimMemory</code> callbacks, so that caches shrink on their own. On older
+ * platforms, which only know <code>onLowMemory</code>, call {@link #trimMemory(int)} with
+ * {@link AbstractCache#TRIM_MEMORY_COMPLETE} from your application's
+ * {@link android.app.Application#onLowMemory()}.
+ * 
+ * @author Matthias Kaeppler
+ */
+public final class MemoryTrimmer {
+
+    private static final String LOG_TAG = "Droid-Fu[CacheFu]";
+
+    // weakly referenced, so caches can still be garbage collected
+    private static final ConcurrentMap<AbstractCache<?, ?>, Boolean> caches = new MapMaker()
+            .weakKeys().makeMap();
+
+    private static boolean isInstalled;
+
+    private MemoryTrimmer() {
+    }
+
+    static void register(AbstractCache<?, ?> cache) {
+        caches.put(cache, Boolean.TRUE);
+    }
+
+    /**
+     * Trims all caches which are currently alive. See {@link AbstractCache#trimMemory(int)}.
+     * 
+     * @param level
+     *            one of the <code>TRIM_MEMORY_*</code> levels defined in {@link AbstractCache}
+     */
+    public static void trimMemory(int level) {
+        for (AbstractCache<?, ?> cache : caches.keySet()) {
+            cache.trimMemory(level);
+        }
+    }
+
+    /**
+     * Registers for memory pressure callbacks with the application, so that all caches are
+     * trimmed automatically from now on. Does nothing if already installed.
+     * 
+     * @param context
+     *            any context of the application
+     * @return false if the platform doesn't support <code>onTrimMemory</code> callbacks (prior to
+     *         Android 4.0), in which case {@link #trimMemory(int)} must be called manually
+     */
+    public static synchronized boolean install(Context context) {
+        if (isInstalled) {
+            return true;
+        }
+        // ComponentCallbacks2 is newer than the platform version we compile against
+        Class<?> callbacksClass;
+        try {
+            callbacksClass = Class.forName("android.content.ComponentCallbacks2");
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+        Object callbacks = Proxy.newProxyInstance(callbacksClass.getClassLoader(),
+                new Class<?>[] { callbacksClass }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        String name = method.getName();
+                        if (name.equals("onTrimMemory")) {
+                            trimMemory((Integer) args[0]);
+                        } else if (name.equals("onLowMemory")) {
+                            trimMemory(AbstractCache.TRIM_MEMORY_COMPLETE);
+                        } else if (name.equals("equals")) {
+                            return proxy == args[0];
+                        } else if (name.equals("hashCode")) {
+                            return System.identityHashCode(proxy);
+                        } else if (name.equals("toString")) {
+                            return "MemoryTrimmer";
+                        }
+                        return null;
+                    }
+                });
+        try {
+            Context.class.getMethod("registerComponentCallbacks", ComponentCallbacks.class)
+                    .invoke(context.getApplicationContext(), callbacks);
+        } catch (Exception e) {
+            Log.w(LOG_TAG, "Failed to register for memory callbacks: " + e);
+            return false;
+        }
+        isInstalled = true;
+        return true;
+    }
+}
@@ -1,11 +1,10 @@
 package com.github.ignition.support.cache;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.os.Parcel;
 
@@ -29,15 +28,15 @@ public class ModelCache extends AbstractCache<String, CachedModel> {
     }
 
     // Counter for all saves to cache. Used to determine if newer object in cache
-    private long transactionCount = Long.MIN_VALUE + 1;
+    private final AtomicLong transactionCount = new AtomicLong(Long.MIN_VALUE + 1);
 
     /**
      * @see com.github.droidfu.cachefu.AbstractCache#put(java.lang.Object, java.lang.Object)
      */
     @Override
-    public synchronized CachedModel put(String key, CachedModel value) {
+    public CachedModel put(String key, CachedModel value) {
         // Set transaction id for checking validity against other values with same key
-        value.setTransactionId(transactionCount++);
+        value.setTransactionId(transactionCount.getAndIncrement());
         return super.put(key, value);
     }
 
@@ -47,7 +46,7 @@ public class ModelCache extends AbstractCache<String, CachedModel> {
      * @param prefix
      *            Prefix of all cached object keys to be removed
      */
-    public synchronized void removeAllWithPrefix(String prefix) {
+    public void removeAllWithPrefix(String prefix) {
         CacheHelper.removeAllWithStringPrefix(this, prefix);
     }
 
@@ -56,21 +55,33 @@ public class ModelCache extends AbstractCache<String, CachedModel> {
      */
     @Override
     public String getFileNameForKey(String url) {
+        return CacheHelper.getFileNameFromKey(url);
+    }
+
+    /**
+     * @see com.github.droidfu.cachefu.AbstractCache#getLegacyFileNameForKey(java.lang.Object)
+     */
+    @Override
+    protected String getLegacyFileNameForKey(String url) {
         return CacheHelper.getFileNameFromUrl(url);
     }
 
     /**
-     * @see com.github.droidfu.cachefu.AbstractCache#readValueFromDisk(java.io.File)
+     * @see com.github.droidfu.cachefu.AbstractCache#getKeyFromString(java.lang.String)
      */
     @Override
-    protected CachedModel readValueFromDisk(File file) throws IOException {
-        FileInputStream istream = new FileInputStream(file);
+    protected String getKeyFromString(String url) {
+        return url;
+    }
 
-        // Read file into byte array
-        byte[] dataWritten = new byte[(int) file.length()];
-        BufferedInputStream bistream = new BufferedInputStream(istream);
-        bistream.read(dataWritten);
-        bistream.close();
+    /**
+     * @see com.github.droidfu.cachefu.AbstractCache#readValueFromDisk(java.io.InputStream, int)
+     */
+    @Override
+    protected CachedModel readValueFromDisk(InputStream istream, int length) throws IOException {
+        // Read payload into byte array
+        byte[] dataWritten = new byte[length];
+        new DataInputStream(istream).readFully(dataWritten);
 
         // Create parcel with cached data
         Parcel parcelIn = Parcel.obtain();
@@ -93,21 +104,19 @@ public class ModelCache extends AbstractCache<String, CachedModel> {
     }
 
     /**
-     * @see com.github.droidfu.cachefu.AbstractCache#writeValueToDisk(java.io.File,
+     * @see com.github.droidfu.cachefu.AbstractCache#writeValueToDisk(java.io.OutputStream,
      *      java.lang.Object)
      */
     @Override
-    protected void writeValueToDisk(File file, CachedModel data) throws IOException {
+    protected void writeValueToDisk(OutputStream ostream, CachedModel data) throws IOException {
         // Write object into parcel
         Parcel parcelOut = Parcel.obtain();
         parcelOut.writeString(data.getClass().getCanonicalName());
         parcelOut.writeParcelable(data, 0);
 
         // Write byte data to file
-        FileOutputStream ostream = new FileOutputStream(file);
-        BufferedOutputStream bistream = new BufferedOutputStream(ostream);
-        bistream.write(parcelOut.marshall());
-        bistream.close();
+        ostream.write(parcelOut.marshall());
+        parcelOut.recycle();
     }
 
 }
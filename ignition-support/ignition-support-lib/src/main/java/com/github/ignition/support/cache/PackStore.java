@@ -0,0 +1,311 @@
+/* Copyright (c) 2009-2011 Matthias Kaeppler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.ignition.support.cache;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.github.ignition.support.cache.EntryHeader.CorruptEntryException;
+
+/**
+ * Stores small cache records by appending them to a few large segment files, rather than giving
+ * each one a file of its own. This saves the inode and block overhead of many tiny files, as well
+ * as the syscalls needed to create, open and delete them.
+ * <p>
+ * Records are appended to the active segment until it reaches {@link #MAX_SEGMENT_SIZE} bytes,
+ * after which a new segment is started. Segments are never written to again once they've been
+ * superseded, and records are never modified in place, so a record is addressed by its segment
+ * and offset for as long as it lives (see {@link #segmentOf(long)} and {@link #offsetOf(long)}).
+ * The store itself doesn't know which records are still in use; that's what {@link DiskIndex} is
+ * for, which also decides when a segment has accumulated enough dead records to be compacted.
+ * </p>
+ *
+ * @author Matthias Kaeppler
+ */
+class PackStore {
+
+    static final String DIRECTORY_NAME = "packs";
+
+    /**
+     * The size at which the active segment is closed and a new one started. Records are never
+     * split, so a segment may end up slightly smaller than this.
+     */
+    static final int MAX_SEGMENT_SIZE = 1024 * 1024;
+
+    private static final String SEGMENT_SUFFIX = ".pack";
+
+    // how many segments are kept open for reading at a time
+    private static final int MAX_OPEN_SEGMENTS = 8;
+
+    private final File directory;
+
+    // the length of every segment that exists, by number; guarded by this
+    private final Map<Integer, Long> segmentLengths = new HashMap<Integer, Long>();
+
+    // segments opened for reading, least recently used first; guarded by this
+    private final LinkedHashMap<Integer, RandomAccessFile> openSegments =
+            new LinkedHashMap<Integer, RandomAccessFile>(MAX_OPEN_SEGMENTS, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, RandomAccessFile> eldest) {
+                    if (size() <= MAX_OPEN_SEGMENTS) {
+                        return false;
+                    }
+                    closeQuietly(eldest.getValue());
+                    return true;
+                }
+            };
+
+    private FileOutputStream activeStream;
+
+    private int activeSegment = -1;
+
+    private long activeLength;
+
+    private int nextSegment;
+
+    PackStore(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Takes stock of the segments which exist on disk, and deletes those which hold no live
+     * records. New records always go to a new segment, since the last one written before may end
+     * in a torn record.
+     *
+     * @param liveSegments
+     *            the segments holding records which are still in use
+     */
+    synchronized void open(Set<Integer> liveSegments) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            int segment = parseSegment(file.getName());
+            if (segment >= 0) {
+                nextSegment = Math.max(nextSegment, segment + 1);
+            }
+            if (segment >= 0 && liveSegments.contains(segment)) {
+                segmentLengths.put(segment, file.length());
+            } else {
+                file.delete();
+            }
+        }
+    }
+
+    private static int parseSegment(String fileName) {
+        if (!fileName.endsWith(SEGMENT_SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(fileName.substring(0, fileName.length()
+                    - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private File getFile(int segment) {
+        return new File(directory, segment + SEGMENT_SUFFIX);
+    }
+
+    /**
+     * @return the segment part of a location returned by {@link #append(byte[], int, int)}
+     */
+    static int segmentOf(long location) {
+        return (int) (location >>> 32);
+    }
+
+    /**
+     * @return the offset part of a location returned by {@link #append(byte[], int, int)}
+     */
+    static int offsetOf(long location) {
+        return (int) location;
+    }
+
+    /**
+     * Appends a record to the active segment, starting a new one if it's full.
+     *
+     * @return the location of the record, see {@link #segmentOf(long)} and
+     *         {@link #offsetOf(long)}
+     */
+    synchronized long append(byte[] record, int offset, int length) throws IOException {
+        if (activeStream == null
+                || (activeLength > 0 && activeLength + length > MAX_SEGMENT_SIZE)) {
+            startSegment();
+        }
+        long location = ((long) activeSegment << 32) | activeLength;
+        try {
+            activeStream.write(record, offset, length);
+        } catch (IOException e) {
+            // whatever part of the record made it to disk is garbage now, so don't append to it
+            closeActiveSegment();
+            throw e;
+        }
+        activeLength += length;
+        segmentLengths.put(activeSegment, activeLength);
+        return location;
+    }
+
+    private void startSegment() throws IOException {
+        closeActiveSegment();
+        int segment = nextSegment++;
+        File file = getFile(segment);
+        FileOutputStream stream;
+        try {
+            stream = new FileOutputStream(file);
+        } catch (FileNotFoundException e) {
+            // first segment; if the generation directory itself is gone, so is the store
+            directory.mkdir();
+            stream = new FileOutputStream(file);
+        }
+        activeStream = stream;
+        activeSegment = segment;
+        activeLength = 0;
+        segmentLengths.put(segment, 0L);
+    }
+
+    private void closeActiveSegment() {
+        if (activeStream != null) {
+            closeQuietly(activeStream);
+            activeStream = null;
+            activeSegment = -1;
+        }
+    }
+
+    /**
+     * Reads a record. Doesn't block appends or reads of other records.
+     *
+     * @throws FileNotFoundException
+     *             if the segment doesn't exist (anymore)
+     * @throws CorruptEntryException
+     *             if the segment ends before the record does
+     */
+    byte[] read(int segment, int offset, int length) throws IOException {
+        FileChannel channel = getChannel(segment);
+        ByteBuffer record = ByteBuffer.allocate(length);
+        while (record.hasRemaining()) {
+            // positional reads don't interfere with each other, so no need for locking
+            if (channel.read(record, offset + record.position()) == -1) {
+                throw new CorruptEntryException("truncated record");
+            }
+        }
+        return record.array();
+    }
+
+    // closing a segment while another thread reads from it makes that read fail, which the cache
+    // treats as a miss, so the cost of keeping fewer files open is the odd extra miss
+    private synchronized FileChannel getChannel(int segment) throws IOException {
+        RandomAccessFile file = openSegments.get(segment);
+        if (file == null) {
+            if (!segmentLengths.containsKey(segment)) {
+                throw new FileNotFoundException("no segment " + segment);
+            }
+            file = new RandomAccessFile(getFile(segment), "r");
+            openSegments.put(segment, file);
+        }
+        return file.getChannel();
+    }
+
+    /**
+     * @return the number of the segment records are currently appended to, or -1 if there is none
+     */
+    synchronized int getActiveSegment() {
+        return activeSegment;
+    }
+
+    /**
+     * @return the size in bytes of the given segment, or 0 if it doesn't exist
+     */
+    synchronized long getLength(int segment) {
+        Long length = segmentLengths.get(segment);
+        return length == null ? 0 : length;
+    }
+
+    synchronized List<Integer> getSegments() {
+        return new ArrayList<Integer>(segmentLengths.keySet());
+    }
+
+    synchronized List<File> getSegmentFiles() {
+        List<File> files = new ArrayList<File>(segmentLengths.size());
+        for (int segment : segmentLengths.keySet()) {
+            files.add(getFile(segment));
+        }
+        return files;
+    }
+
+    /**
+     * Deletes a segment. Any records still in it are lost.
+     */
+    synchronized void delete(int segment) {
+        if (segment == activeSegment) {
+            closeActiveSegment();
+        }
+        RandomAccessFile file = openSegments.remove(segment);
+        if (file != null) {
+            closeQuietly(file);
+        }
+        segmentLengths.remove(segment);
+        getFile(segment).delete();
+    }
+
+    /**
+     * Deletes all segments, including any the store doesn't know about.
+     */
+    synchronized void clear() {
+        close();
+        segmentLengths.clear();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Closes all open segments. The store remains usable, and reopens segments as needed.
+     */
+    synchronized void close() {
+        closeActiveSegment();
+        for (RandomAccessFile file : openSegments.values()) {
+            closeQuietly(file);
+        }
+        openSegments.clear();
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // nothing we can do about it
+        }
+    }
+}
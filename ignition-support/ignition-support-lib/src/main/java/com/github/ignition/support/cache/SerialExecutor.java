@@ -0,0 +1,93 @@
+/* Copyright (c) 2009-2011 Matthias Kaeppler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.ignition.support.cache;
+
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs tasks one at a time, in the order they were submitted, on the threads of another executor.
+ * Lets {@link AbstractCache} keep asynchronous writes in order without giving them a thread of
+ * their own.
+ *
+ * @author Matthias Kaeppler
+ */
+class SerialExecutor implements Executor {
+
+    private final Executor executor;
+
+    // guarded by this
+    private final LinkedList<Runnable> tasks = new LinkedList<Runnable>();
+
+    // guarded by this; whether a thread of the other executor is running the tasks
+    private boolean isDraining;
+
+    // runs tasks until there are none left, so that once started, they're all run even if the
+    // other executor is shut down in the meantime
+    private final Runnable drainer = new Runnable() {
+        @Override
+        public void run() {
+            boolean isDone = false;
+            try {
+                while (true) {
+                    Runnable task;
+                    synchronized (SerialExecutor.this) {
+                        task = tasks.poll();
+                        if (task == null) {
+                            isDraining = false;
+                            isDone = true;
+                            return;
+                        }
+                    }
+                    task.run();
+                }
+            } finally {
+                if (!isDone) {
+                    // a task threw; let another thread carry on
+                    synchronized (SerialExecutor.this) {
+                        isDraining = false;
+                        if (!tasks.isEmpty()) {
+                            startDraining();
+                        }
+                    }
+                }
+            }
+        }
+    };
+
+    SerialExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    @Override
+    public synchronized void execute(Runnable task) {
+        tasks.offer(task);
+        if (!isDraining) {
+            try {
+                startDraining();
+            } catch (RuntimeException e) {
+                tasks.removeLast();
+                throw e;
+            }
+        }
+    }
+
+    // must hold the lock
+    private void startDraining() {
+        executor.execute(drainer);
+        isDraining = true;
+    }
+}
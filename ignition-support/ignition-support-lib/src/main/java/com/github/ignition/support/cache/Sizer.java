@@ -0,0 +1,43 @@
+/* Copyright (c) 2009-2011 Matthias Kaeppler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.ignition.support.cache;
+
+/**
+ * Measures how many bytes a cache entry occupies in memory. The memory tier of an
+ * {@link AbstractCache} uses this to enforce its byte budget (see
+ * {@link AbstractCache#setMaxMemoryCacheSize(long)}).
+ *
+ * @author Matthias Kaeppler
+ *
+ * @param <KeyT>
+ *            the cache key type
+ * @param <ValT>
+ *            the cache value type
+ */
+public interface Sizer<KeyT, ValT> {
+
+    /**
+     * Returns the (approximate) size of the given entry in bytes. This is called exactly once when
+     * the entry is put into the cache, so the result must not change while the entry is cached.
+     *
+     * @param key
+     *            the cache key
+     * @param value
+     *            the cache value
+     * @return the size of the entry in bytes, must not be negative
+     */
+    long sizeOf(KeyT key, ValT value);
+}
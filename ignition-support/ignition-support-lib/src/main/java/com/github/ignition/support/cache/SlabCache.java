@@ -0,0 +1,366 @@
+/* Copyright (c) 2009-2011 Matthias Kaeppler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.ignition.support.cache;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * The off-heap tier used by {@link AbstractCache} (see
+ * {@link AbstractCache#enableOffHeapCache(long)}). Holds serialized values in large direct
+ * {@link ByteBuffer}s, called slabs, which live outside the VM heap, so that they neither count
+ * against the heap limit nor have to be traced by the garbage collector.
+ * <p>
+ * Slabs are carved up by a first-fit allocator, which keeps the free ranges of each slab sorted
+ * by offset, and merges adjacent ones when a range is freed. When no free range is large enough
+ * for a new value, the least recently used entries are evicted until one is. Slabs are allocated
+ * on demand, up to the size limit, and released again when the tier is trimmed.
+ * </p>
+ * <p>
+ * Values are read through views of the slab memory rather than copies. Since the memory of an
+ * evicted entry is reused, readers pin an entry while using its view (see
+ * {@link #acquire(Object)}); the memory of a pinned entry is only freed once it's released.
+ * </p>
+ *
+ * @author Matthias Kaeppler
+ */
+class SlabCache<KeyT> {
+
+    /**
+     * The size of a slab, which is also the size of the largest value the tier holds.
+     */
+    static final int SLAB_SIZE = 1024 * 1024;
+
+    // allocations are rounded up to a multiple of this, so that freed ranges are more likely to
+    // be reusable, and the free lists stay short
+    private static final int ALIGNMENT = 64;
+
+    /**
+     * A cached value. The view it hands out is only valid while the entry is pinned.
+     */
+    static final class Entry<KeyT> {
+        final KeyT key;
+        // the key as seen by the prefix index
+        final String indexKey;
+        final long writtenAt;
+        final long expiresAt;
+
+        private final ByteBuffer view;
+        private final Slab slab;
+        private final int offset;
+        private final int allocatedSize;
+
+        // guarded by the cache
+        private int pins;
+        private boolean isRemoved;
+
+        Entry(KeyT key, ByteBuffer view, Slab slab, int offset, int allocatedSize,
+                long writtenAt, long expiresAt) {
+            this.key = key;
+            this.indexKey = String.valueOf(key);
+            this.view = view;
+            this.slab = slab;
+            this.offset = offset;
+            this.allocatedSize = allocatedSize;
+            this.writtenAt = writtenAt;
+            this.expiresAt = expiresAt;
+        }
+
+        /**
+         * @return a read-only view of the value, positioned at its start
+         */
+        ByteBuffer getBuffer() {
+            return view.asReadOnlyBuffer();
+        }
+
+        int getLength() {
+            return view.capacity();
+        }
+
+        boolean isExpired(long now) {
+            return now >= expiresAt;
+        }
+    }
+
+    private static final class Slab {
+        final ByteBuffer memory = ByteBuffer.allocateDirect(SLAB_SIZE);
+        // maps the offsets of free ranges to their lengths
+        final TreeMap<Integer, Integer> freeRanges = new TreeMap<Integer, Integer>();
+
+        Slab() {
+            freeRanges.put(0, SLAB_SIZE);
+        }
+
+        boolean isEmpty() {
+            return freeRanges.size() == 1 && freeRanges.get(0) != null
+                    && freeRanges.get(0) == SLAB_SIZE;
+        }
+    }
+
+    private final int maxSlabs;
+
+    private final List<Slab> slabs = new ArrayList<Slab>();
+
+    // least recently used first
+    private final LinkedHashMap<KeyT, Entry<KeyT>> entries =
+            new LinkedHashMap<KeyT, Entry<KeyT>>(16, 0.75f, true);
+
+    // all entries, sorted by the string form of their keys
+    private final TreeMap<String, Entry<KeyT>> keyIndex = new TreeMap<String, Entry<KeyT>>();
+
+    private long size;
+
+    /**
+     * @param maxSize
+     *            the maximum number of bytes to allocate; rounded down to a multiple of
+     *            {@link #SLAB_SIZE}, but at least one slab
+     */
+    SlabCache(long maxSize) {
+        this.maxSlabs = (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxSize / SLAB_SIZE));
+    }
+
+    /**
+     * @return the maximum number of bytes the tier allocates
+     */
+    long getMaxSize() {
+        return (long) maxSlabs * SLAB_SIZE;
+    }
+
+    /**
+     * @return the number of bytes allocated to entries
+     */
+    synchronized long getSize() {
+        return size;
+    }
+
+    synchronized int count() {
+        return entries.size();
+    }
+
+    /**
+     * Stores a value, evicting the least recently used entries if necessary. Replaces any
+     * previous value of the key, even if the new one can't be stored.
+     *
+     * @return false if the value is larger than {@link #SLAB_SIZE}, or there wasn't enough
+     *         memory which isn't pinned
+     */
+    synchronized boolean put(KeyT key, byte[] data, int length, long writtenAt, long expiresAt) {
+        remove(key);
+        if (length > SLAB_SIZE) {
+            return false;
+        }
+        int allocatedSize = Math.max(ALIGNMENT, (length + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT);
+        Slab slab;
+        int offset;
+        while (true) {
+            slab = null;
+            offset = -1;
+            for (Slab candidate : slabs) {
+                offset = allocate(candidate, allocatedSize);
+                if (offset >= 0) {
+                    slab = candidate;
+                    break;
+                }
+            }
+            if (slab != null) {
+                break;
+            }
+            if (slabs.size() < maxSlabs) {
+                slabs.add(new Slab());
+            } else if (!evictEldest()) {
+                return false;
+            }
+        }
+
+        ByteBuffer view = slab.memory.duplicate();
+        view.position(offset);
+        view.put(data, 0, length);
+        view.position(offset);
+        view.limit(offset + length);
+        Entry<KeyT> entry = new Entry<KeyT>(key, view.slice(), slab, offset, allocatedSize,
+                writtenAt, expiresAt);
+        entries.put(key, entry);
+        keyIndex.put(entry.indexKey, entry);
+        size += allocatedSize;
+        return true;
+    }
+
+    /**
+     * Looks up a value and pins it, i.e. keeps its memory from being reused until
+     * {@link #release(Entry)} is called. Counts as an access.
+     *
+     * @return the pinned entry, or null if the key isn't cached or has expired
+     */
+    synchronized Entry<KeyT> acquire(Object key) {
+        Entry<KeyT> entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.isExpired(System.currentTimeMillis())) {
+            unlink(entry);
+            return null;
+        }
+        entry.pins++;
+        return entry;
+    }
+
+    /**
+     * Unpins an entry obtained from {@link #acquire(Object)}. Its view must not be used anymore
+     * afterwards.
+     */
+    synchronized void release(Entry<KeyT> entry) {
+        if (--entry.pins == 0 && entry.isRemoved) {
+            free(entry);
+        }
+    }
+
+    /**
+     * @return whether the key is cached, without counting as an access
+     */
+    synchronized boolean containsKey(Object key) {
+        // get would move the entry to the young end, so go through the prefix index
+        Entry<KeyT> entry = keyIndex.get(String.valueOf(key));
+        if (entry != null && !entry.key.equals(key)) {
+            // another key with the same string form; rare enough to do it the slow way
+            entry = null;
+            for (Entry<KeyT> candidate : entries.values()) {
+                if (candidate.key.equals(key)) {
+                    entry = candidate;
+                    break;
+                }
+            }
+        }
+        return entry != null && !entry.isExpired(System.currentTimeMillis());
+    }
+
+    synchronized void remove(Object key) {
+        Entry<KeyT> entry = entries.get(key);
+        if (entry != null) {
+            unlink(entry);
+        }
+    }
+
+    /**
+     * Finds the keys whose string form starts with the given prefix.
+     */
+    synchronized List<KeyT> keysWithPrefix(String keyPrefix) {
+        List<KeyT> keys = new ArrayList<KeyT>();
+        for (Entry<KeyT> entry : keyIndex.tailMap(keyPrefix).values()) {
+            if (!entry.indexKey.startsWith(keyPrefix)) {
+                break;
+            }
+            keys.add(entry.key);
+        }
+        return keys;
+    }
+
+    /**
+     * Evicts the least recently used entries until the tier holds no more than the given number
+     * of bytes, then releases the slabs which are no longer used, so that their memory can be
+     * reclaimed.
+     */
+    synchronized void trimToSize(long targetSize) {
+        while (size > targetSize && evictEldest()) {
+            // keep going
+        }
+        for (Iterator<Slab> it = slabs.iterator(); it.hasNext();) {
+            if (it.next().isEmpty()) {
+                it.remove();
+            }
+        }
+    }
+
+    synchronized void clear() {
+        for (Entry<KeyT> entry : entries.values()) {
+            // the memory of unpinned entries goes away with the slabs
+            entry.isRemoved = true;
+        }
+        entries.clear();
+        keyIndex.clear();
+        slabs.clear();
+        size = 0;
+    }
+
+    // must hold the lock
+    private boolean evictEldest() {
+        for (Entry<KeyT> entry : entries.values()) {
+            if (entry.pins == 0) {
+                unlink(entry);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // must hold the lock
+    private void unlink(Entry<KeyT> entry) {
+        entries.remove(entry.key);
+        // distinct keys may share a string form, so only drop the mapping if it's ours
+        if (keyIndex.get(entry.indexKey) == entry) {
+            keyIndex.remove(entry.indexKey);
+        }
+        size -= entry.allocatedSize;
+        entry.isRemoved = true;
+        if (entry.pins == 0) {
+            free(entry);
+        }
+    }
+
+    // carves the given number of bytes out of the first free range large enough, returning the
+    // offset, or -1 if there's none
+    private static int allocate(Slab slab, int length) {
+        for (Map.Entry<Integer, Integer> range : slab.freeRanges.entrySet()) {
+            int rangeLength = range.getValue();
+            if (rangeLength >= length) {
+                int offset = range.getKey();
+                slab.freeRanges.remove(offset);
+                if (rangeLength > length) {
+                    slab.freeRanges.put(offset + length, rangeLength - length);
+                }
+                return offset;
+            }
+        }
+        return -1;
+    }
+
+    // must hold the lock
+    private static void free(Entry<?> entry) {
+        TreeMap<Integer, Integer> freeRanges = entry.slab.freeRanges;
+        int offset = entry.offset;
+        int length = entry.allocatedSize;
+        Integer nextLength = freeRanges.remove(offset + length);
+        if (nextLength != null) {
+            length += nextLength;
+        }
+        SortedMap<Integer, Integer> preceding = freeRanges.headMap(offset);
+        if (!preceding.isEmpty()) {
+            int previousOffset = preceding.lastKey();
+            int previousLength = preceding.get(previousOffset);
+            if (previousOffset + previousLength == offset) {
+                freeRanges.remove(previousOffset);
+                offset = previousOffset;
+                length += previousLength;
+            }
+        }
+        freeRanges.put(offset, length);
+    }
+}
@@ -0,0 +1,63 @@
+/* Copyright (c) 2009-2011 Matthias Kaeppler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.ignition.support.cache;
+
+/**
+ * The counters behind {@link CacheStats}. Updating them never blocks, and never logs.
+ *
+ * @author Matthias Kaeppler
+ */
+class StatsCounter {
+
+    final StripedCounter memoryHits = new StripedCounter();
+    final StripedCounter memoryMisses = new StripedCounter();
+    final StripedCounter offHeapHits = new StripedCounter();
+    final StripedCounter offHeapMisses = new StripedCounter();
+    final StripedCounter diskHits = new StripedCounter();
+    final StripedCounter diskMisses = new StripedCounter();
+    final StripedCounter loadSuccesses = new StripedCounter();
+    final StripedCounter loadFailures = new StripedCounter();
+    final StripedCounter refreshes = new StripedCounter();
+    final StripedCounter memoryEvictions = new StripedCounter();
+    final StripedCounter diskEvictions = new StripedCounter();
+    final StripedCounter expirations = new StripedCounter();
+    final StripedCounter diskFilterSkips = new StripedCounter();
+    final StripedCounter diskFilterFalsePositives = new StripedCounter();
+
+    final LatencyHistogram diskReads = new LatencyHistogram();
+    final LatencyHistogram diskWrites = new LatencyHistogram();
+
+    CacheStats snapshot() {
+        CacheStats stats = new CacheStats();
+        stats.memoryHitCount = memoryHits.sum();
+        stats.memoryMissCount = memoryMisses.sum();
+        stats.offHeapHitCount = offHeapHits.sum();
+        stats.offHeapMissCount = offHeapMisses.sum();
+        stats.diskHitCount = diskHits.sum();
+        stats.diskMissCount = diskMisses.sum();
+        stats.loadSuccessCount = loadSuccesses.sum();
+        stats.loadFailureCount = loadFailures.sum();
+        stats.refreshCount = refreshes.sum();
+        stats.memoryEvictionCount = memoryEvictions.sum();
+        stats.diskEvictionCount = diskEvictions.sum();
+        stats.expirationCount = expirations.sum();
+        stats.diskFilterSkipCount = diskFilterSkips.sum();
+        stats.diskFilterFalsePositiveCount = diskFilterFalsePositives.sum();
+        stats.diskReadLatency = diskReads.snapshot();
+        stats.diskWriteLatency = diskWrites.snapshot();
+        return stats;
+    }
+}
@@ -0,0 +1,67 @@
+/* Copyright (c) 2009-2011 Matthias Kaeppler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.ignition.support.cache;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter which many threads can update concurrently without contending for a single memory
+ * location. Every thread adds to one of several cells, chosen by its thread ID; reading the
+ * counter sums up all cells. Updates are cheap, reads are comparatively expensive, which is the
+ * right trade-off for statistics.
+ *
+ * @author Matthias Kaeppler
+ */
+class StripedCounter {
+
+    // cells are spaced this many longs apart, so that each one sits on its own cache line
+    private static final int PADDING = 8;
+
+    private static final int MAX_CELLS = 64;
+
+    private final AtomicLongArray cells;
+
+    private final int mask;
+
+    StripedCounter() {
+        int numCells = 2;
+        int numCpus = Runtime.getRuntime().availableProcessors();
+        while (numCells < numCpus * 2 && numCells < MAX_CELLS) {
+            numCells <<= 1;
+        }
+        cells = new AtomicLongArray(numCells * PADDING);
+        mask = numCells - 1;
+    }
+
+    void increment() {
+        add(1);
+    }
+
+    void add(long delta) {
+        cells.addAndGet(((int) Thread.currentThread().getId() & mask) * PADDING, delta);
+    }
+
+    /**
+     * @return the current count; not an atomic snapshot if updates happen concurrently
+     */
+    long sum() {
+        long sum = 0;
+        for (int i = 0; i < cells.length(); i += PADDING) {
+            sum += cells.get(i);
+        }
+        return sum;
+    }
+}
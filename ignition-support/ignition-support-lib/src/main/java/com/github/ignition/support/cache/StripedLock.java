@@ -0,0 +1,81 @@
+/* Copyright (c) 2009-2011 Matthias Kaeppler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.ignition.support.cache;
+
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A fixed set of read/write locks which keys are mapped to by their hash code. Used by
+ * {@link AbstractCache} to serialize disk access per cache file (the lock key is the file name):
+ * any number of threads may read a file concurrently, but writing or deleting it excludes everyone
+ * else working on the same stripe. Operations on keys which map to different stripes never wait
+ * for each other.
+ *
+ * @author Matthias Kaeppler
+ */
+class StripedLock {
+
+    private static final int MIN_STRIPES = 16;
+
+    private final ReadWriteLock[] stripes;
+
+    private final int mask;
+
+    /**
+     * @param concurrencyLevel
+     *            the expected number of threads accessing the cache concurrently
+     */
+    StripedLock(int concurrencyLevel) {
+        int numStripes = MIN_STRIPES;
+        while (numStripes < concurrencyLevel * 4) {
+            numStripes <<= 1;
+        }
+        stripes = new ReadWriteLock[numStripes];
+        for (int i = 0; i < numStripes; i++) {
+            stripes[i] = new ReentrantReadWriteLock();
+        }
+        mask = numStripes - 1;
+    }
+
+    ReadWriteLock forKey(Object key) {
+        return stripes[spread(key.hashCode()) & mask];
+    }
+
+    /**
+     * Acquires the write locks of all stripes, always in the same order, e.g. to swap out the
+     * directory all files live in. Excludes everyone else working on the disk cache, so it should
+     * be held only briefly.
+     */
+    void lockAll() {
+        for (ReadWriteLock stripe : stripes) {
+            stripe.writeLock().lock();
+        }
+    }
+
+    void unlockAll() {
+        for (int i = stripes.length - 1; i >= 0; i--) {
+            stripes[i].writeLock().unlock();
+        }
+    }
+
+    // the same supplemental hash HashMap uses, so that keys whose hash codes only differ in the
+    // upper bits (common for Strings sharing a long prefix) still spread across stripes
+    private static int spread(int h) {
+        h ^= (h >>> 20) ^ (h >>> 12);
+        return h ^ (h >>> 7) ^ (h >>> 4);
+    }
+}
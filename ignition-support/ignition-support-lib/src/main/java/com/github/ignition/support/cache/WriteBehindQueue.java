@@ -0,0 +1,329 @@
+/* Copyright (c) 2009-2011 Matthias Kaeppler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.ignition.support.cache;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import android.util.Log;
+
+import com.google.common.base.Predicate;
+
+/**
+ * Collects pending disk writes for an {@link AbstractCache} in write-behind mode, and hands them to
+ * a single writer thread in batches. Pending writes are keyed by file name, so a write which
+ * hasn't started yet is simply replaced when the same file is written again, and then moves to
+ * the end of the queue. Writes are numbered in the order they're scheduled, which lets
+ * {@link #flush()} wait for exactly those scheduled before it. The queue is bounded; once full,
+ * producers have to wait for the writer to catch up (see {@link #awaitCapacity()}).
+ *
+ * @author Matthias Kaeppler
+ *
+ * @param <T>
+ *            the type describing a pending write
+ */
+class WriteBehindQueue<T> {
+
+    /**
+     * Performs the actual writes. Invoked on the writer thread only.
+     */
+    interface Writer<T> {
+
+        /**
+         * Writes the file with the given name. Implementations must remove the pending write from
+         * the queue using {@link WriteBehindQueue#take(String)}, and should do so while holding
+         * whatever lock guards the file, so that readers never miss a value which is neither
+         * pending nor written yet.
+         */
+        void write(WriteBehindQueue<T> queue, String fileName);
+
+        /**
+         * Called after every batch of writes.
+         */
+        void batchWritten();
+    }
+
+    private static final String LOG_TAG = "Droid-Fu[CacheFu]";
+
+    private static final int BATCH_SIZE = 16;
+
+    private static final class Slot<T> {
+        final T write;
+        final long sequenceNumber;
+
+        Slot(T write, long sequenceNumber) {
+            this.write = write;
+            this.sequenceNumber = sequenceNumber;
+        }
+    }
+
+    private final int capacity;
+
+    private final Writer<T> writer;
+
+    // in the order the writes were scheduled, so the eldest has the lowest sequence number
+    private final LinkedHashMap<String, Slot<T>> pending = new LinkedHashMap<String, Slot<T>>();
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition notEmpty = lock.newCondition();
+
+    private final Condition notFull = lock.newCondition();
+
+    private final Condition drained = lock.newCondition();
+
+    private final Thread writerThread;
+
+    // guarded by lock
+    private boolean isWriting, isShutdown, isStopped;
+
+    // guarded by lock; the number of the latest write scheduled, and the lowest one in the batch
+    // being written
+    private long lastSequenceNumber, writingSequenceNumber;
+
+    WriteBehindQueue(String name, int capacity, Writer<T> writer) {
+        this.capacity = capacity;
+        this.writer = writer;
+        this.writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                processWrites();
+            }
+        }, "CacheFu[" + name + "]-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Schedules a write, replacing any pending write to the same file. Never blocks.
+     *
+     * @return false if the queue is full or has been shut down
+     */
+    boolean offer(String fileName, T write) {
+        lock.lock();
+        try {
+            if (isShutdown || (pending.size() >= capacity && !pending.containsKey(fileName))) {
+                return false;
+            }
+            // re-inserted, so that the queue stays ordered by sequence number
+            pending.remove(fileName);
+            pending.put(fileName, new Slot<T>(write, ++lastSequenceNumber));
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Blocks until there's room for another write.
+     *
+     * @return false if the queue has been shut down, or the calling thread was interrupted while
+     *         waiting; the caller must then write the file itself
+     */
+    boolean awaitCapacity() {
+        lock.lock();
+        try {
+            while (!isShutdown && pending.size() >= capacity) {
+                notFull.await();
+            }
+            return !isShutdown;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the write pending for the given file, or null
+     */
+    T peek(String fileName) {
+        lock.lock();
+        try {
+            Slot<T> slot = pending.get(fileName);
+            return slot == null ? null : slot.write;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the write pending for the given file, if any. This is how the {@link Writer}
+     * obtains the data to write, but it's also used to drop writes which have become obsolete.
+     *
+     * @return the removed write, or null
+     */
+    T take(String fileName) {
+        lock.lock();
+        try {
+            Slot<T> slot = pending.remove(fileName);
+            if (slot == null) {
+                return null;
+            }
+            notFull.signal();
+            drained.signalAll();
+            return slot.write;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops all pending writes matching the given predicate.
+     */
+    void removeAll(Predicate<? super T> predicate) {
+        lock.lock();
+        try {
+            boolean isRemoved = false;
+            for (Iterator<Slot<T>> slots = pending.values().iterator(); slots.hasNext();) {
+                if (predicate.apply(slots.next().write)) {
+                    slots.remove();
+                    isRemoved = true;
+                }
+            }
+            if (isRemoved) {
+                notFull.signalAll();
+                drained.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops all pending writes.
+     */
+    void clear() {
+        lock.lock();
+        try {
+            pending.clear();
+            notFull.signalAll();
+            drained.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Blocks until all writes scheduled so far have been performed (or dropped). Writes scheduled
+     * while waiting aren't waited for, so this returns even if other threads keep writing.
+     */
+    void flush() {
+        lock.lock();
+        try {
+            long sequenceNumber = lastSequenceNumber;
+            while (getEldestSequenceNumber() <= sequenceNumber && !isStopped) {
+                drained.await();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Performs all pending writes, then stops the writer thread. Writes scheduled afterwards are
+     * rejected by {@link #offer(String, Object)}.
+     */
+    void shutdown() {
+        lock.lock();
+        try {
+            isShutdown = true;
+            notEmpty.signal();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Must hold the lock.
+     * 
+     * @return the number of the eldest write which is pending or being written, or
+     *         {@link Long#MAX_VALUE} if there's none
+     */
+    private long getEldestSequenceNumber() {
+        if (isWriting) {
+            return writingSequenceNumber;
+        }
+        Iterator<Slot<T>> slots = pending.values().iterator();
+        return slots.hasNext() ? slots.next().sequenceNumber : Long.MAX_VALUE;
+    }
+
+    private void processWrites() {
+        while (true) {
+            List<String> batch;
+            lock.lock();
+            try {
+                while (pending.isEmpty() && !isShutdown) {
+                    notEmpty.await();
+                }
+                if (pending.isEmpty()) {
+                    isStopped = true;
+                    drained.signalAll();
+                    return;
+                }
+                batch = new ArrayList<String>(Math.min(BATCH_SIZE, pending.size()));
+                for (String fileName : pending.keySet()) {
+                    if (batch.size() == BATCH_SIZE) {
+                        break;
+                    }
+                    batch.add(fileName);
+                }
+                // the batch is taken from the head of the queue
+                writingSequenceNumber = pending.get(batch.get(0)).sequenceNumber;
+                isWriting = true;
+            } catch (InterruptedException e) {
+                Log.w(LOG_TAG, "Cache writer interrupted, dropping pending writes");
+                isShutdown = isStopped = true;
+                notFull.signalAll();
+                drained.signalAll();
+                return;
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                for (String fileName : batch) {
+                    writer.write(this, fileName);
+                }
+                writer.batchWritten();
+            } catch (RuntimeException e) {
+                Log.e(LOG_TAG, "Cache write failed: " + e.getMessage());
+            } finally {
+                lock.lock();
+                try {
+                    isWriting = false;
+                    drained.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+}
@@ -45,6 +45,7 @@ import android.util.Log;
 
 import com.github.ignition.support.IgnitedDiagnostics;
 import com.github.ignition.support.cache.AbstractCache;
+import com.github.ignition.support.cache.MemoryTrimmer;
 import com.github.ignition.support.http.cache.CachedHttpRequest;
 import com.github.ignition.support.http.cache.HttpResponseCache;
 import com.github.ignition.support.http.gzip.GzipHttpRequestInterceptor;
@@ -131,7 +132,8 @@ public class IgnitedHttp {
     /**
      * Enables caching of HTTP responses. This will only enable the in-memory cache. If you also
      * want to enable the disk cache, see {@link #enableResponseCache(Context, int, long, int, int)}
-     * .
+     * . Without a context, this can't register for memory pressure callbacks; call
+     * {@link MemoryTrimmer#install(Context)} yourself so the cache is trimmed when memory runs low.
      * 
      * @param initialCapacity
      *            the initial element size of the cache
@@ -149,7 +151,8 @@ public class IgnitedHttp {
     }
 
     /**
-     * Enables caching of HTTP responses. This will also enable the disk cache.
+     * Enables caching of HTTP responses. This will also enable the disk cache, and install the
+     * {@link MemoryTrimmer}, so that the in-memory part of the cache shrinks when memory runs low.
      * 
      * @param context
      *            the current context
@@ -172,6 +175,7 @@ public class IgnitedHttp {
             int maxConcurrentThreads, int diskCacheStorageDevice) {
         enableResponseCache(initialCapacity, expirationInMinutes, maxConcurrentThreads);
         responseCache.enableDiskCache(context, diskCacheStorageDevice);
+        MemoryTrimmer.install(context);
     }
 
     /**
@@ -1,14 +1,13 @@
 package com.github.ignition.support.http.cache;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 
 import com.github.ignition.support.cache.AbstractCache;
 import com.github.ignition.support.cache.CacheHelper;
+import com.github.ignition.support.cache.Sizer;
 import com.github.ignition.support.http.cache.CachedHttpResponse.ResponseData;
 
 /**
@@ -23,45 +22,55 @@ public class HttpResponseCache extends AbstractCache<String, ResponseData> {
 
     public HttpResponseCache(int initialCapacity, long expirationInMinutes, int maxConcurrentThreads) {
         super("HttpCache", initialCapacity, expirationInMinutes, maxConcurrentThreads);
+        setSizer(new Sizer<String, ResponseData>() {
+            @Override
+            public long sizeOf(String url, ResponseData data) {
+                return data.getResponseBody().length;
+            }
+        });
     }
 
-    public synchronized void removeAllWithPrefix(String urlPrefix) {
+    public void removeAllWithPrefix(String urlPrefix) {
         CacheHelper.removeAllWithStringPrefix(this, urlPrefix);
     }
 
     @Override
     public String getFileNameForKey(String url) {
+        return CacheHelper.getFileNameFromKey(url);
+    }
+
+    @Override
+    protected String getLegacyFileNameForKey(String url) {
         return CacheHelper.getFileNameFromUrl(url);
     }
 
     @Override
-    protected ResponseData readValueFromDisk(File file) throws IOException {
-        BufferedInputStream istream = new BufferedInputStream(new FileInputStream(file));
-        long fileSize = file.length();
-        if (fileSize > Integer.MAX_VALUE) {
-            throw new IOException("Cannot read files larger than " + Integer.MAX_VALUE + " bytes");
-        }
+    protected String getKeyFromString(String url) {
+        return url;
+    }
+
+    @Override
+    protected ResponseData readValueFromDisk(InputStream istream, int length) throws IOException {
+        DataInputStream in = new DataInputStream(istream);
 
         // first byte is the status code
-        int statusCode = istream.read();
+        int statusCode = in.readUnsignedByte();
 
         // the remainder is the response data
-        int responseDataLength = (int) fileSize - 1;
-
-        byte[] responseBody = new byte[responseDataLength];
-        istream.read(responseBody, 0, responseDataLength);
-        istream.close();
+        byte[] responseBody = new byte[length - 1];
+        in.readFully(responseBody);
 
         return new ResponseData(statusCode, responseBody);
     }
 
     @Override
-    protected void writeValueToDisk(File file, ResponseData data) throws IOException {
-        BufferedOutputStream ostream = new BufferedOutputStream(new FileOutputStream(file));
+    protected boolean isCompressible(ResponseData data) {
+        return !CacheHelper.isCompressedFormat(data.getResponseBody());
+    }
 
+    @Override
+    protected void writeValueToDisk(OutputStream ostream, ResponseData data) throws IOException {
         ostream.write(data.getStatusCode());
         ostream.write(data.getResponseBody());
-
-        ostream.close();
     }
 }
@@ -25,7 +25,9 @@ import android.view.View;
 import android.widget.ImageView;
 import android.widget.TextView;
 
+import com.github.ignition.support.cache.AbstractCache;
 import com.github.ignition.support.cache.ImageCache;
+import com.github.ignition.support.cache.MemoryTrimmer;
 import com.github.ignition.support.images.remote.RemoteImageLoaderHandler.RemoteImageLoaderViewAdapter;
 
 /**
@@ -64,7 +66,9 @@ public class RemoteImageLoader {
      * Creates a new ImageLoader that is backed by an {@link ImageCache}. The cache will by default
      * cache to the device's external storage, and expire images after 1 day. You can set useCache
      * to false and then supply your own image cache instance via {@link #setImageCache(ImageCache)}
-     * , or fine-tune the default one through {@link #getImageCache()}.
+     * , or fine-tune the default one through {@link #getImageCache()}. Either way, this installs
+     * the {@link MemoryTrimmer}, so that the in-memory part of the cache shrinks when memory runs
+     * low.
      * 
      * @param context
      *            the current context
@@ -77,7 +81,10 @@ public class RemoteImageLoader {
             imageCache = new ImageCache(25, expirationInMinutes, DEFAULT_POOL_SIZE);
             imageCache.enableDiskCache(context.getApplicationContext(),
                     ImageCache.DISK_CACHE_SDCARD);
+            // so that the images shown most often are memory hits right after a restart
+            imageCache.warmUp();
         }
+        MemoryTrimmer.install(context);
         errorDrawable = context.getResources().getDrawable(android.R.drawable.ic_dialog_alert);
     }
 
@@ -125,8 +132,9 @@ public class RemoteImageLoader {
     }
 
     /**
-     * Clears the image cache, if it's used. A good candidate for calling in
-     * {@link android.app.Application#onLowMemory()}.
+     * Clears the image cache, if it's used, including all images cached on disk. To merely free
+     * memory when the system runs low on it, use {@link #trimImageCache(int)} instead; on
+     * Android 4.0 and newer, the {@link MemoryTrimmer} this loader installs does so on its own.
      */
     public void clearImageCache() {
         if (imageCache != null) {
@@ -134,6 +142,20 @@ public class RemoteImageLoader {
         }
     }
 
+    /**
+     * Shrinks the in-memory part of the image cache, if it's used, keeping the images on disk. A
+     * good candidate for calling in {@link android.app.Application#onLowMemory()}, passing
+     * {@link AbstractCache#TRIM_MEMORY_COMPLETE}.
+     * 
+     * @param level
+     *            how much to trim, see {@link AbstractCache#trimMemory(int)}
+     */
+    public void trimImageCache(int level) {
+        if (imageCache != null) {
+            imageCache.trimMemory(level);
+        }
+    }
+
     /**
      * Returns the image cache backing this image loader.
      * 
@@ -5,6 +5,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.concurrent.ExecutionException;
 
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
@@ -14,6 +15,7 @@ import android.os.SystemClock;
 import android.util.Log;
 
 import com.github.ignition.support.cache.ImageCache;
+import com.github.ignition.support.cache.Loader;
 
 public class RemoteImageLoaderJob implements Runnable {
 
@@ -37,7 +39,8 @@ public class RemoteImageLoaderJob implements Runnable {
 
     /**
      * The job method run on a worker thread. It will first query the image cache, and on a miss,
-     * download the image from the Web.
+     * download the image from the Web. If other jobs are downloading the same image already, it
+     * waits for them instead.
      */
     @Override
     public void run() {
@@ -45,44 +48,68 @@ public class RemoteImageLoaderJob implements Runnable {
 
         if (imageCache != null) {
             // at this point we know the image is not in memory, but it could be cached to SD card
-            bitmap = imageCache.getBitmap(imageUrl);
-        }
-
-        if (bitmap == null) {
+            try {
+                byte[] imageData = imageCache.get(imageUrl, new Loader<String, byte[]>() {
+                    @Override
+                    public byte[] load(String imageUrl) throws IOException {
+                        return downloadImageData();
+                    }
+                });
+                if (imageData != null) {
+                    bitmap = BitmapFactory.decodeByteArray(imageData, 0, imageData.length);
+                }
+            } catch (ExecutionException e) {
+                // already logged by whichever job ran the download
+                Log.w(LOG_TAG, "download for " + imageUrl + " failed: " + e.getCause());
+            }
+        } else {
             bitmap = downloadImage();
         }
 
         notifyImageLoaded(imageUrl, bitmap);
     }
 
+    protected Bitmap downloadImage() {
+        byte[] imageData;
+        try {
+            imageData = downloadImageData();
+        } catch (IOException e) {
+            return null;
+        }
+        if (imageCache != null) {
+            imageCache.put(imageUrl, imageData);
+        }
+        return BitmapFactory.decodeByteArray(imageData, 0, imageData.length);
+    }
+
     // TODO: we could probably improve performance by re-using connections instead of closing them
     // after each and every download
-    protected Bitmap downloadImage() {
+    /**
+     * Downloads the image, retrying up to the configured number of times.
+     * 
+     * @return the image data
+     * @throws IOException
+     *             the failure of the last attempt, if none of them succeeded
+     */
+    protected byte[] downloadImageData() throws IOException {
         int timesTried = 1;
+        IOException failure = new IOException("no download attempted for " + imageUrl);
 
         while (timesTried <= numRetries) {
             try {
-                byte[] imageData = retrieveImageData();
-
-                if (imageData == null) {
-                    break;
-                }
-
-                if (imageCache != null) {
-                    imageCache.put(imageUrl, imageData);
-                }
-
-                return BitmapFactory.decodeByteArray(imageData, 0, imageData.length);
-
-            } catch (Throwable e) {
+                return retrieveImageData();
+            } catch (IOException e) {
                 Log.w(LOG_TAG, "download for " + imageUrl + " failed (attempt " + timesTried + ")");
                 e.printStackTrace();
-                SystemClock.sleep(DEFAULT_RETRY_HANDLER_SLEEP_TIME);
+                failure = e;
+                if (timesTried < numRetries) {
+                    SystemClock.sleep(DEFAULT_RETRY_HANDLER_SLEEP_TIME);
+                }
                 timesTried++;
             }
         }
 
-        return null;
+        throw failure;
     }
 
     protected byte[] retrieveImageData() throws IOException {
@@ -0,0 +1,116 @@
+package com.github.ignition.support.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+
+import android.os.Looper;
+
+@RunWith(IgnitionSupportTestRunner.class)
+public class AsyncAccessTest {
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable task) {
+            task.run();
+        }
+    };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private StringCache cache;
+
+    private final AtomicReference<String> result = new AtomicReference<String>();
+
+    private final AtomicReference<Thread> callbackThread = new AtomicReference<Thread>();
+
+    private final CountDownLatch delivered = new CountDownLatch(1);
+
+    private final CacheCallback<String, String> callback = new CacheCallback<String, String>() {
+        @Override
+        public void onResult(String key, String value) {
+            result.set(value);
+            callbackThread.set(Thread.currentThread());
+            delivered.countDown();
+        }
+    };
+
+    @Before
+    public void setUp() {
+        cache = new StringCache();
+        cache.setDiskCacheEnabled(folder.getRoot().getPath());
+    }
+
+    @After
+    public void tearDown() {
+        cache.close();
+    }
+
+    @Test
+    public void completesMemoryHitsSynchronously() throws Exception {
+        cache.put("key", "value");
+        Future<String> future = cache.getAsync("key", callback, DIRECT);
+        assertTrue(future.isDone());
+        assertEquals("value", future.get());
+        assertEquals("value", result.get());
+        assertEquals(Thread.currentThread(), callbackThread.get());
+    }
+
+    @Test
+    public void looksUpDiskHitsInTheBackground() throws Exception {
+        cache.put("key", "value");
+        cache.clear(false);
+        assertEquals("value", cache.getAsync("key", callback, DIRECT).get());
+        assertTrue(delivered.await(5, TimeUnit.SECONDS));
+        assertEquals("value", result.get());
+        assertTrue(callbackThread.get() != Thread.currentThread());
+    }
+
+    @Test
+    public void deliversMemoryHitsRightAwayOnTheLoopersThread() {
+        cache.put("key", "value");
+        cache.getAsync("key", callback, Looper.myLooper());
+        assertEquals("value", result.get());
+        assertEquals(Thread.currentThread(), callbackThread.get());
+    }
+
+    @Test
+    public void deliversMissesThroughTheLooper() throws Exception {
+        assertNull(cache.getAsync("key", callback, Looper.myLooper()).get());
+        assertTrue(delivered.await(5, TimeUnit.SECONDS));
+        assertNull(result.get());
+    }
+
+    @Test
+    public void rejectsCallbacksWithoutAnExecutor() {
+        try {
+            cache.getAsync("key", callback, (Executor) null);
+            fail("accepted a callback without an executor");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            cache.getAsync("key", callback, (Looper) null);
+            fail("accepted a callback without a Looper");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        // nothing to deliver, so nothing to deliver it with
+        cache.getAsync("key", null, (Executor) null);
+    }
+}
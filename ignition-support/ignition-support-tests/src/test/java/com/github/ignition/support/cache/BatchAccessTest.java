@@ -0,0 +1,78 @@
+package com.github.ignition.support.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+
+@RunWith(IgnitionSupportTestRunner.class)
+public class BatchAccessTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private StringCache cache;
+
+    @Before
+    public void setUp() {
+        cache = newCache();
+    }
+
+    @After
+    public void tearDown() {
+        cache.close();
+    }
+
+    private StringCache newCache() {
+        StringCache cache = new StringCache();
+        cache.setDiskCacheEnabled(folder.getRoot().getPath());
+        return cache;
+    }
+
+    @Test
+    public void getAllCombinesMemoryAndDiskHits() {
+        cache.put("a", "value a");
+        cache.put("b", "value b");
+        cache.clear(false);
+        cache.put("c", "value c");
+
+        Map<String, String> values = cache.getAll(Arrays.asList("a", "b", "c", "d"));
+        assertEquals(3, values.size());
+        assertEquals("value a", values.get("a"));
+        assertEquals("value b", values.get("b"));
+        assertEquals("value c", values.get("c"));
+        assertFalse(values.containsKey("d"));
+        // disk hits are brought back into memory, as with get()
+        assertTrue(cache.containsKeyInMemory("a"));
+    }
+
+    @Test
+    public void putAllWritesEveryValueThrough() {
+        Map<String, String> values = new HashMap<String, String>();
+        List<String> keys = new ArrayList<String>();
+        for (int i = 0; i < 100; i++) {
+            values.put("key" + i, "value" + i);
+            keys.add("key" + i);
+        }
+        cache.putAll(values);
+        assertEquals(100, cache.writeCount);
+
+        // the index records are written once, at the end of the batch
+        cache.close();
+        cache = newCache();
+        Map<String, String> read = cache.getAll(keys);
+        assertEquals(values, read);
+    }
+}
@@ -0,0 +1,226 @@
+package com.github.ignition.support.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+
+/**
+ * Checks that readers of the cache don't wait for each other, nor for disk writes of other keys,
+ * and that the cache stays consistent when hammered by many threads at once.
+ */
+@RunWith(IgnitionSupportTestRunner.class)
+public class CacheContentionTest {
+
+    private static final int KEY_COUNT = 1000;
+
+    private static final long MEASURE_MILLIS = 500;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // blocks writing the value "slow" to disk until released
+    private static class BlockingCache extends StringCache {
+
+        final CountDownLatch writing = new CountDownLatch(1);
+
+        final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        protected void writeValueToDisk(OutputStream ostream, String value) throws IOException {
+            if (value.equals("slow")) {
+                writing.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException("interrupted");
+                }
+            }
+            super.writeValueToDisk(ostream, value);
+        }
+    }
+
+    private BlockingCache cache;
+
+    private ExecutorService threads;
+
+    @Before
+    public void setUp() {
+        cache = new BlockingCache();
+        cache.setDiskCacheEnabled(folder.getRoot().getPath());
+        threads = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        cache.release.countDown();
+        threads.shutdown();
+        threads.awaitTermination(5, TimeUnit.SECONDS);
+        cache.close();
+    }
+
+    @Test
+    public void readsDontWaitForDiskWritesOfOtherKeys() throws Exception {
+        cache.put("memory", "in memory");
+        cache.put("disk", "on disk");
+        cache.clear(false);
+        cache.put("memory", "in memory");
+        // a key which doesn't share its lock with the one on disk
+        StripedLock locks = new StripedLock(4);
+        String slowKey = null;
+        for (int i = 0; slowKey == null; i++) {
+            String key = "slow" + i;
+            if (locks.forKey(cache.getFileNameForKey(key)) != locks.forKey(cache
+                    .getFileNameForKey("disk"))) {
+                slowKey = key;
+            }
+        }
+
+        final String key = slowKey;
+        threads.submit(new Callable<String>() {
+            @Override
+            public String call() {
+                return cache.put(key, "slow");
+            }
+        });
+        assertTrue(cache.writing.await(5, TimeUnit.SECONDS));
+
+        assertEquals("in memory", get("memory").get(1, TimeUnit.SECONDS));
+        assertEquals("on disk", get("disk").get(1, TimeUnit.SECONDS));
+        assertNull(get("missing").get(1, TimeUnit.SECONDS));
+        cache.release.countDown();
+    }
+
+    private Future<String> get(final String key) {
+        return threads.submit(new Callable<String>() {
+            @Override
+            public String call() {
+                return cache.get(key);
+            }
+        });
+    }
+
+    @Test
+    public void memoryHitThroughputScalesWithThreads() throws Exception {
+        int processors = Runtime.getRuntime().availableProcessors();
+        for (int i = 0; i < KEY_COUNT; i++) {
+            cache.put("key" + i, "value" + i);
+        }
+        // warms up the JIT
+        measureHits(processors);
+        long single = measureHits(1);
+        long parallel = measureHits(processors);
+        // a global lock would keep the total where it is on one thread, or lower
+        Assume.assumeTrue(processors >= 4);
+        assertTrue(parallel > single * 3 / 2);
+    }
+
+    private long measureHits(int threadCount) throws Exception {
+        final AtomicLong hits = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        final long deadline = System.currentTimeMillis() + MEASURE_MILLIS + 100;
+        List<Future<?>> readers = new ArrayList<Future<?>>();
+        for (int t = 0; t < threadCount; t++) {
+            final int seed = t;
+            readers.add(threads.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    Random random = new Random(seed);
+                    start.await();
+                    long count = 0;
+                    while (System.currentTimeMillis() < deadline) {
+                        for (int i = 0; i < 1000; i++) {
+                            if (cache.get("key" + random.nextInt(KEY_COUNT)) != null) {
+                                count++;
+                            }
+                        }
+                    }
+                    hits.addAndGet(count);
+                    return null;
+                }
+            }));
+        }
+        start.countDown();
+        for (Future<?> reader : readers) {
+            reader.get();
+        }
+        return hits.get() * MEASURE_MILLIS / (MEASURE_MILLIS + 100);
+    }
+
+    @Test
+    public void staysConsistentUnderContention() throws Exception {
+        cache.setMaxPackedEntrySize(AbstractCache.DEFAULT_MAX_PACKED_ENTRY_SIZE);
+        final int keyCount = 50;
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        final long deadline = System.currentTimeMillis() + 2000;
+        List<Future<?>> workers = new ArrayList<Future<?>>();
+        for (int t = 0; t < 8; t++) {
+            final int seed = t;
+            workers.add(threads.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    Random random = new Random(seed);
+                    while (System.currentTimeMillis() < deadline && failure.get() == null) {
+                        String key = "key" + random.nextInt(keyCount);
+                        switch (random.nextInt(6)) {
+                        case 0:
+                            cache.put(key, key + ":" + random.nextInt());
+                            break;
+                        case 1:
+                            cache.remove(key);
+                            break;
+                        case 2:
+                            cache.clear(false);
+                            break;
+                        default:
+                            String value = cache.get(key);
+                            if (value != null && !value.startsWith(key + ":")) {
+                                failure.set(key + " read as " + value);
+                            }
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<?> worker : workers) {
+            worker.get();
+        }
+        if (failure.get() != null) {
+            fail(failure.get());
+        }
+
+        // whatever survived on disk must be readable
+        cache.clear(false);
+        for (int i = 0; i < keyCount; i++) {
+            String key = "key" + i;
+            if (cache.containsKeyOnDisk(key)) {
+                String value = cache.get(key);
+                assertTrue(key + " read as " + value, value == null
+                        || value.startsWith(key + ":"));
+            }
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.github.ignition.support.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class CountingBloomFilterTest {
+
+    @Test
+    public void containsWhatWasAdded() {
+        CountingBloomFilter filter = new CountingBloomFilter(1000);
+        for (int i = 0; i < 1000; i++) {
+            filter.add("file" + i);
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(filter.mightContain("file" + i));
+        }
+    }
+
+    @Test
+    public void hasFewFalsePositivesAtCapacity() {
+        CountingBloomFilter filter = new CountingBloomFilter(1000);
+        for (int i = 0; i < 1000; i++) {
+            filter.add("file" + i);
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (filter.mightContain("other" + i)) {
+                falsePositives++;
+            }
+        }
+        // about 1% is expected with 10 counters per entry
+        assertTrue("false positives: " + falsePositives, falsePositives < 300);
+    }
+
+    @Test
+    public void forgetsWhatWasRemoved() {
+        CountingBloomFilter filter = new CountingBloomFilter(1000);
+        for (int i = 0; i < 1000; i++) {
+            filter.add("file" + i);
+        }
+        for (int i = 0; i < 1000; i += 2) {
+            filter.remove("file" + i);
+        }
+        int remembered = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (i % 2 == 1) {
+                assertTrue(filter.mightContain("file" + i));
+            } else if (filter.mightContain("file" + i)) {
+                remembered++;
+            }
+        }
+        assertTrue("remembered: " + remembered, remembered < 30);
+    }
+
+    @Test
+    public void neverForgetsEntriesWhoseCountersSaturated() {
+        CountingBloomFilter filter = new CountingBloomFilter(100);
+        // counters stop at 15, after which they can't tell how many removes to expect
+        for (int i = 0; i < 20; i++) {
+            filter.add("file");
+        }
+        for (int i = 0; i < 19; i++) {
+            filter.remove("file");
+        }
+        assertTrue(filter.mightContain("file"));
+        for (int i = 0; i < 100; i++) {
+            filter.remove("file");
+        }
+        assertTrue(filter.mightContain("file"));
+    }
+
+    @Test
+    public void ignoresRemovingWhatWasNeverAdded() {
+        CountingBloomFilter filter = new CountingBloomFilter(100);
+        filter.remove("file");
+        filter.add("file");
+        assertTrue(filter.mightContain("file"));
+        filter.remove("file");
+        assertFalse(filter.mightContain("file"));
+    }
+
+    @Test
+    public void growsCapacityToAtLeastTheRequestedOne() {
+        assertTrue(new CountingBloomFilter(1).getCapacity() >= 1);
+        assertTrue(new CountingBloomFilter(5000).getCapacity() >= 5000);
+        assertEquals(new CountingBloomFilter(5000).getCapacity(), new CountingBloomFilter(5000)
+                .getCapacity());
+    }
+}
@@ -0,0 +1,115 @@
+package com.github.ignition.support.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+
+@RunWith(IgnitionSupportTestRunner.class)
+public class DiskCacheCorruptionTest {
+
+    private static final String VALUE = "a value long enough to be compressed, compressed, compressed";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private StringCache cache;
+
+    @Before
+    public void setUp() {
+        cache = new StringCache();
+        cache.setDiskCacheEnabled(folder.getRoot().getPath());
+    }
+
+    @After
+    public void tearDown() {
+        cache.close();
+    }
+
+    private File putOnDisk(String key) {
+        cache.put(key, VALUE);
+        List<File> files = cache.getCachedFiles();
+        assertEquals(1, files.size());
+        // so that the next read has to go to disk
+        cache.clear(false);
+        return files.get(0);
+    }
+
+    private static void flipByte(File file, long position) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(position);
+            int b = raf.read();
+            raf.seek(position);
+            raf.write(b ^ 0x20);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void assertDropped(String key, File file) {
+        assertNull(cache.get(key));
+        assertFalse(cache.containsKeyOnDisk(key));
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void readsBackIntactFiles() {
+        putOnDisk("key");
+        assertEquals(VALUE, cache.get("key"));
+    }
+
+    @Test
+    public void detectsCorruptPayloads() throws IOException {
+        cache.setCodec(Codecs.LZ);
+        File file = putOnDisk("key");
+        flipByte(file, file.length() - 1);
+        assertDropped("key", file);
+    }
+
+    @Test
+    public void detectsCorruptPayloadsOfUncompressedValues() throws IOException {
+        cache.setCodec(Codecs.IDENTITY);
+        File file = putOnDisk("key");
+        flipByte(file, file.length() - 3);
+        assertDropped("key", file);
+    }
+
+    @Test
+    public void detectsCorruptHeaders() throws IOException {
+        File file = putOnDisk("key");
+        flipByte(file, 0);
+        assertDropped("key", file);
+    }
+
+    @Test
+    public void detectsTruncatedFiles() throws IOException {
+        File file = putOnDisk("key");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(file.length() - 5);
+        raf.close();
+        assertDropped("key", file);
+    }
+
+    @Test
+    public void detectsCorruptPackedEntries() throws IOException {
+        cache.setMaxPackedEntrySize(AbstractCache.DEFAULT_MAX_PACKED_ENTRY_SIZE);
+        // packing only starts once the disk index has been loaded, which closing waits for
+        cache.close();
+        File segment = putOnDisk("key");
+        flipByte(segment, segment.length() - 1);
+        assertNull(cache.get("key"));
+        assertFalse(cache.containsKeyOnDisk("key"));
+    }
+}
@@ -0,0 +1,195 @@
+package com.github.ignition.support.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+
+@RunWith(IgnitionSupportTestRunner.class)
+public class DiskGenerationsTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private StringCache cache;
+
+    private File root;
+
+    @Before
+    public void setUp() {
+        cache = newCache();
+        root = new File(cache.getDiskCacheDirectory());
+    }
+
+    @After
+    public void tearDown() {
+        cache.close();
+    }
+
+    private StringCache newCache() {
+        StringCache cache = new StringCache();
+        cache.setDiskCacheEnabled(folder.getRoot().getPath());
+        return cache;
+    }
+
+    private int latestGeneration() {
+        return DiskGenerations.findLatest(root, cache.getDiskCacheVersion());
+    }
+
+    // waits for the tasks queued on the maintenance thread so far
+    private void awaitMaintenance() throws Exception {
+        cache.getMaintenanceExecutor().submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                return null;
+            }
+        }).get();
+    }
+
+    // the sweeper works in batches, each of which is queued behind other maintenance tasks
+    private void awaitSwept(File directory) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (directory.exists() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(directory + " still exists", directory.exists());
+    }
+
+    @Test
+    public void clearStartsAnEmptyGeneration() throws InterruptedException {
+        cache.put("a", "value a");
+        int generation = latestGeneration();
+        File previous = DiskGenerations.getDirectory(root, cache.getDiskCacheVersion(),
+                generation);
+        assertTrue(previous.isDirectory());
+
+        cache.clear(true);
+        assertEquals(generation + 1, latestGeneration());
+        assertFalse(cache.containsKeyOnDisk("a"));
+        assertNull(cache.get("a"));
+        awaitSwept(previous);
+
+        cache.put("b", "value b");
+        cache.clear(false);
+        assertEquals("value b", cache.get("b"));
+    }
+
+    @Test
+    public void survivesRestarts() {
+        cache.put("a", "value a");
+        int generation = latestGeneration();
+        cache.close();
+
+        cache = newCache();
+        assertEquals(generation, latestGeneration());
+        assertEquals("value a", cache.get("a"));
+    }
+
+    @Test
+    public void sessionScopedCachesStartOverOnRestart() throws Exception {
+        cache.put("a", "value a");
+        int generation = latestGeneration();
+        cache.close();
+        // otherwise its sweeper, which keeps only the generation it uses, may still be due
+        awaitMaintenance();
+
+        cache = new StringCache();
+        cache.setDiskCacheSessionScoped(true);
+        cache.setDiskCacheEnabled(folder.getRoot().getPath());
+        assertEquals(generation + 1, latestGeneration());
+        assertNull(cache.get("a"));
+        awaitSwept(DiskGenerations.getDirectory(root, cache.getDiskCacheVersion(), generation));
+    }
+
+    @Test
+    public void discardsEntriesWrittenUnderAnotherVersion() throws InterruptedException {
+        cache.put("a", "value a");
+        File previous = DiskGenerations.getDirectory(root, cache.getDiskCacheVersion(),
+                latestGeneration());
+        cache.setDiskCacheVersion(cache.getDiskCacheVersion() + 1);
+        cache.clear(false);
+        assertNull(cache.get("a"));
+        awaitSwept(previous);
+    }
+
+    @Test
+    public void readsAndWritesInFlightSurviveClears() throws Exception {
+        final int keyCount = 50;
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        final AtomicBoolean isDone = new AtomicBoolean();
+        ExecutorService threads = Executors.newCachedThreadPool();
+        List<Future<?>> workers = new ArrayList<Future<?>>();
+        for (int t = 0; t < 4; t++) {
+            final int seed = t;
+            workers.add(threads.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    Random random = new Random(seed);
+                    while (!isDone.get() && failure.get() == null) {
+                        String key = "key" + random.nextInt(keyCount);
+                        if (random.nextBoolean()) {
+                            cache.put(key, key + ":" + random.nextInt());
+                        } else {
+                            // from disk, most of the time
+                            cache.clear(false);
+                            String value = cache.get(key);
+                            if (value != null && !value.startsWith(key + ":")) {
+                                failure.set(key + " read as " + value);
+                            }
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (int i = 0; i < 20; i++) {
+            Thread.sleep(20);
+            cache.clear(true);
+        }
+        isDone.set(true);
+        for (Future<?> worker : workers) {
+            worker.get();
+        }
+        threads.shutdown();
+        threads.awaitTermination(5, TimeUnit.SECONDS);
+        if (failure.get() != null) {
+            fail(failure.get());
+        }
+
+        // whatever was written since the last switch landed in the current generation
+        File current = DiskGenerations.getDirectory(root, cache.getDiskCacheVersion(),
+                latestGeneration());
+        for (File file : cache.getCachedFiles()) {
+            assertTrue(file + " is outside " + current, file.getPath().startsWith(
+                    current.getPath()));
+        }
+        cache.put("a", "value a");
+        cache.clear(false);
+        assertEquals("value a", cache.get("a"));
+        for (String name : root.list()) {
+            if (!name.equals(current.getName())) {
+                awaitSwept(new File(root, name));
+            }
+        }
+    }
+}
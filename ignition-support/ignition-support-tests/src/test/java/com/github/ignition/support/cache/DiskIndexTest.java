@@ -0,0 +1,267 @@
+package com.github.ignition.support.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+
+@RunWith(IgnitionSupportTestRunner.class)
+public class DiskIndexTest {
+
+    // runs journal writes and compactions right away, which makes them deterministic
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable task) {
+            task.run();
+        }
+    };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+
+    private File journal;
+
+    private DiskIndex index;
+
+    @Before
+    public void setUp() {
+        directory = folder.getRoot();
+        journal = new File(directory, DiskIndex.JOURNAL_FILE_NAME);
+        index = new DiskIndex(directory, DIRECT);
+        index.load();
+    }
+
+    @After
+    public void tearDown() {
+        index.shutdown();
+    }
+
+    private DiskIndex reopen() {
+        index.shutdown();
+        index = new DiskIndex(directory, DIRECT);
+        index.load();
+        return index;
+    }
+
+    private static void assertFileNames(List<DiskIndex.Entry> entries, String... fileNames) {
+        assertEquals(fileNames.length, entries.size());
+        for (int i = 0; i < fileNames.length; i++) {
+            assertEquals(fileNames[i], entries.get(i).fileName);
+        }
+    }
+
+    @Test
+    public void replaysTheJournal() {
+        index.put("a", "key a", 10, 1, Long.MAX_VALUE);
+        index.put("b", "key b", 20, 1, 5000);
+        index.put("c", "key c", 30, 1, Long.MAX_VALUE);
+        index.touch("a");
+        index.remove("b");
+
+        reopen();
+        assertEquals(2, index.getEntryCount());
+        assertEquals(40, index.getTotalSize());
+        assertNull(index.get("b"));
+        assertEquals("key a", index.get("a").key);
+        // in order of last access
+        assertFileNames(index.snapshot(), "c", "a");
+    }
+
+    @Test
+    public void replaysPackLocations() {
+        index.put("a", "key a", 10, 1, Long.MAX_VALUE, 3, 100, true);
+        index.move("a", 4, 0);
+
+        reopen();
+        DiskIndex.Entry entry = index.get("a");
+        assertTrue(entry.isPacked());
+        assertEquals(4, entry.segment);
+        assertEquals(0, entry.offset);
+    }
+
+    @Test
+    public void keepsWhatPrecedesATornRecord() throws IOException {
+        index.put("a", "key a", 10, 1, Long.MAX_VALUE);
+        index.put("b", "key b", 20, 1, Long.MAX_VALUE);
+        index.close();
+        FileOutputStream ostream = new FileOutputStream(journal, true);
+        // a put record cut short by the process dying
+        ostream.write(new byte[] { 1, 0, 1, 'c' });
+        ostream.close();
+
+        reopen();
+        assertEquals(2, index.getEntryCount());
+        // the journal was rewritten, so later records aren't appended to garbage
+        index.put("c", "key c", 30, 1, Long.MAX_VALUE);
+        reopen();
+        assertFileNames(index.snapshot(), "a", "b", "c");
+    }
+
+    @Test
+    public void compactsTheJournal() {
+        for (int i = 0; i < 10000; i++) {
+            index.put("file" + i % 10, "key" + i % 10, i, i, Long.MAX_VALUE);
+        }
+        long compactedLength = journal.length();
+
+        reopen();
+        assertEquals(10, index.getEntryCount());
+        assertEquals(9990, index.get("file0").size);
+        assertEquals(9999, index.get("file9").size);
+        // 10000 records would take over half a megabyte
+        assertTrue("journal length: " + compactedLength, compactedLength < 200 * 1000);
+    }
+
+    @Test
+    public void writesRecordsOnFlush() {
+        index.put("a", "key a", 10, 1, Long.MAX_VALUE, false);
+        // without being asked to flush, the record may only be buffered
+        index.flush();
+        DiskIndex other = new DiskIndex(directory, DIRECT);
+        other.load();
+        assertNotNull(other.get("a"));
+        other.shutdown();
+    }
+
+    @Test
+    public void carriesChangesMadeWhileLoadingOver() {
+        index.put("a", "key a", 10, 1, Long.MAX_VALUE);
+        index.put("b", "key b", 20, 1, Long.MAX_VALUE);
+        index.shutdown();
+
+        index = new DiskIndex(directory, DIRECT);
+        index.put("c", "key c", 30, 1, Long.MAX_VALUE);
+        index.remove("a");
+        index.load();
+        assertNull(index.get("a"));
+        assertNotNull(index.get("b"));
+        assertNotNull(index.get("c"));
+
+        reopen();
+        assertFileNames(index.snapshot(), "b", "c");
+    }
+
+    @Test
+    public void readsFileHeadersUntilLoaded() throws IOException {
+        writeCacheFile("a", "key a", 100);
+        index.shutdown();
+        index = new DiskIndex(directory, DIRECT);
+        assertFalse(index.isLoaded());
+        assertEquals("key a", index.get("a").key);
+        assertNull(index.get("b"));
+        assertTrue(index.mightContain("b"));
+    }
+
+    @Test
+    public void rebuildsTheIndexWithoutAJournal() throws IOException {
+        index.shutdown();
+        writeCacheFile("a", "key a", 100);
+        File corrupt = index.getFile("b");
+        corrupt.getParentFile().mkdirs();
+        FileOutputStream ostream = new FileOutputStream(corrupt);
+        ostream.write(new byte[] { 1, 2, 3 });
+        ostream.close();
+        corrupt.setLastModified(System.currentTimeMillis() - 60 * 1000);
+        // may be half written by a concurrent put
+        File beingWritten = index.getFile("c");
+        beingWritten.getParentFile().mkdirs();
+        new FileOutputStream(beingWritten).close();
+        File tmpFile = new File(index.getFile("d").getPath() + ".1" + DiskIndex.TMP_FILE_SUFFIX);
+        tmpFile.getParentFile().mkdirs();
+        new FileOutputStream(tmpFile).close();
+        journal.delete();
+
+        index = new DiskIndex(directory, DIRECT);
+        index.load();
+        assertEquals(1, index.getEntryCount());
+        assertEquals("key a", index.get("a").key);
+        assertEquals(index.getFile("a").length(), index.get("a").size);
+        assertEquals(5000, index.get("a").expiresAt);
+        assertFalse(corrupt.exists());
+        assertTrue(beingWritten.exists());
+        assertTrue(tmpFile.exists());
+    }
+
+    @Test
+    public void findsEntriesByKeyPrefix() {
+        index.put("a", "http://a.com/1", 1, 1, Long.MAX_VALUE);
+        index.put("b", "http://b.com/1", 1, 1, Long.MAX_VALUE);
+        index.put("c", "http://a.com/2", 1, 1, Long.MAX_VALUE);
+        List<DiskIndex.Entry> matches = index.entriesWithKeyPrefix("http://a.com/");
+        assertFileNames(matches, "a", "c");
+    }
+
+    @Test
+    public void findsExpiredEntriesSoonestFirst() {
+        index.put("a", "key a", 1, 0, 300);
+        index.put("b", "key b", 1, 0, 100);
+        index.put("c", "key c", 1, 0, Long.MAX_VALUE);
+        assertEquals(100, index.getNextExpiry());
+        assertFileNames(index.expired(200, 10), "b");
+        assertFileNames(index.expired(1000, 10), "b", "a");
+    }
+
+    @Test
+    public void catchesUpWithOtherProcesses() {
+        index.shutdown();
+        index = new DiskIndex(directory, DIRECT, true);
+        index.load();
+        DiskIndex other = new DiskIndex(directory, DIRECT, true);
+        other.load();
+
+        other.put("a", "key a", 10, 1, Long.MAX_VALUE);
+        assertNull(index.get("a"));
+        index.refresh();
+        assertEquals("key a", index.get("a").key);
+
+        index.remove("a");
+        other.refresh();
+        assertNull(other.get("a"));
+        other.shutdown();
+    }
+
+    @Test
+    public void toleratesUseAfterShutdown() {
+        index.put("a", "key a", 10, 1, Long.MAX_VALUE);
+        index.shutdown();
+        index.put("b", "key b", 10, 1, Long.MAX_VALUE);
+        index.flush();
+        assertNotNull(index.get("b"));
+
+        index = new DiskIndex(directory, DIRECT);
+        index.load();
+        assertNotNull(index.get("a"));
+        assertNull(index.get("b"));
+    }
+
+    private void writeCacheFile(String fileName, String key, int payloadLength)
+            throws IOException {
+        File file = index.getFile(fileName);
+        file.getParentFile().mkdirs();
+        ByteBuffer header = new EntryHeader(key, 1, 5000, 0).withPayload(payloadLength,
+                payloadLength, 0).toByteBuffer();
+        FileOutputStream ostream = new FileOutputStream(file);
+        ostream.write(header.array(), 0, header.limit());
+        ostream.write(new byte[payloadLength]);
+        ostream.close();
+        // files modified since the index started loading may still be being written
+        file.setLastModified(System.currentTimeMillis() - 60 * 1000);
+    }
+}
@@ -0,0 +1,63 @@
+package com.github.ignition.support.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+
+@RunWith(IgnitionSupportTestRunner.class)
+public class DiskQuotaTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private StringCache cache;
+
+    @Before
+    public void setUp() {
+        cache = new StringCache();
+        cache.setDiskCacheEnabled(folder.getRoot().getPath());
+    }
+
+    // eviction happens in the background
+    private void awaitEviction(String key) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (cache.containsKeyOnDisk(key) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedFilesFirst() throws InterruptedException {
+        cache.setMaxDiskCacheEntries(2);
+        cache.put("a", "value a");
+        cache.put("b", "value b");
+        // a disk hit counts as a use
+        cache.clear(false);
+        assertEquals("value a", cache.get("a"));
+
+        cache.put("c", "value c");
+        awaitEviction("b");
+        assertFalse(cache.containsKeyOnDisk("b"));
+        assertTrue(cache.containsKeyOnDisk("a"));
+        assertTrue(cache.containsKeyOnDisk("c"));
+    }
+
+    @Test
+    public void evictsUntilTheSizeFits() throws InterruptedException {
+        cache.put("a", "0123456789");
+        cache.put("b", "0123456789");
+        cache.put("c", "0123456789");
+        cache.setMaxDiskCacheSize(cache.getDiskCacheSize() - 1);
+        awaitEviction("a");
+        assertFalse(cache.containsKeyOnDisk("a"));
+        assertTrue(cache.containsKeyOnDisk("b"));
+        assertTrue(cache.getDiskCacheSize() <= cache.getMaxDiskCacheSize());
+    }
+}
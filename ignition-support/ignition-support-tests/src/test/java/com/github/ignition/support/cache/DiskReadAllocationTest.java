@@ -0,0 +1,136 @@
+package com.github.ignition.support.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+
+/**
+ * Compares how much heap a disk hit allocates when read through {@link AbstractCache#get(Object)},
+ * which decodes the value into a byte array like {@link ImageCache} does, and through
+ * {@link AbstractCache#getBuffer(Object)}, which maps the payload instead. Relies on HotSpot's
+ * per-thread allocation counter, so it's skipped on other VMs.
+ */
+@RunWith(IgnitionSupportTestRunner.class)
+public class DiskReadAllocationTest {
+
+    private static final int VALUE_SIZE = 1024 * 1024;
+
+    private static final int ROUNDS = 20;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static class BytesCache extends AbstractCache<String, byte[]> {
+
+        BytesCache() {
+            super("BytesCache", 16, 60, 4);
+        }
+
+        @Override
+        public String getFileNameForKey(String key) {
+            return CacheHelper.getFileNameFromKey(key);
+        }
+
+        @Override
+        protected byte[] readValueFromDisk(InputStream istream, int length) throws IOException {
+            byte[] value = new byte[length];
+            new DataInputStream(istream).readFully(value);
+            return value;
+        }
+
+        @Override
+        protected void writeValueToDisk(OutputStream ostream, byte[] value) throws IOException {
+            ostream.write(value);
+        }
+    }
+
+    private BytesCache cache;
+
+    private com.sun.management.ThreadMXBean threadBean;
+
+    @Before
+    public void setUp() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        threadBean = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+
+        cache = new BytesCache();
+        // mapped payloads have to be stored as they are
+        cache.setCodec(Codecs.IDENTITY);
+        cache.setDiskCacheEnabled(folder.getRoot().getPath());
+        byte[] value = new byte[VALUE_SIZE];
+        for (int i = 0; i < VALUE_SIZE; i++) {
+            value[i] = (byte) i;
+        }
+        cache.put("image", value);
+        cache.clear(false);
+    }
+
+    @After
+    public void tearDown() {
+        if (cache != null) {
+            cache.close();
+        }
+    }
+
+    private long allocatedBytes() {
+        return threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private long measureGet() {
+        long allocated = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            long before = allocatedBytes();
+            byte[] value = cache.get("image");
+            allocated += allocatedBytes() - before;
+            assertEquals(VALUE_SIZE, value.length);
+            // so that the next get is a disk hit again
+            cache.clear(false);
+        }
+        return allocated / ROUNDS;
+    }
+
+    private long measureGetBuffer() {
+        long allocated = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            long before = allocatedBytes();
+            ByteBuffer buffer = cache.getBuffer("image");
+            allocated += allocatedBytes() - before;
+            assertNotNull(buffer);
+            assertEquals(VALUE_SIZE, buffer.remaining());
+        }
+        return allocated / ROUNDS;
+    }
+
+    @Test
+    public void mappedReadsAllocateFarLessThanDecodedOnes() {
+        // warms up the JIT, which allocates, too
+        measureGet();
+        measureGetBuffer();
+
+        long perGet = measureGet();
+        long perGetBuffer = measureGetBuffer();
+        // the decoded value itself, at least
+        assertTrue("get() allocated " + perGet + " bytes", perGet >= VALUE_SIZE);
+        assertTrue("getBuffer() allocated " + perGetBuffer + " bytes",
+                perGetBuffer < VALUE_SIZE / 16);
+    }
+}
@@ -0,0 +1,79 @@
+package com.github.ignition.support.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import com.github.ignition.support.cache.EntryHeader.CorruptEntryException;
+
+public class EntryHeaderTest {
+
+    private static byte[] toBytes(EntryHeader header) {
+        ByteBuffer buffer = header.toByteBuffer();
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void roundTrips() throws IOException {
+        EntryHeader header = new EntryHeader("http://example.com/\u00e4", 1000, 2000, 2)
+                .withPayload(300, 200, 0xcafebabe);
+        byte[] bytes = toBytes(header);
+        assertEquals(header.getSize(), bytes.length);
+
+        EntryHeader read = EntryHeader.read(new ByteArrayInputStream(bytes));
+        assertEquals(header.key, read.key);
+        assertEquals(1000, read.writtenAt);
+        assertEquals(2000, read.expiresAt);
+        assertEquals(2, read.codecId);
+        assertEquals(300, read.valueLength);
+        assertEquals(200, read.payloadLength);
+        assertEquals(0xcafebabe, read.checksum);
+        assertEquals(bytes.length + 200, read.getFileSize());
+    }
+
+    @Test
+    public void rejectsFilesWithoutAHeader() throws IOException {
+        byte[] bytes = toBytes(new EntryHeader("key", 0, 0, 0));
+        bytes[0] ^= 1;
+        assertCorrupt(bytes);
+    }
+
+    @Test
+    public void rejectsOtherVersions() throws IOException {
+        byte[] bytes = toBytes(new EntryHeader("key", 0, 0, 0));
+        bytes[5]++;
+        assertCorrupt(bytes);
+    }
+
+    @Test
+    public void rejectsTruncatedHeaders() throws IOException {
+        byte[] bytes = toBytes(new EntryHeader("key", 0, 0, 0));
+        for (int length = 0; length < bytes.length; length++) {
+            byte[] truncated = new byte[length];
+            System.arraycopy(bytes, 0, truncated, 0, length);
+            assertCorrupt(truncated);
+        }
+    }
+
+    @Test
+    public void rejectsNegativeLengths() throws IOException {
+        byte[] bytes = toBytes(new EntryHeader("key", 0, 0, 0).withPayload(-1, 0, 0));
+        assertCorrupt(bytes);
+    }
+
+    private static void assertCorrupt(byte[] bytes) throws IOException {
+        try {
+            EntryHeader.read(new ByteArrayInputStream(bytes));
+            fail("read a corrupt header");
+        } catch (CorruptEntryException e) {
+            // expected
+        }
+    }
+}
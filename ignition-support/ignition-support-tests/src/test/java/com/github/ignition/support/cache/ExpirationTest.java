@@ -0,0 +1,112 @@
+package com.github.ignition.support.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+
+@RunWith(IgnitionSupportTestRunner.class)
+public class ExpirationTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private StringCache cache;
+
+    @Before
+    public void setUp() {
+        cache = new StringCache();
+    }
+
+    @After
+    public void tearDown() {
+        cache.close();
+    }
+
+    private void enableDiskCache() {
+        cache.setDiskCacheEnabled(folder.getRoot().getPath());
+    }
+
+    @Test
+    public void honorsPerEntryExpirationInMemory() throws InterruptedException {
+        cache.put("short", "value", 50);
+        cache.put("long", "value");
+        Thread.sleep(100);
+        assertNull(cache.get("short"));
+        assertEquals("value", cache.get("long"));
+    }
+
+    @Test
+    public void honorsPerEntryExpirationOnDisk() throws InterruptedException {
+        enableDiskCache();
+        cache.put("short", "value", 50);
+        cache.put("long", "value");
+        cache.clear(false);
+        Thread.sleep(100);
+        assertFalse(cache.containsKeyOnDisk("short"));
+        assertNull(cache.get("short"));
+        assertEquals("value", cache.get("long"));
+    }
+
+    @Test
+    public void reloadsKeepTheEntrysOwnExpiration() throws Exception {
+        cache.put("short", "stale", 50);
+        Thread.sleep(100);
+        assertEquals("fresh", cache.get("short", new Loader<String, String>() {
+            @Override
+            public String load(String key) {
+                return "fresh";
+            }
+        }));
+        Thread.sleep(100);
+        assertNull(cache.get("short"));
+    }
+
+    @Test
+    public void dropsExpiredEntriesBeforeEvictingLiveOnes() throws InterruptedException {
+        cache.setSizer(new Sizer<String, String>() {
+            @Override
+            public long sizeOf(String key, String value) {
+                return 1;
+            }
+        });
+        cache.setMaxMemoryCacheSize(2);
+        cache.put("a", "value");
+        // more recently used than a, so LRU order alone would keep it
+        cache.put("short", "value", 50);
+        Thread.sleep(100);
+
+        cache.put("b", "value");
+        assertTrue(cache.containsKeyInMemory("a"));
+        assertTrue(cache.containsKeyInMemory("b"));
+        assertFalse(cache.containsKeyInMemory("short"));
+    }
+
+    @Test
+    public void reclaimsExpiredFilesSoonestFirst() throws InterruptedException {
+        enableDiskCache();
+        cache.put("a", "value", 50);
+        cache.put("b", "value", 60 * 1000);
+        cache.put("c", "value");
+        Thread.sleep(100);
+
+        // writes start a background trim once the next expiry has passed
+        cache.put("d", "value");
+        long deadline = System.currentTimeMillis() + 5000;
+        while (cache.getCachedFiles().size() > 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(3, cache.getCachedFiles().size());
+        assertTrue(cache.containsKeyOnDisk("b"));
+        assertTrue(cache.containsKeyOnDisk("c"));
+        assertTrue(cache.containsKeyOnDisk("d"));
+    }
+}
@@ -0,0 +1,58 @@
+package com.github.ignition.support.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class FrequencySketchTest {
+
+    @Test
+    public void countsAccesses() {
+        FrequencySketch sketch = new FrequencySketch(512);
+        for (int i = 0; i < 5; i++) {
+            sketch.increment("hot".hashCode());
+        }
+        sketch.increment("warm".hashCode());
+        assertEquals(5, sketch.frequency("hot".hashCode()));
+        assertEquals(1, sketch.frequency("warm".hashCode()));
+        assertEquals(0, sketch.frequency("cold".hashCode()));
+    }
+
+    @Test
+    public void stopsCountingAtFifteen() {
+        FrequencySketch sketch = new FrequencySketch(512);
+        for (int i = 0; i < 100; i++) {
+            sketch.increment("hot".hashCode());
+        }
+        assertEquals(15, sketch.frequency("hot".hashCode()));
+    }
+
+    @Test
+    public void halvesAllCountsOnceTheSampleIsFull() {
+        FrequencySketch sketch = new FrequencySketch(16);
+        for (int i = 0; i < 12; i++) {
+            sketch.increment("hot".hashCode());
+        }
+        assertEquals(12, sketch.frequency("hot".hashCode()));
+        // the sample is ten times the width of the sketch
+        int key = 0;
+        while (sketch.frequency("hot".hashCode()) >= 12 && key < 1000) {
+            sketch.increment(key++);
+        }
+        assertTrue("no reset after " + key + " keys", key < 1000);
+        int frequency = sketch.frequency("hot".hashCode());
+        // other keys may share some of the counters, but never all four
+        assertTrue("frequency after reset: " + frequency, frequency >= 6 && frequency <= 7);
+    }
+
+    @Test
+    public void startsOverWhenWidened() {
+        FrequencySketch sketch = new FrequencySketch(16);
+        sketch.increment("hot".hashCode());
+        sketch.ensureCapacity(8);
+        assertEquals(1, sketch.frequency("hot".hashCode()));
+        sketch.ensureCapacity(1024);
+        assertEquals(0, sketch.frequency("hot".hashCode()));
+    }
+}
@@ -0,0 +1,104 @@
+package com.github.ignition.support.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+
+@RunWith(IgnitionSupportTestRunner.class)
+public class HotKeyTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private StringCache cache;
+
+    @Before
+    public void setUp() {
+        cache = newCache();
+    }
+
+    @After
+    public void tearDown() {
+        cache.close();
+    }
+
+    private StringCache newCache() {
+        StringCache cache = new StringCache();
+        cache.setDiskCacheEnabled(folder.getRoot().getPath());
+        return cache;
+    }
+
+    private void readRepeatedly(String key, int times) {
+        for (int i = 0; i < times; i++) {
+            cache.get(key);
+        }
+    }
+
+    // waits for the tasks queued on the maintenance thread so far, such as a warm-up
+    private void awaitMaintenance() throws Exception {
+        cache.getMaintenanceExecutor().submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                return null;
+            }
+        }).get();
+    }
+
+    @Test
+    public void recordsTheMostReadKeysOnClose() throws IOException {
+        cache.put("a", "value a");
+        cache.put("b", "value b");
+        cache.put("c", "value c");
+        readRepeatedly("b", 5);
+        readRepeatedly("a", 3);
+        cache.close();
+
+        // the manifest lives in the current generation directory
+        File root = new File(cache.getDiskCacheDirectory());
+        int version = cache.getDiskCacheVersion();
+        File directory = DiskGenerations.getDirectory(root, version, DiskGenerations.findLatest(
+                root, version));
+        assertEquals(Arrays.asList("b", "a"), HotKeyManifest.read(directory));
+    }
+
+    @Test
+    public void warmUpLoadsTheHotKeysFromDisk() throws Exception {
+        cache.put("a", "value a");
+        cache.put("b", "value b");
+        cache.put("c", "value c");
+        readRepeatedly("a", 3);
+        readRepeatedly("b", 3);
+        cache.close();
+
+        cache = newCache();
+        assertFalse(cache.containsKeyInMemory("a"));
+        cache.warmUp();
+        awaitMaintenance();
+        assertTrue(cache.containsKeyInMemory("a"));
+        assertTrue(cache.containsKeyInMemory("b"));
+        // never read, so not worth loading ahead of time
+        assertFalse(cache.containsKeyInMemory("c"));
+        assertEquals("value a", cache.get("a"));
+    }
+
+    @Test
+    public void warmUpWithoutAManifestDoesNothing() throws Exception {
+        cache.put("a", "value a");
+        cache.clear(false);
+        cache.warmUp();
+        awaitMaintenance();
+        assertFalse(cache.containsKeyInMemory("a"));
+    }
+}
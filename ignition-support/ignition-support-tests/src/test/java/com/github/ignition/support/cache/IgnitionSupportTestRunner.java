@@ -0,0 +1,14 @@
+package com.github.ignition.support.cache;
+
+import java.io.File;
+
+import org.junit.runners.model.InitializationError;
+
+import com.xtremelabs.robolectric.RobolectricTestRunner;
+
+public class IgnitionSupportTestRunner extends RobolectricTestRunner {
+
+    public IgnitionSupportTestRunner(Class<?> testClass) throws InitializationError {
+        super(testClass, new File("../ignition-support-samples"));
+    }
+}
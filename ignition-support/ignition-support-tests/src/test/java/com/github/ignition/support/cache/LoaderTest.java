@@ -0,0 +1,119 @@
+package com.github.ignition.support.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+
+@RunWith(IgnitionSupportTestRunner.class)
+public class LoaderTest {
+
+    private static final int THREAD_COUNT = 8;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private StringCache cache;
+
+    private ExecutorService threads;
+
+    private final AtomicInteger loads = new AtomicInteger();
+
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    private volatile boolean isFailing;
+
+    // holds on to the first load until the test releases it
+    private final Loader<String, String> loader = new Loader<String, String>() {
+        @Override
+        public String load(String key) throws Exception {
+            int load = loads.incrementAndGet();
+            assertTrue(release.await(5, TimeUnit.SECONDS));
+            if (isFailing) {
+                throw new IOException("offline");
+            }
+            return "loaded " + load;
+        }
+    };
+
+    @Before
+    public void setUp() {
+        cache = new StringCache();
+        cache.setDiskCacheEnabled(folder.getRoot().getPath());
+        threads = Executors.newFixedThreadPool(THREAD_COUNT);
+    }
+
+    @After
+    public void tearDown() {
+        threads.shutdownNow();
+        cache.close();
+    }
+
+    // has all threads ask for the same missing key, and lets the load finish once they're waiting
+    private List<Future<String>> loadConcurrently() throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(THREAD_COUNT);
+        List<Future<String>> results = new ArrayList<Future<String>>();
+        for (int i = 0; i < THREAD_COUNT; i++) {
+            results.add(threads.submit(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    started.countDown();
+                    return cache.get("key", loader);
+                }
+            }));
+        }
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        // time enough for all of them to find the load in flight
+        Thread.sleep(100);
+        release.countDown();
+        return results;
+    }
+
+    @Test
+    public void concurrentMissesShareOneLoad() throws Exception {
+        for (Future<String> result : loadConcurrently()) {
+            assertEquals("loaded 1", result.get());
+        }
+        assertEquals(1, loads.get());
+        assertEquals("loaded 1", cache.get("key"));
+    }
+
+    @Test
+    public void failuresReachEveryWaiterAndAreNotCached() throws Exception {
+        isFailing = true;
+        for (Future<String> result : loadConcurrently()) {
+            try {
+                result.get();
+                fail("load didn't fail");
+            } catch (ExecutionException e) {
+                // the one thrown by get(key, loader), wrapped once more by the thread pool
+                assertTrue(e.getCause() instanceof ExecutionException);
+                assertTrue(e.getCause().getCause() instanceof IOException);
+            }
+        }
+        assertEquals(1, loads.get());
+        assertNull(cache.get("key"));
+
+        isFailing = false;
+        assertEquals("loaded 2", cache.get("key", loader));
+    }
+}
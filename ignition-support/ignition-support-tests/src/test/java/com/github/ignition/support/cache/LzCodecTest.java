@@ -0,0 +1,159 @@
+package com.github.ignition.support.cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LzCodecTest {
+
+    private final Codec codec = Codecs.LZ;
+
+    private byte[] encode(byte[] data) throws IOException {
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        OutputStream ostream = codec.encode(encoded);
+        ostream.write(data);
+        ostream.close();
+        return encoded.toByteArray();
+    }
+
+    private byte[] decode(byte[] encoded) throws IOException {
+        InputStream istream = codec.decode(new ByteArrayInputStream(encoded));
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1000];
+        int bytesRead;
+        while ((bytesRead = istream.read(buffer)) != -1) {
+            decoded.write(buffer, 0, bytesRead);
+        }
+        istream.close();
+        return decoded.toByteArray();
+    }
+
+    private static byte[] repetitive(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) "the quick brown fox jumps over the lazy dog ".charAt(i % 44);
+        }
+        return data;
+    }
+
+    private static byte[] random(int length) {
+        byte[] data = new byte[length];
+        new Random(42).nextBytes(data);
+        return data;
+    }
+
+    @Test
+    public void roundTripsEmptyValues() throws IOException {
+        assertArrayEquals(new byte[0], decode(encode(new byte[0])));
+    }
+
+    @Test
+    public void roundTripsShortValues() throws IOException {
+        for (int length = 1; length < 20; length++) {
+            byte[] data = repetitive(length);
+            assertArrayEquals(data, decode(encode(data)));
+        }
+    }
+
+    @Test
+    public void compressesRepetitiveData() throws IOException {
+        byte[] data = repetitive(10000);
+        byte[] encoded = encode(data);
+        assertTrue(encoded.length < data.length / 4);
+        assertArrayEquals(data, decode(encoded));
+    }
+
+    @Test
+    public void storesIncompressibleDataAsItIs() throws IOException {
+        byte[] data = random(10000);
+        byte[] encoded = encode(data);
+        // a block header, and the end marker
+        assertTrue(encoded.length <= data.length + 24);
+        assertArrayEquals(data, decode(encoded));
+    }
+
+    @Test
+    public void roundTripsValuesSpanningSeveralBlocks() throws IOException {
+        byte[] data = new byte[200 * 1024];
+        System.arraycopy(repetitive(100 * 1024), 0, data, 0, 100 * 1024);
+        System.arraycopy(random(100 * 1024), 0, data, 100 * 1024, 100 * 1024);
+        assertArrayEquals(data, decode(encode(data)));
+    }
+
+    @Test
+    public void roundTripsRunsOfASingleByte() throws IOException {
+        // matches which overlap the bytes they produce
+        byte[] data = new byte[70000];
+        assertArrayEquals(data, decode(encode(data)));
+    }
+
+    @Test
+    public void rejectsBlocksLargerThanTheBlockSize() {
+        byte[] encoded = { 0x00, 0x10, 0x00, 0x01, 0x00, 0x00, 0x00, 0x00 };
+        assertDecodingFails(encoded);
+    }
+
+    @Test
+    public void rejectsCompressedLengthsWhichCantBeRight() {
+        byte[] encoded = { 0x00, 0x00, 0x00, 0x10, 0x7f, 0x00, 0x00, 0x00 };
+        assertDecodingFails(encoded);
+    }
+
+    @Test
+    public void rejectsTruncatedStreams() throws IOException {
+        byte[] encoded = encode(repetitive(10000));
+        for (int length : new int[] { 3, 8, 20, encoded.length - 1 }) {
+            byte[] truncated = new byte[length];
+            System.arraycopy(encoded, 0, truncated, 0, length);
+            assertDecodingFails(truncated);
+        }
+    }
+
+    @Test
+    public void rejectsMatchesReachingBeforeTheBlock() {
+        // one literal, then a match 2 bytes back
+        byte[] encoded = { 0x00, 0x00, 0x00, 0x08, 0x00, 0x00, 0x00, 0x04, 0x10, 'a', 0x02,
+                0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00 };
+        assertDecodingFails(encoded);
+    }
+
+    @Test
+    public void rejectsMatchesOverrunningTheBlock() {
+        // one literal, then a match of 19 bytes, in a block of 8
+        byte[] encoded = { 0x00, 0x00, 0x00, 0x08, 0x00, 0x00, 0x00, 0x04, 0x1f, 'a', 0x01,
+                0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00 };
+        assertDecodingFails(encoded);
+    }
+
+    @Test
+    public void rejectsLiteralsOverrunningTheBlock() {
+        // three literals in a block of 2
+        byte[] encoded = { 0x00, 0x00, 0x00, 0x02, 0x00, 0x00, 0x00, 0x04, 0x30, 'a', 'b', 'c',
+                0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00 };
+        assertDecodingFails(encoded);
+    }
+
+    @Test
+    public void encodesTheCodecId() {
+        assertEquals(2, codec.getId());
+    }
+
+    private void assertDecodingFails(byte[] encoded) {
+        try {
+            decode(encoded);
+            fail("decoded malformed data");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
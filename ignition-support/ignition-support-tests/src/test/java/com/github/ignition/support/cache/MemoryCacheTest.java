@@ -0,0 +1,131 @@
+package com.github.ignition.support.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class MemoryCacheTest {
+
+    // one byte per character of the value
+    private static final Sizer<String, String> SIZER = new Sizer<String, String>() {
+        @Override
+        public long sizeOf(String key, String value) {
+            return value.length();
+        }
+    };
+
+    private MemoryCache<String, String> cache;
+
+    private final List<String> evicted = new ArrayList<String>();
+
+    @Before
+    public void setUp() {
+        cache = new MemoryCache<String, String>(16, 1, 3, SIZER);
+        cache.setEvictionListener(new MemoryCache.EvictionListener<String, String>() {
+            @Override
+            public void onEvicted(String key, String value) {
+                evicted.add(key);
+            }
+        });
+    }
+
+    private void put(String key, String value) {
+        cache.put(key, value, System.currentTimeMillis(), Long.MAX_VALUE);
+    }
+
+    @Test
+    public void evictsLeastRecentlyWrittenEntriesFirst() {
+        put("a", "1");
+        put("b", "1");
+        put("c", "1");
+        put("d", "1");
+        assertEquals(1, evicted.size());
+        assertEquals("a", evicted.get(0));
+        assertFalse(cache.containsKey("a"));
+        assertTrue(cache.containsKey("b"));
+        assertTrue(cache.containsKey("d"));
+    }
+
+    @Test
+    public void readsMakeEntriesRecentlyUsed() {
+        put("a", "1");
+        put("b", "1");
+        put("c", "1");
+        assertEquals("1", cache.get("a"));
+        put("d", "1");
+        assertEquals(1, evicted.size());
+        assertEquals("b", evicted.get(0));
+        assertTrue(cache.containsKey("a"));
+
+        put("e", "1");
+        assertEquals("c", evicted.get(1));
+        assertTrue(cache.containsKey("a"));
+    }
+
+    @Test
+    public void replacingAValueMakesItRecentlyUsed() {
+        put("a", "1");
+        put("b", "1");
+        put("c", "1");
+        put("a", "2");
+        put("d", "1");
+        assertEquals("b", evicted.get(0));
+        assertEquals("2", cache.get("a"));
+    }
+
+    @Test
+    public void staysWithinItsByteBudget() {
+        put("a", "1");
+        put("b", "22");
+        assertEquals(3, cache.getSize());
+        assertTrue(evicted.isEmpty());
+
+        // needs both of the others' space
+        put("c", "333");
+        assertEquals(3, cache.getSize());
+        assertEquals(2, evicted.size());
+        assertEquals("a", evicted.get(0));
+        assertEquals("b", evicted.get(1));
+        assertEquals("333", cache.get("c"));
+    }
+
+    @Test
+    public void doesNotAdmitEntriesLargerThanTheBudget() {
+        put("a", "1");
+        put("b", "4444");
+        assertNull(cache.get("b"));
+        assertEquals("1", cache.get("a"));
+        assertEquals(1, cache.getSize());
+        assertTrue(evicted.isEmpty());
+    }
+
+    @Test
+    public void shrinkingTheBudgetEvictsRightAway() {
+        put("a", "1");
+        put("b", "1");
+        put("c", "1");
+        cache.get("a");
+        cache.setMaxSize(1);
+        assertEquals(1, cache.getSize());
+        assertEquals("b", evicted.get(0));
+        assertEquals("c", evicted.get(1));
+        assertEquals("1", cache.get("a"));
+    }
+
+    @Test
+    public void removingAnEntryFreesItsBytes() {
+        put("a", "1");
+        put("b", "22");
+        cache.remove("b");
+        assertEquals(1, cache.getSize());
+        put("c", "22");
+        assertTrue(evicted.isEmpty());
+    }
+}
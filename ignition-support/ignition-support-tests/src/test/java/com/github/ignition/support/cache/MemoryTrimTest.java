@@ -0,0 +1,80 @@
+package com.github.ignition.support.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+
+@RunWith(IgnitionSupportTestRunner.class)
+public class MemoryTrimTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private StringCache cache;
+
+    @Before
+    public void setUp() {
+        cache = new StringCache();
+        // one byte per entry, so sizes are entry counts
+        cache.setSizer(new Sizer<String, String>() {
+            @Override
+            public long sizeOf(String key, String value) {
+                return 1;
+            }
+        });
+        cache.setDiskCacheEnabled(folder.getRoot().getPath());
+        for (int i = 0; i < 8; i++) {
+            cache.put("key" + i, "value" + i);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        cache.close();
+    }
+
+    @Test
+    public void keepsHalfInTheBackground() {
+        cache.trimMemory(AbstractCache.TRIM_MEMORY_BACKGROUND);
+        assertEquals(4, cache.getMemoryCacheSize());
+        // least recently used first
+        assertTrue(cache.containsKeyInMemory("key7"));
+        assertFalse(cache.containsKeyInMemory("key0"));
+    }
+
+    @Test
+    public void keepsAQuarterWhenModerate() {
+        cache.trimMemory(AbstractCache.TRIM_MEMORY_MODERATE);
+        assertEquals(2, cache.getMemoryCacheSize());
+    }
+
+    @Test
+    public void keepsNothingWhenComplete() {
+        cache.trimMemory(AbstractCache.TRIM_MEMORY_COMPLETE);
+        assertEquals(0, cache.getMemoryCacheSize());
+    }
+
+    @Test
+    public void keepsEverythingWhenTheUiIsHidden() {
+        cache.trimMemory(AbstractCache.TRIM_MEMORY_UI_HIDDEN);
+        assertEquals(8, cache.getMemoryCacheSize());
+    }
+
+    @Test
+    public void neverTouchesTheDisk() {
+        long maxSize = cache.getMaxMemoryCacheSize();
+        cache.trimMemory(AbstractCache.TRIM_MEMORY_COMPLETE);
+        assertEquals(8, cache.getCachedFiles().size());
+        assertEquals("value0", cache.get("key0"));
+        // trimming isn't permanent
+        assertEquals(maxSize, cache.getMaxMemoryCacheSize());
+    }
+}
@@ -0,0 +1,170 @@
+package com.github.ignition.support.cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+
+import com.github.ignition.support.cache.EntryHeader.CorruptEntryException;
+
+@RunWith(IgnitionSupportTestRunner.class)
+public class PackStoreTest {
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable task) {
+            task.run();
+        }
+    };
+
+    // large enough that a few of them fill a segment
+    private static final int RECORD_SIZE = PackStore.MAX_SEGMENT_SIZE / 4;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+
+    private PackStore store;
+
+    @Before
+    public void setUp() {
+        directory = new File(folder.getRoot(), PackStore.DIRECTORY_NAME);
+        store = new PackStore(directory);
+        store.open(Collections.<Integer> emptySet());
+    }
+
+    @After
+    public void tearDown() {
+        store.close();
+    }
+
+    private static byte[] record(int seed, int length) {
+        byte[] record = new byte[length];
+        for (int i = 0; i < length; i++) {
+            record[i] = (byte) (seed + i);
+        }
+        return record;
+    }
+
+    private byte[] read(long location, int length) throws IOException {
+        return store.read(PackStore.segmentOf(location), PackStore.offsetOf(location), length);
+    }
+
+    @Test
+    public void readsBackAppendedRecords() throws IOException {
+        long first = store.append(record(1, 100), 0, 100);
+        long second = store.append(record(2, 50), 0, 50);
+        assertEquals(PackStore.segmentOf(first), PackStore.segmentOf(second));
+        assertEquals(0, PackStore.offsetOf(first));
+        assertEquals(100, PackStore.offsetOf(second));
+        assertEquals(150, store.getLength(PackStore.segmentOf(first)));
+
+        assertArrayEquals(record(1, 100), read(first, 100));
+        assertArrayEquals(record(2, 50), read(second, 50));
+    }
+
+    @Test
+    public void startsANewSegmentOnceFull() {
+        long location = 0;
+        for (int i = 0; i < 5; i++) {
+            try {
+                location = store.append(record(i, RECORD_SIZE), 0, RECORD_SIZE);
+            } catch (IOException e) {
+                fail(e.getMessage());
+            }
+        }
+        assertEquals(2, store.getSegments().size());
+        assertEquals(PackStore.segmentOf(location), store.getActiveSegment());
+        assertEquals(0, PackStore.offsetOf(location));
+    }
+
+    @Test
+    public void detectsTruncatedRecords() throws IOException {
+        long location = store.append(record(1, 100), 0, 100);
+        try {
+            read(location, 101);
+            fail("read past the end of the segment");
+        } catch (CorruptEntryException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void keepsOnlyLiveSegmentsWhenOpened() throws IOException {
+        long live = store.append(record(1, 100), 0, 100);
+        store.append(record(2, RECORD_SIZE * 4), 0, RECORD_SIZE * 4);
+        long dead = store.append(record(3, 100), 0, 100);
+        store.close();
+
+        Set<Integer> liveSegments = new HashSet<Integer>();
+        liveSegments.add(PackStore.segmentOf(live));
+        store = new PackStore(directory);
+        store.open(liveSegments);
+        assertEquals(1, store.getSegments().size());
+        assertArrayEquals(record(1, 100), read(live, 100));
+        assertEquals(0, store.getLength(PackStore.segmentOf(dead)));
+        // never appended to, since it may end in a torn record
+        long next = store.append(record(4, 100), 0, 100);
+        assertTrue(PackStore.segmentOf(next) > PackStore.segmentOf(dead));
+    }
+
+    @Test
+    public void compactsMostlyDeadSegments() throws IOException {
+        store.close();
+        DiskIndex index = new DiskIndex(folder.getRoot(), DIRECT);
+        index.load();
+        store = index.getPackStore();
+        for (int i = 0; i < 8; i++) {
+            long location = store.append(record(i, RECORD_SIZE), 0, RECORD_SIZE);
+            index.put("file" + i, "key" + i, RECORD_SIZE, 1, Long.MAX_VALUE, PackStore
+                    .segmentOf(location), PackStore.offsetOf(location), true);
+        }
+        int firstSegment = index.get("file0").segment;
+        assertFalse(index.hasSegmentsToCompact());
+
+        index.remove("file0");
+        index.remove("file1");
+        assertTrue(index.hasSegmentsToCompact());
+        List<Integer> segments = index.segmentsToCompact();
+        assertEquals(Collections.singletonList(firstSegment), segments);
+
+        // what the cache's maintenance task does
+        for (DiskIndex.Entry entry : index.entriesInSegment(firstSegment)) {
+            byte[] record = store.read(entry.segment, entry.offset, (int) entry.size);
+            long location = store.append(record, 0, record.length);
+            index.move(entry.fileName, PackStore.segmentOf(location), PackStore
+                    .offsetOf(location));
+        }
+        index.deleteSegmentIfEmpty(firstSegment);
+        assertFalse(store.getSegments().contains(firstSegment));
+        index.shutdown();
+
+        index = new DiskIndex(folder.getRoot(), DIRECT);
+        index.load();
+        store = index.getPackStore();
+        for (int i = 2; i < 8; i++) {
+            DiskIndex.Entry entry = index.get("file" + i);
+            assertTrue(entry.segment != firstSegment);
+            assertArrayEquals(record(i, RECORD_SIZE), store.read(entry.segment, entry.offset,
+                    RECORD_SIZE));
+        }
+        index.shutdown();
+    }
+}
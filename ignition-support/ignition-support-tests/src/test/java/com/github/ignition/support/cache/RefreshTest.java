@@ -0,0 +1,104 @@
+package com.github.ignition.support.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+
+@RunWith(IgnitionSupportTestRunner.class)
+public class RefreshTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private StringCache cache;
+
+    private ExecutorService refreshes;
+
+    private final AtomicInteger attempts = new AtomicInteger();
+
+    private volatile boolean isFailing;
+
+    private final Loader<String, String> loader = new Loader<String, String>() {
+        @Override
+        public String load(String key) throws Exception {
+            int attempt = attempts.incrementAndGet();
+            if (isFailing) {
+                throw new IOException("offline");
+            }
+            return "fresh " + attempt;
+        }
+    };
+
+    @Before
+    public void setUp() {
+        cache = new StringCache();
+        cache.setDiskCacheEnabled(folder.getRoot().getPath());
+        refreshes = Executors.newSingleThreadExecutor();
+        // every entry is due for a refresh right away
+        cache.setRefreshAfterWrite(0, loader, refreshes);
+    }
+
+    @After
+    public void tearDown() {
+        refreshes.shutdownNow();
+        cache.close();
+    }
+
+    // waits for the refreshes started so far
+    private void awaitRefreshes() throws InterruptedException {
+        refreshes.shutdown();
+        assertTrue(refreshes.awaitTermination(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void returnsTheStaleValueWhileRefreshing() throws InterruptedException {
+        cache.put("key", "stale");
+        assertEquals("stale", cache.get("key"));
+        awaitRefreshes();
+        assertEquals(1, attempts.get());
+        assertEquals("fresh 1", cache.get("key"));
+    }
+
+    @Test
+    public void refreshesDiskHits() throws InterruptedException {
+        cache.put("key", "stale");
+        cache.clear(false);
+        assertEquals("stale", cache.get("key"));
+        awaitRefreshes();
+        cache.clear(false);
+        assertEquals("fresh 1", cache.get("key"));
+    }
+
+    @Test
+    public void refreshesKeepTheEntrysOwnExpiration() throws InterruptedException {
+        cache.put("key", "stale", 200);
+        assertEquals("stale", cache.get("key"));
+        awaitRefreshes();
+        assertEquals("fresh 1", cache.get("key"));
+        Thread.sleep(300);
+        assertNull(cache.get("key"));
+    }
+
+    @Test
+    public void keepsTheOldValueIfTheRefreshFails() throws InterruptedException {
+        cache.put("key", "stale");
+        isFailing = true;
+        assertEquals("stale", cache.get("key"));
+        awaitRefreshes();
+        assertEquals(1, attempts.get());
+        assertEquals("stale", cache.get("key"));
+    }
+}
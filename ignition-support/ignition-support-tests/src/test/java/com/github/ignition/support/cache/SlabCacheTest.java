@@ -0,0 +1,124 @@
+package com.github.ignition.support.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class SlabCacheTest {
+
+    private static final int QUARTER = SlabCache.SLAB_SIZE / 4;
+
+    private SlabCache<String> slabs;
+
+    @Before
+    public void setUp() {
+        slabs = new SlabCache<String>(SlabCache.SLAB_SIZE);
+    }
+
+    private boolean put(String key, int length) {
+        byte[] data = new byte[length];
+        data[0] = (byte) key.charAt(0);
+        return slabs.put(key, data, length, 0, Long.MAX_VALUE);
+    }
+
+    private void fillWithQuarters() {
+        for (String key : new String[] { "a", "b", "c", "d" }) {
+            assertTrue(put(key, QUARTER));
+        }
+        assertEquals(SlabCache.SLAB_SIZE, slabs.getSize());
+    }
+
+    @Test
+    public void reusesFreedRangesWithoutEvicting() {
+        fillWithQuarters();
+        slabs.remove("a");
+        slabs.remove("c");
+        // each half of a freed quarter goes into the first range it fits
+        assertTrue(put("e", QUARTER / 2));
+        assertTrue(put("f", QUARTER / 2));
+        assertTrue(put("g", QUARTER));
+        assertEquals(5, slabs.count());
+        assertTrue(slabs.containsKey("b"));
+        assertTrue(slabs.containsKey("d"));
+    }
+
+    @Test
+    public void coalescesAdjacentFreeRanges() {
+        fillWithQuarters();
+        slabs.remove("b");
+        slabs.remove("c");
+        // only fits if the two quarters were merged
+        assertTrue(put("e", 2 * QUARTER));
+        assertEquals(3, slabs.count());
+        assertTrue(slabs.containsKey("a"));
+        assertTrue(slabs.containsKey("d"));
+    }
+
+    @Test
+    public void coalescesWithTheFollowingRangeToo() {
+        fillWithQuarters();
+        // freed out of order, so the first range has to merge with the one after it
+        slabs.remove("c");
+        slabs.remove("b");
+        slabs.remove("d");
+        assertTrue(put("e", 3 * QUARTER));
+        assertEquals(2, slabs.count());
+        assertTrue(slabs.containsKey("a"));
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsedEntriesWhenFull() {
+        fillWithQuarters();
+        releaseAcquired("a");
+        assertTrue(put("e", QUARTER));
+        assertFalse(slabs.containsKey("b"));
+        assertTrue(slabs.containsKey("a"));
+        assertEquals(4, slabs.count());
+    }
+
+    @Test
+    public void neverReusesPinnedMemory() {
+        fillWithQuarters();
+        SlabCache.Entry<String> pinned = slabs.acquire("a");
+        assertNotNull(pinned);
+        slabs.remove("a");
+        assertTrue(put("e", QUARTER));
+        // "a" is gone, but its memory must stay intact until it's released
+        assertFalse(slabs.containsKey("a"));
+        assertEquals('a', pinned.getBuffer().get(0));
+        slabs.release(pinned);
+    }
+
+    @Test
+    public void rejectsValuesLargerThanASlab() {
+        assertFalse(put("a", SlabCache.SLAB_SIZE + 1));
+        assertEquals(0, slabs.count());
+    }
+
+    @Test
+    public void roundsAllocationsUp() {
+        assertTrue(put("a", 1));
+        assertTrue(slabs.getSize() > 1);
+        ByteBuffer buffer = slabs.acquire("a").getBuffer();
+        assertEquals(1, buffer.remaining());
+    }
+
+    @Test
+    public void dropsExpiredEntriesOnAccess() {
+        assertTrue(slabs.put("a", new byte[10], 10, 0, 1));
+        assertNull(slabs.acquire("a"));
+        assertEquals(0, slabs.count());
+        assertEquals(0, slabs.getSize());
+    }
+
+    private void releaseAcquired(String key) {
+        slabs.release(slabs.acquire(key));
+    }
+}
@@ -0,0 +1,41 @@
+package com.github.ignition.support.cache;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A cache of strings, which counts the values it serializes.
+ */
+class StringCache extends AbstractCache<String, String> {
+
+    volatile int writeCount;
+
+    StringCache() {
+        super("StringCache", 16, 60, 4);
+    }
+
+    @Override
+    public String getFileNameForKey(String key) {
+        return CacheHelper.getFileNameFromKey(key);
+    }
+
+    @Override
+    protected String getKeyFromString(String key) {
+        return key;
+    }
+
+    @Override
+    protected String readValueFromDisk(InputStream istream, int length) throws IOException {
+        byte[] value = new byte[length];
+        new DataInputStream(istream).readFully(value);
+        return new String(value, "UTF-8");
+    }
+
+    @Override
+    protected void writeValueToDisk(OutputStream ostream, String value) throws IOException {
+        writeCount++;
+        ostream.write(value.getBytes("UTF-8"));
+    }
+}
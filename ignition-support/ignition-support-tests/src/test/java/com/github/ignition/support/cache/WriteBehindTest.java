@@ -0,0 +1,180 @@
+package com.github.ignition.support.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+
+@RunWith(IgnitionSupportTestRunner.class)
+public class WriteBehindTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // holds up the writer while it writes the value "gate", so that writes queue up behind it
+    private static class GatedCache extends StringCache {
+
+        final CountDownLatch writing = new CountDownLatch(1);
+
+        final CountDownLatch release = new CountDownLatch(1);
+
+        // the values in the order they were written
+        final List<String> written = new CopyOnWriteArrayList<String>();
+
+        @Override
+        protected void writeValueToDisk(OutputStream ostream, String value) throws IOException {
+            written.add(value);
+            if (value.equals("gate")) {
+                writing.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException("interrupted");
+                }
+            }
+            super.writeValueToDisk(ostream, value);
+        }
+    }
+
+    private GatedCache cache;
+
+    @Before
+    public void setUp() {
+        cache = newCache();
+        cache.enableWriteBehind(100);
+    }
+
+    private GatedCache newCache() {
+        GatedCache cache = new GatedCache();
+        cache.setDiskCacheEnabled(folder.getRoot().getPath());
+        return cache;
+    }
+
+    @After
+    public void tearDown() {
+        cache.release.countDown();
+        cache.close();
+    }
+
+    private void closeGate() throws InterruptedException {
+        cache.put("gate", "gate");
+        assertTrue(cache.writing.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void dropsSupersededWrites() throws InterruptedException {
+        closeGate();
+        cache.put("key", "1");
+        cache.put("key", "2");
+        cache.put("key", "3");
+        cache.release.countDown();
+        cache.flush();
+
+        // the gate, and the last value of the key
+        assertEquals(2, cache.writeCount);
+        cache.clear(false);
+        assertEquals("3", cache.get("key"));
+    }
+
+    @Test
+    public void coalescesRewritesAtTheEndOfTheQueue() throws InterruptedException {
+        closeGate();
+        cache.put("a", "a1");
+        cache.put("b", "b1");
+        cache.put("a", "a2");
+        cache.release.countDown();
+        cache.flush();
+
+        assertEquals(Arrays.asList("gate", "b1", "a2"), cache.written);
+    }
+
+    @Test
+    public void readsSeePendingWrites() throws InterruptedException {
+        closeGate();
+        cache.put("key", "value");
+        cache.clear(false);
+        assertTrue(cache.containsKeyOnDisk("key"));
+        assertEquals("value", cache.get("key"));
+    }
+
+    @Test
+    public void removeDropsThePendingWrite() throws InterruptedException {
+        closeGate();
+        cache.put("key", "value");
+        cache.remove("key");
+        cache.release.countDown();
+        cache.flush();
+
+        assertEquals(1, cache.writeCount);
+        assertFalse(cache.containsKeyOnDisk("key"));
+    }
+
+    @Test
+    public void flushMakesWritesDurable() {
+        for (int i = 0; i < 50; i++) {
+            cache.put("key" + i, "value" + i);
+        }
+        cache.flush();
+
+        // without closing the first one, so only what flush() wrote out is there
+        GatedCache other = newCache();
+        for (int i = 0; i < 50; i++) {
+            assertEquals("value" + i, other.get("key" + i));
+        }
+        other.close();
+    }
+
+    @Test
+    public void flushReturnsWhileOthersKeepWriting() throws InterruptedException {
+        final AtomicBoolean isDone = new AtomicBoolean();
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; !isDone.get(); i++) {
+                    cache.put("key" + i % 50, "value" + i);
+                }
+            }
+        });
+        writer.start();
+        try {
+            for (int i = 0; i < 10; i++) {
+                cache.put("mine", "mine" + i);
+                cache.flush();
+            }
+        } finally {
+            isDone.set(true);
+            writer.join();
+        }
+        assertTrue(cache.written.contains("mine9"));
+    }
+
+    @Test
+    public void closeWritesEverythingOut() {
+        for (int i = 0; i < 50; i++) {
+            cache.put("key" + i, "value" + i);
+        }
+        cache.close();
+
+        // a new cache has to find everything on disk, through the journal
+        GatedCache reopened = newCache();
+        for (int i = 0; i < 50; i++) {
+            assertEquals("value" + i, reopened.get("key" + i));
+        }
+        assertFalse(reopened.isWriteBehindEnabled());
+    }
+}